@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class HttpDownloadTest extends TestCase {
+
+  private static final int LENGTH = 200 * 1024;
+
+  private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+
+  private final AtomicInteger mBreakAfter = new AtomicInteger(-1);
+
+  private volatile byte[] mContent = newContent(1);
+
+  private volatile String mETag = "\"v1\"";
+
+  private volatile boolean mAcceptRanges = true;
+
+  private volatile boolean mChangeAfterHead;
+
+  private LoopbackServer mServer;
+
+  private HttpManager mHttpManager;
+
+  private File mFile;
+
+  private static byte[] newContent(int seed) {
+    final byte[] content = new byte[LENGTH];
+    for (int i = 0; i < content.length; ++i) {
+      content[i] = (byte) (i * 31 + seed);
+    }
+    return content;
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    final byte[] bytes = new byte[(int) file.length()];
+    final FileInputStream fis = new FileInputStream(file);
+    try {
+      int offset = 0;
+      int read;
+      while (offset < bytes.length && (read = fis.read(bytes, offset, bytes.length - offset)) != -1) {
+        offset += read;
+      }
+    } finally {
+      fis.close();
+    }
+    return bytes;
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mServer = new LoopbackServer(new LoopbackServer.Handler() {
+      @Override
+      public void handle(LoopbackServer.Request request, LoopbackServer.Response response) {
+        serve(request, response);
+      }
+    });
+    mServer.start();
+    mHttpManager = new HttpManager();
+    mFile = new File(System.getProperty("java.io.tmpdir"), "download-test-" + System.nanoTime());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mServer.stop();
+    mFile.delete();
+    getStateFile().delete();
+    super.tearDown();
+  }
+
+  public void testSegmentedDownload() throws Exception {
+    final HttpDownload download = mHttpManager.download(mServer.getUrl("/file"), mFile, 4);
+    assertEquals(mFile, download.get(10, TimeUnit.SECONDS));
+    assertTrue(Arrays.equals(mContent, readFile(mFile)));
+    assertEquals(LENGTH, download.getContentLength());
+    assertEquals(LENGTH, download.getDownloadedBytes());
+    assertEquals(4, mRanges.size());
+    assertFalse(getStateFile().exists());
+  }
+
+  public void testResumeAfterFailure() throws Exception {
+    mBreakAfter.set(10000);
+    final HttpDownload failed = mHttpManager.download(mServer.getUrl("/file"), mFile, 2);
+    try {
+      failed.get(10, TimeUnit.SECONDS);
+      fail("download should have failed");
+    } catch (ExecutionException expected) {
+      // connection dropped
+    }
+    Thread.sleep(300);
+    assertTrue(getStateFile().exists());
+
+    mRanges.clear();
+    final HttpDownload resumed = mHttpManager.download(mServer.getUrl("/file"), mFile, 2);
+    assertEquals(mFile, resumed.get(10, TimeUnit.SECONDS));
+    assertTrue(Arrays.equals(mContent, readFile(mFile)));
+    assertEquals(LENGTH, resumed.getDownloadedBytes());
+    long requested = 0;
+    for (final String range : mRanges) {
+      final String[] bounds = range.substring("bytes=".length()).split("-");
+      requested += Long.parseLong(bounds[1]) - Long.parseLong(bounds[0]) + 1;
+    }
+    assertTrue("requested " + requested + " bytes again", requested <= LENGTH - 10000);
+  }
+
+  public void testChangedResourceInvalidatesCheckpoint() throws Exception {
+    mChangeAfterHead = true;
+    final HttpDownload changed = mHttpManager.download(mServer.getUrl("/file"), mFile, 2);
+    try {
+      changed.get(10, TimeUnit.SECONDS);
+      fail("download should have failed");
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof IOException);
+    }
+    Thread.sleep(300);
+    assertFalse(getStateFile().exists());
+
+    final HttpDownload restarted = mHttpManager.download(mServer.getUrl("/file"), mFile, 2);
+    assertEquals(mFile, restarted.get(10, TimeUnit.SECONDS));
+    assertTrue(Arrays.equals(mContent, readFile(mFile)));
+    assertEquals(LENGTH, restarted.getDownloadedBytes());
+  }
+
+  public void testSingleRequestWithoutRanges() throws Exception {
+    mAcceptRanges = false;
+    final HttpDownload download = mHttpManager.download(mServer.getUrl("/file"), mFile, 4);
+    assertEquals(mFile, download.get(10, TimeUnit.SECONDS));
+    assertTrue(Arrays.equals(mContent, readFile(mFile)));
+    assertEquals(LENGTH, download.getDownloadedBytes());
+    assertTrue(mRanges.isEmpty());
+  }
+
+  private void serve(LoopbackServer.Request request, LoopbackServer.Response response) {
+    final byte[] content = mContent;
+    final String etag = mETag;
+    response.setHeader("ETag", etag);
+    if (mAcceptRanges) {
+      response.setHeader("Accept-Ranges", "bytes");
+    }
+    if ("HEAD".equals(request.getMethod())) {
+      response.setHeader("Content-Length", String.valueOf(content.length));
+      if (mChangeAfterHead) {
+        mChangeAfterHead = false;
+        mContent = newContent(2);
+        mETag = "\"v2\"";
+      }
+      return;
+    }
+    final String range = request.getHeader("Range");
+    final String ifRange = request.getHeader("If-Range");
+    if (range != null) {
+      mRanges.add(range);
+    }
+    if (!mAcceptRanges || range == null || (ifRange != null && !ifRange.equals(etag))) {
+      response.setBody(content);
+      return;
+    }
+    final String[] bounds = range.substring("bytes=".length()).split("-");
+    final int start = Integer.parseInt(bounds[0]);
+    final int end = Math.min(content.length - 1, Integer.parseInt(bounds[1]));
+    response.setStatus(206)
+        .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length)
+        .setBody(Arrays.copyOfRange(content, start, end + 1));
+    final int breakAfter = mBreakAfter.getAndSet(-1);
+    if (breakAfter >= 0) {
+      response.breakAfter(breakAfter);
+    }
+  }
+
+  private File getStateFile() {
+    return new File(mFile.getPath() + ".part");
+  }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.exzogeni.dk.http;
+
+import android.os.Debug;
+
+import com.exzogeni.dk.log.Logger;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Allocations of the per-request header work with {@link HttpHeaders} against the map-based representation it
+ * replaced. The current side runs the real path: {@link HttpManager#newTask} with the global headers, one
+ * {@link HttpTask#addHeader}, {@link HttpTask#getFlightKey()}, and the response headers with their decoded copy.
+ * The legacy side creates the same task and replays the header work of the map-based code. Needs a device,
+ * {@link Debug} allocation counting is not available on a desktop JVM.
+ *
+ * @author Daniel Serdyukov
+ */
+public class HttpHeadersBenchmark extends TestCase {
+
+  private static final int WARMUP = 1000;
+
+  private static final int ITERATIONS = 10000;
+
+  private static final String URL = "http://example.com/api/items?page=1";
+
+  private static final String CONTENT_LENGTH = "Content-Length";
+
+  private static final String[] FLIGHT_HEADERS = {
+      "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "range"
+  };
+
+  private static final String[][] GLOBAL_HEADERS = {
+      {"User-Agent", "dk/3.0"},
+      {"Accept-Language", "en-US"},
+      {"Authorization", "Bearer 0123456789abcdef"},
+  };
+
+  private static final String[][] RESPONSE_HEADERS = {
+      {"Date", "Sat, 18 Oct 2014 12:00:00 GMT"},
+      {"Content-Type", "application/json; charset=utf-8"},
+      {CONTENT_LENGTH, "1024"},
+      {"Content-Encoding", "gzip"},
+      {"Cache-Control", "max-age=60"},
+      {"ETag", "\"abc\""},
+      {"Vary", "Accept-Encoding"},
+      {"Set-Cookie", "sid=1; Path=/"},
+  };
+
+  private HttpURLConnection mConnection;
+
+  private Map<String, List<String>> mLegacyGlobals;
+
+  private HttpManager mHttpManager;
+
+  private long mSink;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mConnection = new ResponseConnection();
+    mLegacyGlobals = new ConcurrentHashMap<>();
+    mHttpManager = new HttpManager();
+    for (final String[] header : GLOBAL_HEADERS) {
+      mLegacyGlobals.put(header[0], new CopyOnWriteArrayList<>(Collections.singletonList(header[1])));
+      mHttpManager.addHeader(header[0], header[1]);
+    }
+  }
+
+  public void testAllocations() throws Exception {
+    final long[] legacy = measure(new Runnable() {
+      @Override
+      public void run() {
+        legacyRequest();
+      }
+    });
+    final long[] current = measure(new Runnable() {
+      @Override
+      public void run() {
+        request();
+      }
+    });
+    Logger.info("headers per request: legacy %d objects/%d bytes, HttpHeaders %d objects/%d bytes",
+        legacy[0] / ITERATIONS, legacy[1] / ITERATIONS, current[0] / ITERATIONS, current[1] / ITERATIONS);
+    assertTrue(current[1] < legacy[1]);
+    assertTrue(mSink != 0);
+  }
+
+  private long[] measure(Runnable request) {
+    for (int i = 0; i < WARMUP; ++i) {
+      request.run();
+    }
+    Debug.startAllocCounting();
+    try {
+      Debug.resetThreadAllocCount();
+      Debug.resetThreadAllocSize();
+      for (int i = 0; i < ITERATIONS; ++i) {
+        request.run();
+      }
+      return new long[]{Debug.getThreadAllocCount(), Debug.getThreadAllocSize()};
+    } finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  private void legacyRequest() {
+    final HttpTask<Void> task = mHttpManager.newTask(Http.Method.GET, URL);
+    final Map<String, List<String>> headers = new ConcurrentHashMap<>();
+    headers.putAll(Collections.unmodifiableMap(mLegacyGlobals));
+    List<String> values = headers.get("X-Request-Id");
+    if (values == null) {
+      values = new CopyOnWriteArrayList<>();
+      headers.put("X-Request-Id", values);
+    }
+    values.clear();
+    Collections.addAll(values, "42");
+    final StringBuilder key = new StringBuilder(task.getMethodName()).append(' ').append(task.getEncodedUrl());
+    final Map<String, List<String>> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    sorted.putAll(headers);
+    for (final String name : FLIGHT_HEADERS) {
+      final List<String> flightValues = sorted.get(name);
+      if (flightValues != null) {
+        key.append('\n').append(name).append(':').append(flightValues);
+      }
+    }
+    mSink += key.toString().length();
+    final Map<String, List<String>> local = new HashMap<>(mConnection.getHeaderFields());
+    local.remove(null);
+    final Map<String, List<String>> response = Collections.unmodifiableMap(local);
+    final Map<String, List<String>> decoded = new HashMap<>(response);
+    for (final String name : response.keySet()) {
+      if (HttpEncoding.CONTENT_ENCODING.equalsIgnoreCase(name) || CONTENT_LENGTH.equalsIgnoreCase(name)) {
+        decoded.remove(name);
+      }
+    }
+    mSink += Collections.unmodifiableMap(decoded).size();
+  }
+
+  private void request() {
+    final HttpTask<Void> task = mHttpManager.newTask(Http.Method.GET, URL);
+    task.addHeader("X-Request-Id", "42");
+    mSink += task.getFlightKey().length();
+    final HttpHeaders response = HttpHeaders.of(mConnection);
+    mSink += response.without(HttpEncoding.CONTENT_ENCODING, CONTENT_LENGTH).fieldCount();
+  }
+
+  private static final class ResponseConnection extends HttpURLConnection {
+
+    private final Map<String, List<String>> mFields = new LinkedHashMap<>();
+
+    ResponseConnection() throws IOException {
+      super(new URL("http://example.com/"));
+      mFields.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+      for (final String[] header : RESPONSE_HEADERS) {
+        mFields.put(header[0], Collections.unmodifiableList(new ArrayList<>(Arrays.asList(header[1]))));
+      }
+    }
+
+    @Override
+    public String getHeaderFieldKey(int index) {
+      return index > 0 && index <= RESPONSE_HEADERS.length ? RESPONSE_HEADERS[index - 1][0] : null;
+    }
+
+    @Override
+    public String getHeaderField(int index) {
+      if (index == 0) {
+        return "HTTP/1.1 200 OK";
+      }
+      return index <= RESPONSE_HEADERS.length ? RESPONSE_HEADERS[index - 1][1] : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+      return mFields;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+  }
+
+}
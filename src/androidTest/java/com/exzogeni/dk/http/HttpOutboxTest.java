@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import com.exzogeni.dk.http.body.ByteArrayBody;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class HttpOutboxTest extends TestCase {
+
+  private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+
+  private LoopbackServer mServer;
+
+  private HttpManager mHttpManager;
+
+  private File mDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mServer = new LoopbackServer(new LoopbackServer.Handler() {
+      @Override
+      public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+        mReceived.add(request.getPath() + " " + new String(request.getBody(), "UTF-8"));
+        response.setStatus(201);
+      }
+    });
+    mServer.start();
+    mHttpManager = new HttpManager();
+    mDir = new File(System.getProperty("java.io.tmpdir"), "outbox-test-" + System.nanoTime());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mServer.stop();
+    final File[] files = mDir.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    mDir.delete();
+    super.tearDown();
+  }
+
+  public void testDeliversWhenServerComesBack() throws Exception {
+    mServer.stop();
+    final HttpOutbox outbox = mHttpManager.openOutbox(mDir, 1);
+    final CountDownLatch delivered = new CountDownLatch(3);
+    outbox.addListener(new CountingListener(delivered));
+    for (int i = 0; i < 3; ++i) {
+      outbox.enqueue(newPost("/msg/" + i, "msg" + i));
+    }
+    Thread.sleep(500);
+    assertEquals(3, outbox.size());
+    assertTrue(mReceived.isEmpty());
+
+    mServer.start();
+    outbox.replay();
+    assertTrue(delivered.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("/msg/0 msg0", "/msg/1 msg1", "/msg/2 msg2"), mReceived);
+    assertEquals(0, outbox.size());
+    outbox.close();
+
+    final HttpOutbox reopened = mHttpManager.openOutbox(mDir, 1);
+    assertEquals(0, reopened.size());
+    reopened.close();
+  }
+
+  public void testPendingRequestsSurviveReopen() throws Exception {
+    mServer.stop();
+    final HttpOutbox outbox = mHttpManager.openOutbox(mDir, 1);
+    outbox.enqueue(newPost("/a", "first"));
+    outbox.enqueue(newPost("/b", "second"));
+    Thread.sleep(500);
+    outbox.close();
+
+    mServer.start();
+    final HttpOutbox reopened = mHttpManager.openOutbox(mDir, 1);
+    final CountDownLatch delivered = new CountDownLatch(2);
+    reopened.addListener(new CountingListener(delivered));
+    reopened.replay();
+    assertTrue(delivered.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("/a first", "/b second"), mReceived);
+    assertEquals(0, reopened.size());
+    reopened.close();
+  }
+
+  private HttpTask<Void> newPost(String path, String body) throws IOException {
+    final HttpTask<Void> task = mHttpManager.newTask(Http.Method.POST, mServer.getUrl(path));
+    task.setBody(new ByteArrayBody("text/plain", body.getBytes("UTF-8")));
+    return task;
+  }
+
+  private static final class CountingListener implements HttpOutbox.Listener {
+
+    private final CountDownLatch mLatch;
+
+    CountingListener(CountDownLatch latch) {
+      mLatch = latch;
+    }
+
+    @Override
+    public void onDelivered(HttpOutbox.Entry entry, int statusCode) {
+      mLatch.countDown();
+    }
+
+    @Override
+    public void onRejected(HttpOutbox.Entry entry, int statusCode) {
+      fail("rejected " + entry + " with status " + statusCode);
+    }
+
+  }
+
+}
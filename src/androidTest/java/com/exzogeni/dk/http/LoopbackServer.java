@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface for the tests (com.sun.net.httpserver is not available on
+ * Android). Every response closes the connection. The server keeps its port across {@link #stop()} and
+ * {@link #start()}, so a client can watch it go down and come back.
+ *
+ * @author Daniel Serdyukov
+ */
+public class LoopbackServer {
+
+  private final Set<Socket> mSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+  private final Handler mHandler;
+
+  private volatile ServerSocket mServerSocket;
+
+  private int mPort;
+
+  public LoopbackServer(Handler handler) {
+    mHandler = handler;
+  }
+
+  public synchronized void start() throws IOException {
+    if (mServerSocket != null) {
+      return;
+    }
+    final ServerSocket serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), mPort));
+    mPort = serverSocket.getLocalPort();
+    mServerSocket = serverSocket;
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept(serverSocket);
+      }
+    }, "LoopbackServer-" + mPort);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public synchronized void stop() throws IOException {
+    final ServerSocket serverSocket = mServerSocket;
+    mServerSocket = null;
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+    for (final Socket socket : mSockets) {
+      socket.close();
+    }
+    mSockets.clear();
+  }
+
+  public synchronized String getUrl(String path) {
+    return "http://127.0.0.1:" + mPort + path;
+  }
+
+  private void accept(ServerSocket serverSocket) {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        return;
+      }
+      mSockets.add(socket);
+      final Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          serve(socket);
+        }
+      }, "LoopbackServer-" + mPort + "-" + socket.getPort());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      final InputStream in = new BufferedInputStream(socket.getInputStream());
+      final Request request = readRequest(in);
+      if (request != null) {
+        final Response response = new Response();
+        mHandler.handle(request, response);
+        writeResponse(socket.getOutputStream(), request, response);
+      }
+    } catch (SocketException e) {
+      // stopped
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      mSockets.remove(socket);
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // closed anyway
+      }
+    }
+  }
+
+  private static Request readRequest(InputStream in) throws IOException {
+    final String requestLine = readLine(in);
+    if (requestLine == null || requestLine.isEmpty()) {
+      return null;
+    }
+    final String[] parts = requestLine.split(" ");
+    final Request request = new Request(parts[0], parts[1]);
+    String line;
+    while ((line = readLine(in)) != null && !line.isEmpty()) {
+      final int colon = line.indexOf(':');
+      request.mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+    }
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final String contentLength = request.getHeader("Content-Length");
+    if (contentLength != null) {
+      copy(in, body, Long.parseLong(contentLength));
+    } else if ("chunked".equalsIgnoreCase(request.getHeader("Transfer-Encoding"))) {
+      long chunk;
+      while ((chunk = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+        copy(in, body, chunk);
+        readLine(in);
+      }
+      while ((line = readLine(in)) != null && !line.isEmpty()) {
+        // trailers
+      }
+    }
+    request.mBody = body.toByteArray();
+    return request;
+  }
+
+  private static void writeResponse(OutputStream out, Request request, Response response) throws IOException {
+    final StringBuilder head = new StringBuilder(256)
+        .append("HTTP/1.1 ").append(response.mStatus).append(' ').append(response.mStatus < 400 ? "OK" : "Error")
+        .append("\r\n");
+    for (final Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    if (!response.mHeaders.containsKey("Content-Length")) {
+      head.append("Content-Length: ").append(response.mBody.length).append("\r\n");
+    }
+    head.append("Connection: close\r\n\r\n");
+    out.write(head.toString().getBytes("US-ASCII"));
+    if (!"HEAD".equals(request.mMethod)) {
+      final int length = response.mBreakAfter >= 0 ? Math.min(response.mBreakAfter, response.mBody.length)
+          : response.mBody.length;
+      out.write(response.mBody, 0, length);
+    }
+    out.flush();
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    final StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != -1) {
+      if (c == '\n') {
+        final int end = line.length();
+        return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+      }
+      line.append((char) c);
+    }
+    return line.length() > 0 ? line.toString() : null;
+  }
+
+  private static void copy(InputStream in, OutputStream out, long count) throws IOException {
+    final byte[] buffer = new byte[4096];
+    while (count > 0) {
+      final int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (read == -1) {
+        throw new IOException("unexpected end of request body");
+      }
+      out.write(buffer, 0, read);
+      count -= read;
+    }
+  }
+
+  public interface Handler {
+
+    void handle(Request request, Response response) throws IOException;
+
+  }
+
+  public static final class Request {
+
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
+
+    private final String mMethod;
+
+    private final String mPath;
+
+    private byte[] mBody;
+
+    Request(String method, String path) {
+      mMethod = method;
+      mPath = path;
+    }
+
+    public String getMethod() {
+      return mMethod;
+    }
+
+    public String getPath() {
+      return mPath;
+    }
+
+    public String getHeader(String name) {
+      return mHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    public byte[] getBody() {
+      return mBody;
+    }
+
+  }
+
+  public static final class Response {
+
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
+
+    private int mStatus = 200;
+
+    private byte[] mBody = new byte[0];
+
+    private int mBreakAfter = -1;
+
+    public Response setStatus(int status) {
+      mStatus = status;
+      return this;
+    }
+
+    public Response setHeader(String name, String value) {
+      mHeaders.put(name, value);
+      return this;
+    }
+
+    public Response setBody(byte[] body) {
+      mBody = body;
+      return this;
+    }
+
+    /**
+     * Drops the connection after the given number of body bytes, the headers still announce the full length.
+     */
+    public Response breakAfter(int bytes) {
+      mBreakAfter = bytes;
+      return this;
+    }
+
+  }
+
+}
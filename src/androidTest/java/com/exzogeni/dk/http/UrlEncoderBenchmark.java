@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.exzogeni.dk.http;
+
+import android.net.Uri;
+
+import com.exzogeni.dk.log.Logger;
+
+import junit.framework.TestCase;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Time per url of {@link UrlEncoder} against the previous {@code Uri.parse}, multi-argument {@link URI} constructor
+ * and {@code URI.create} round trip: with every lookup missing the cache (more distinct urls than it holds) and
+ * with a working set that fits in it, as in an image list scrolled back and forth. Both cases must beat the legacy
+ * path. Needs a device, the legacy path runs the platform {@code Uri}.
+ *
+ * @author Daniel Serdyukov
+ */
+public class UrlEncoderBenchmark extends TestCase {
+
+  private static final int CACHE_SIZE = 256;
+
+  private static final int ROUNDS = 10;
+
+  private static final int ITERATIONS = 20000;
+
+  private final String[] mColdUrls = newUrls(4 * CACHE_SIZE);
+
+  private final String[] mWarmUrls = newUrls(CACHE_SIZE / 2);
+
+  private Object mSink;
+
+  private static String[] newUrls(int count) {
+    final String[] urls = new String[count];
+    for (int i = 0; i < count; ++i) {
+      urls[i] = "http://cdn.example.com/images/album " + (i / 16) + "/photo_" + i + ".jpg?w=320&h=240&tags=a|b&q="
+          + (i % 7 == 0 ? "caf%C3%A9" : "cafe") + "#top";
+    }
+    return urls;
+  }
+
+  private static URI legacyToUri(String url) {
+    final Uri uri = Uri.parse(url);
+    String encoded;
+    try {
+      encoded = new URI(
+          uri.getScheme(), uri.getAuthority(),
+          uri.getPath(), uri.getQuery(), uri.getFragment()
+      ).toASCIIString();
+    } catch (URISyntaxException e) {
+      encoded = url;
+    }
+    return URI.create(encoded);
+  }
+
+  public void testEncode() {
+    final long legacyCold = measure(mColdUrls, null);
+    final long cold = measure(mColdUrls, new UrlEncoder(CACHE_SIZE));
+    final long legacyWarm = measure(mWarmUrls, null);
+    final long warm = measure(mWarmUrls, new UrlEncoder(CACHE_SIZE));
+    Logger.info("ns per url: cache misses legacy %d, UrlEncoder %d; cache hits legacy %d, UrlEncoder %d",
+        legacyCold, cold, legacyWarm, warm);
+    assertTrue("cache misses: " + cold + " ns, legacy " + legacyCold + " ns", cold < legacyCold);
+    assertTrue("cache hits: " + warm + " ns, legacy " + legacyWarm + " ns", warm < legacyWarm);
+    assertNotNull(mSink);
+  }
+
+  /**
+   * @return best time of the rounds in nanoseconds per url
+   */
+  private long measure(String[] urls, UrlEncoder encoder) {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; ++round) {
+      final long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; ++i) {
+        final String url = urls[i % urls.length];
+        mSink = encoder != null ? encoder.toUri(url) : legacyToUri(url);
+      }
+      best = Math.min(best, (System.nanoTime() - start) / ITERATIONS);
+    }
+    return best;
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.exzogeni.dk.http.cookie;
+
+import junit.framework.TestCase;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class CookieJarTest extends TestCase {
+
+  public void testRegistrableDomain() {
+    assertEquals("example.com", CookieJar.getRegistrableDomain("www.example.com"));
+    assertEquals("web.de", CookieJar.getRegistrableDomain("www.web.de"));
+    assertEquals("abc.io", CookieJar.getRegistrableDomain("app.abc.io"));
+    assertEquals("bbc.co.uk", CookieJar.getRegistrableDomain("news.bbc.co.uk"));
+    assertEquals("example.com.au", CookieJar.getRegistrableDomain("shop.example.com.au"));
+    assertEquals("localhost", CookieJar.getRegistrableDomain("localhost"));
+    assertEquals("192.168.0.1", CookieJar.getRegistrableDomain("192.168.0.1"));
+  }
+
+  public void testParentDomainCookie() throws Exception {
+    final CookieJar jar = new CookieJar(null);
+    jar.put(URI.create("http://www.web.de/"), Collections.singletonMap("Set-Cookie",
+        Collections.singletonList("sid=1; Domain=web.de; Path=/")));
+    final Map<String, List<String>> headers = jar.get(URI.create("http://mail.web.de/"),
+        Collections.<String, List<String>>emptyMap());
+    assertEquals(Collections.singletonList("sid=1"), headers.get("Cookie"));
+  }
+
+  public void testPublicSuffixCookieRejected() throws Exception {
+    final CookieJar jar = new CookieJar(null);
+    jar.put(URI.create("http://www.example.co.uk/"), Collections.singletonMap("Set-Cookie",
+        Collections.singletonList("sid=1; Domain=co.uk; Path=/")));
+    assertTrue(jar.get(URI.create("http://other.co.uk/"), Collections.<String, List<String>>emptyMap()).isEmpty());
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.dns;
+
+import com.exzogeni.dk.concurrent.ThreadQueue;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class DnsCacheTest extends TestCase {
+
+  private FakeDns mDns;
+
+  private PendingQueue mQueue;
+
+  private DnsCache mCache;
+
+  private static InetAddress address(String host, int last) throws UnknownHostException {
+    return InetAddress.getByAddress(host, new byte[]{10, 0, 0, (byte) last});
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mDns = new FakeDns();
+    mQueue = new PendingQueue();
+    mCache = new DnsCache(mDns, mQueue);
+  }
+
+  public void testPositiveAnswerIsCached() throws Exception {
+    mDns.answer("example.com", address("example.com", 1));
+    assertEquals(mDns.get("example.com"), mCache.lookup("example.com"));
+    assertEquals(mDns.get("example.com"), mCache.lookup("EXAMPLE.com"));
+    assertEquals(1, mDns.getLookupCount());
+  }
+
+  public void testNegativeAnswerIsCachedForNegativeTtl() throws Exception {
+    mCache.setNegativeTtlMs(100);
+    assertUnknownHost("missing.example.com");
+    assertUnknownHost("missing.example.com");
+    assertEquals(1, mDns.getLookupCount());
+
+    Thread.sleep(150);
+    mDns.answer("missing.example.com", address("missing.example.com", 2));
+    assertEquals(mDns.get("missing.example.com"), mCache.lookup("missing.example.com"));
+    assertEquals(2, mDns.getLookupCount());
+  }
+
+  public void testStaleAnswerIsServedWhileRefreshing() throws Exception {
+    mCache.setPositiveTtlMs(50).setStaleTtlMs(60000);
+    final List<InetAddress> first = Collections.singletonList(address("example.com", 1));
+    mDns.answer("example.com", first.get(0));
+    assertEquals(first, mCache.lookup("example.com"));
+
+    Thread.sleep(100);
+    mDns.answer("example.com", address("example.com", 3));
+    assertEquals(first, mCache.lookup("example.com"));
+    assertEquals(first, mCache.lookup("example.com"));
+    assertEquals(1, mQueue.size());
+    assertEquals(1, mDns.getLookupCount());
+
+    mQueue.runPending();
+    assertEquals(mDns.get("example.com"), mCache.lookup("example.com"));
+    assertEquals(2, mDns.getLookupCount());
+  }
+
+  public void testFailedRefreshKeepsStaleAnswer() throws Exception {
+    mCache.setPositiveTtlMs(50).setStaleTtlMs(60000);
+    final List<InetAddress> first = Collections.singletonList(address("example.com", 1));
+    mDns.answer("example.com", first.get(0));
+    mCache.lookup("example.com");
+
+    Thread.sleep(100);
+    mDns.fail("example.com");
+    assertEquals(first, mCache.lookup("example.com"));
+    mQueue.runPending();
+    assertEquals(first, mCache.lookup("example.com"));
+    assertEquals(2, mDns.getLookupCount());
+  }
+
+  public void testAnswerBeyondStaleTtlIsResolvedAgain() throws Exception {
+    mCache.setPositiveTtlMs(50).setStaleTtlMs(0);
+    mDns.answer("example.com", address("example.com", 1));
+    mCache.lookup("example.com");
+
+    Thread.sleep(100);
+    mDns.answer("example.com", address("example.com", 4));
+    assertEquals(mDns.get("example.com"), mCache.lookup("example.com"));
+    assertEquals(0, mQueue.size());
+    assertEquals(2, mDns.getLookupCount());
+  }
+
+  public void testPrefetch() throws Exception {
+    mDns.answer("a.example.com", address("a.example.com", 5));
+    mDns.answer("b.example.com", address("b.example.com", 6));
+    mCache.prefetch("a.example.com", "B.example.com");
+    assertEquals(0, mDns.getLookupCount());
+    assertEquals(2, mQueue.size());
+
+    mQueue.runPending();
+    assertEquals(2, mDns.getLookupCount());
+    assertEquals(mDns.get("a.example.com"), mCache.lookup("a.example.com"));
+    assertEquals(mDns.get("b.example.com"), mCache.lookup("b.example.com"));
+    assertEquals(2, mDns.getLookupCount());
+  }
+
+  private void assertUnknownHost(String host) {
+    try {
+      mCache.lookup(host);
+      fail(host + " resolved");
+    } catch (UnknownHostException expected) {
+      assertEquals(host, expected.getMessage());
+    }
+  }
+
+  private static final class FakeDns implements Dns {
+
+    private final Map<String, List<InetAddress>> mAnswers = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mLookupCount = new AtomicInteger();
+
+    void answer(String host, InetAddress address) {
+      mAnswers.put(host, Collections.singletonList(address));
+    }
+
+    void fail(String host) {
+      mAnswers.remove(host);
+    }
+
+    List<InetAddress> get(String host) {
+      return mAnswers.get(host);
+    }
+
+    int getLookupCount() {
+      return mLookupCount.get();
+    }
+
+    @Override
+    public List<InetAddress> lookup(String host) throws UnknownHostException {
+      mLookupCount.incrementAndGet();
+      final List<InetAddress> addresses = mAnswers.get(host);
+      if (addresses == null) {
+        throw new UnknownHostException(host);
+      }
+      return addresses;
+    }
+
+  }
+
+  /**
+   * Holds background work until the test runs it.
+   */
+  private static final class PendingQueue implements ThreadQueue {
+
+    private final List<Runnable> mPending = new ArrayList<>();
+
+    @Override
+    public <V> Future<V> submit(Callable<V> task) {
+      final FutureTask<V> future = new FutureTask<>(task);
+      execute(future);
+      return future;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      mPending.add(task);
+    }
+
+    synchronized int size() {
+      return mPending.size();
+    }
+
+    void runPending() {
+      final List<Runnable> pending;
+      synchronized (this) {
+        pending = new ArrayList<>(mPending);
+        mPending.clear();
+      }
+      for (final Runnable task : pending) {
+        task.run();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.exzogeni.dk.http.transport;
+
+import com.exzogeni.dk.http.LoopbackServer;
+import com.exzogeni.dk.http.dns.Dns;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link NioTransport} against a {@link LoopbackServer}.
+ *
+ * @author Daniel Serdyukov
+ */
+public class NioTransportTest extends TestCase {
+
+  private static final String HOST = "loopback.test";
+
+  private static final long SLOW_RESPONSE_MS = 200;
+
+  private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+  private final AtomicInteger mLookupCount = new AtomicInteger();
+
+  private final Dns mDns = new Dns() {
+    @Override
+    public List<InetAddress> lookup(String host) throws UnknownHostException {
+      mLookupCount.incrementAndGet();
+      if (HOST.equals(host)) {
+        return Collections.singletonList(InetAddress.getByAddress(HOST, new byte[]{127, 0, 0, 1}));
+      }
+      throw new UnknownHostException(host);
+    }
+  };
+
+  private final ConnectionPool mPool = new ConnectionPool();
+
+  private LoopbackServer mServer;
+
+  private NioTransport mTransport;
+
+  private static String readBody(HttpURLConnection cn) throws IOException {
+    final InputStream in = cn.getInputStream();
+    try {
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      return body.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mServer = new LoopbackServer(new LoopbackServer.Handler() {
+      @Override
+      public void handle(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+        serve(request, response);
+      }
+    });
+    mServer.start();
+    mTransport = new NioTransport(1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mServer.stop();
+    mPool.evictAll();
+    super.tearDown();
+  }
+
+  public void testGetResolvesThroughDns() throws Exception {
+    final HttpURLConnection cn = open("/hello");
+    assertEquals(HttpURLConnection.HTTP_OK, cn.getResponseCode());
+    assertEquals("GET /hello " + HOST + ":" + getPort(), readBody(cn));
+    assertEquals(1, mLookupCount.get());
+    assertTrue(((ConnectionTimings) cn).getConnectNanos() >= 0);
+  }
+
+  public void testPostBody() throws Exception {
+    final HttpURLConnection cn = open("/echo");
+    cn.setRequestMethod("POST");
+    cn.setDoOutput(true);
+    cn.setFixedLengthStreamingMode(5);
+    final OutputStream out = cn.getOutputStream();
+    out.write("hello".getBytes("UTF-8"));
+    out.close();
+    assertEquals(HttpURLConnection.HTTP_OK, cn.getResponseCode());
+    assertEquals("hello", readBody(cn));
+  }
+
+  public void testFollowsRedirect() throws Exception {
+    final HttpURLConnection cn = open("/redirect/302/hello");
+    assertEquals(HttpURLConnection.HTTP_OK, cn.getResponseCode());
+    assertEquals("GET /hello " + HOST + ":" + getPort(), readBody(cn));
+    assertEquals("/hello", cn.getURL().getPath());
+    assertEquals(2, mRequests.size());
+  }
+
+  public void testRedirectedPostBecomesGet() throws Exception {
+    final HttpURLConnection cn = open("/redirect/303/hello");
+    cn.setRequestMethod("POST");
+    cn.setDoOutput(true);
+    final OutputStream out = cn.getOutputStream();
+    out.write("form".getBytes("UTF-8"));
+    out.close();
+    assertEquals(HttpURLConnection.HTTP_OK, cn.getResponseCode());
+    assertEquals("GET /hello " + HOST + ":" + getPort(), readBody(cn));
+    assertEquals("POST /redirect/303/hello 4", mRequests.get(0));
+  }
+
+  public void testTemporaryRedirectKeepsPost() throws Exception {
+    final HttpURLConnection cn = open("/redirect/307/hello");
+    cn.setRequestMethod("POST");
+    cn.setDoOutput(true);
+    cn.getOutputStream().close();
+    assertEquals(307, cn.getResponseCode());
+    assertEquals(1, mRequests.size());
+  }
+
+  public void testRedirectNotFollowedWhenDisabled() throws Exception {
+    final HttpURLConnection cn = open("/redirect/301/hello");
+    cn.setInstanceFollowRedirects(false);
+    assertEquals(HttpURLConnection.HTTP_MOVED_PERM, cn.getResponseCode());
+    assertEquals("/hello", cn.getHeaderField("Location"));
+  }
+
+  public void testRedirectToOtherProtocolNotFollowed() throws Exception {
+    final HttpURLConnection cn = open("/redirect/302/https");
+    assertEquals(HttpURLConnection.HTTP_MOVED_TEMP, cn.getResponseCode());
+    assertEquals(1, mRequests.size());
+  }
+
+  public void testTooManyRedirects() throws Exception {
+    final HttpURLConnection cn = open("/loop");
+    try {
+      cn.getResponseCode();
+      fail("redirect loop followed");
+    } catch (ProtocolException expected) {
+      assertEquals(21, mRequests.size());
+    }
+  }
+
+  public void testHttpsGoesToFallback() throws Exception {
+    final AtomicInteger fallbackCount = new AtomicInteger();
+    final NioTransport transport = new NioTransport(1, new HttpTransport() {
+      @Override
+      public HttpURLConnection openConnection(URI uri, ConnectionPool pool, Dns dns) throws IOException {
+        fallbackCount.incrementAndGet();
+        return HttpTransport.DEFAULT.openConnection(uri, pool, dns);
+      }
+    });
+    final URI https = URI.create("https://" + HOST + "/");
+    assertFalse(transport.openConnection(https, mPool, mDns) instanceof NioHttpConnection);
+    assertEquals(1, fallbackCount.get());
+    assertTrue(transport.openConnection(URI.create("http://" + HOST + "/"), mPool, mDns) instanceof NioHttpConnection);
+    assertEquals(1, fallbackCount.get());
+  }
+
+  public void testConcurrentConnectionsOnOneSelectorThread() throws Exception {
+    final int count = 32;
+    final ExecutorService executor = Executors.newFixedThreadPool(count);
+    try {
+      final long start = System.nanoTime();
+      final List<Future<String>> bodies = new ArrayList<>(count);
+      for (int i = 0; i < count; ++i) {
+        final String path = "/slow/" + i;
+        bodies.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            return readBody(open(path));
+          }
+        }));
+      }
+      for (int i = 0; i < count; ++i) {
+        assertEquals("GET /slow/" + i + " " + HOST + ":" + getPort(), bodies.get(i).get(10, TimeUnit.SECONDS));
+      }
+      final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("took " + elapsedMs + " ms", elapsedMs < count * SLOW_RESPONSE_MS / 4);
+      assertEquals(count, mPool.getConnectCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    return mTransport.openConnection(URI.create("http://" + HOST + ":" + getPort() + path), mPool, mDns);
+  }
+
+  private int getPort() {
+    return URI.create(mServer.getUrl("/")).getPort();
+  }
+
+  private void serve(LoopbackServer.Request request, LoopbackServer.Response response) throws IOException {
+    final String path = request.getPath();
+    mRequests.add(request.getMethod() + " " + path + " " + request.getBody().length);
+    if (path.startsWith("/redirect/")) {
+      final String[] parts = path.split("/");
+      final String target = "https".equals(parts[3]) ? "https://" + HOST + "/" : "/" + parts[3];
+      response.setStatus(Integer.parseInt(parts[2])).setHeader("Location", target);
+    } else if ("/loop".equals(path)) {
+      response.setStatus(HttpURLConnection.HTTP_MOVED_TEMP).setHeader("Location", "/loop");
+    } else if ("/echo".equals(path)) {
+      response.setBody(request.getBody());
+    } else {
+      if (path.startsWith("/slow/")) {
+        try {
+          Thread.sleep(SLOW_RESPONSE_MS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      response.setBody((request.getMethod() + " " + path + " " + request.getHeader("Host")).getBytes("UTF-8"));
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.concurrent;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Future} that notifies listeners on completion, so stages can be chained without parking a thread.
+ * Listeners and stages without a {@link ThreadQueue} run on the thread that completes the future.
+ *
+ * @author Daniel Serdyukov
+ */
+public interface ListenableFuture<V> extends Future<V> {
+
+  void addListener(@NonNull Listener<? super V> listener);
+
+  void addListener(@NonNull Listener<? super V> listener, @Nullable ThreadQueue queue);
+
+  @NonNull
+  <R> ListenableFuture<R> then(@NonNull Function<? super V, ? extends R> function);
+
+  @NonNull
+  <R> ListenableFuture<R> thenOn(@Nullable ThreadQueue queue, @NonNull Function<? super V, ? extends R> function);
+
+  @NonNull
+  ListenableFuture<V> withTimeout(long timeout, @NonNull TimeUnit unit);
+
+  interface Listener<V> {
+
+    void onSuccess(@Nullable V value);
+
+    void onFailure(@NonNull Throwable e);
+
+  }
+
+  interface Function<V, R> {
+
+    @Nullable
+    R apply(@Nullable V value) throws Exception;
+
+  }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.concurrent;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class ListenableFutureTask<V> extends FutureTask<V> implements ListenableFuture<V> {
+
+  private final Promise<V> mPromise = new Promise<V>() {
+    @Override
+    protected void onCancelled(boolean mayInterruptIfRunning) {
+      ListenableFutureTask.this.cancel(mayInterruptIfRunning);
+    }
+  };
+
+  public ListenableFutureTask(@NonNull Callable<V> callable) {
+    super(callable);
+  }
+
+  @Override
+  public void addListener(@NonNull Listener<? super V> listener) {
+    mPromise.addListener(listener);
+  }
+
+  @Override
+  public void addListener(@NonNull Listener<? super V> listener, @Nullable ThreadQueue queue) {
+    mPromise.addListener(listener, queue);
+  }
+
+  @NonNull
+  @Override
+  public <R> ListenableFuture<R> then(@NonNull Function<? super V, ? extends R> function) {
+    return mPromise.then(function);
+  }
+
+  @NonNull
+  @Override
+  public <R> ListenableFuture<R> thenOn(@Nullable ThreadQueue queue,
+                                       @NonNull Function<? super V, ? extends R> function) {
+    return mPromise.thenOn(queue, function);
+  }
+
+  @NonNull
+  @Override
+  public ListenableFuture<V> withTimeout(long timeout, @NonNull TimeUnit unit) {
+    return mPromise.withTimeout(timeout, unit);
+  }
+
+  @Override
+  protected void done() {
+    if (isCancelled()) {
+      mPromise.cancel(false);
+      return;
+    }
+    try {
+      mPromise.set(get());
+    } catch (ExecutionException e) {
+      mPromise.setException(e.getCause());
+    } catch (InterruptedException e) {
+      mPromise.setException(e);
+    }
+  }
+
+}
@@ -30,6 +30,8 @@ public class NamedThreadFactory implements ThreadFactory {
 
   private final String mThreadName;
 
+  private final boolean mDaemon;
+
   private ThreadGroup mThreadGroup;
 
   public NamedThreadFactory() {
@@ -37,7 +39,12 @@ public class NamedThreadFactory implements ThreadFactory {
   }
 
   public NamedThreadFactory(String threadName) {
+    this(threadName, false);
+  }
+
+  public NamedThreadFactory(String threadName, boolean daemon) {
     mThreadName = threadName;
+    mDaemon = daemon;
     final SecurityManager sm = System.getSecurityManager();
     if (sm != null) {
       mThreadGroup = sm.getThreadGroup();
@@ -46,7 +53,9 @@ public class NamedThreadFactory implements ThreadFactory {
 
   @Override
   public Thread newThread(@NonNull Runnable r) {
-    return new Thread(mThreadGroup, r, mThreadName + " #" + mSequence.incrementAndGet(), 0);
+    final Thread thread = new Thread(mThreadGroup, r, mThreadName + " #" + mSequence.incrementAndGet(), 0);
+    thread.setDaemon(mDaemon);
+    return thread;
   }
 
 }
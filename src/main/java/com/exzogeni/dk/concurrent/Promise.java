@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.concurrent;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Settable {@link ListenableFuture}. Cancelling a stage created by {@link #then} or {@link #withTimeout}
+ * cancels the future it was created from.
+ *
+ * @author Daniel Serdyukov
+ */
+public class Promise<V> implements ListenableFuture<V> {
+
+  private static final int PENDING = 0;
+
+  private static final int SUCCESS = 1;
+
+  private static final int FAILURE = 2;
+
+  private static final int CANCELLED = 3;
+
+  private final List<Runnable> mListeners = new ArrayList<>();
+
+  private int mState = PENDING;
+
+  private V mValue;
+
+  private Throwable mError;
+
+  @NonNull
+  @SafeVarargs
+  public static <V> ListenableFuture<List<V>> combine(@NonNull ListenableFuture<? extends V>... futures) {
+    final List<ListenableFuture<? extends V>> list = new ArrayList<>(futures.length);
+    for (final ListenableFuture<? extends V> future : futures) {
+      list.add(future);
+    }
+    return combine(list);
+  }
+
+  @NonNull
+  public static <V> ListenableFuture<List<V>> combine(
+      @NonNull final List<? extends ListenableFuture<? extends V>> futures) {
+    final Promise<List<V>> combined = new Promise<List<V>>() {
+      @Override
+      protected void onCancelled(boolean mayInterruptIfRunning) {
+        for (final ListenableFuture<? extends V> future : futures) {
+          future.cancel(mayInterruptIfRunning);
+        }
+      }
+    };
+    if (futures.isEmpty()) {
+      combined.set(Collections.<V>emptyList());
+      return combined;
+    }
+    final Object[] values = new Object[futures.size()];
+    final AtomicInteger remaining = new AtomicInteger(values.length);
+    for (int i = 0; i < values.length; ++i) {
+      final int index = i;
+      futures.get(i).addListener(new Listener<V>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onSuccess(@Nullable V value) {
+          values[index] = value;
+          if (remaining.decrementAndGet() == 0) {
+            combined.set(Collections.unmodifiableList(Arrays.asList((V[]) values)));
+          }
+        }
+
+        @Override
+        public void onFailure(@NonNull Throwable e) {
+          combined.fail(e);
+        }
+      });
+    }
+    return combined;
+  }
+
+  public boolean set(@Nullable V value) {
+    return complete(SUCCESS, value, null);
+  }
+
+  public boolean setException(@NonNull Throwable e) {
+    return complete(FAILURE, null, e);
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    if (complete(CANCELLED, null, new CancellationException())) {
+      onCancelled(mayInterruptIfRunning);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return mState == CANCELLED;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return mState != PENDING;
+  }
+
+  @Override
+  public synchronized V get() throws InterruptedException, ExecutionException {
+    while (mState == PENDING) {
+      wait();
+    }
+    return getResult();
+  }
+
+  @Override
+  public synchronized V get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException,
+      TimeoutException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (mState == PENDING) {
+      final long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new TimeoutException();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return getResult();
+  }
+
+  @Override
+  public void addListener(@NonNull Listener<? super V> listener) {
+    addListener(listener, null);
+  }
+
+  @Override
+  public void addListener(@NonNull final Listener<? super V> listener, @Nullable final ThreadQueue queue) {
+    final Runnable notification = new Runnable() {
+      @Override
+      public void run() {
+        if (queue != null) {
+          queue.execute(new Runnable() {
+            @Override
+            public void run() {
+              notifyListener(listener);
+            }
+          });
+        } else {
+          notifyListener(listener);
+        }
+      }
+    };
+    synchronized (this) {
+      if (mState == PENDING) {
+        mListeners.add(notification);
+        return;
+      }
+    }
+    notification.run();
+  }
+
+  @NonNull
+  @Override
+  public <R> ListenableFuture<R> then(@NonNull Function<? super V, ? extends R> function) {
+    return thenOn(null, function);
+  }
+
+  @NonNull
+  @Override
+  public <R> ListenableFuture<R> thenOn(@Nullable ThreadQueue queue,
+                                       @NonNull final Function<? super V, ? extends R> function) {
+    final Promise<R> next = new Stage<>(this);
+    addListener(new Listener<V>() {
+      @Override
+      public void onSuccess(@Nullable V value) {
+        if (!next.isDone()) {
+          try {
+            next.set(function.apply(value));
+          } catch (Exception e) {
+            next.setException(e);
+          }
+        }
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable e) {
+        next.fail(e);
+      }
+    }, queue);
+    return next;
+  }
+
+  @NonNull
+  @Override
+  public ListenableFuture<V> withTimeout(long timeout, @NonNull TimeUnit unit) {
+    final Promise<V> next = new Stage<>(this);
+    final ScheduledFuture<?> timer = TimerExecutor.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (next.setException(new TimeoutException())) {
+          cancel(true);
+        }
+      }
+    }, timeout, unit);
+    addListener(new Listener<V>() {
+      @Override
+      public void onSuccess(@Nullable V value) {
+        timer.cancel(false);
+        next.set(value);
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable e) {
+        timer.cancel(false);
+        next.fail(e);
+      }
+    });
+    return next;
+  }
+
+  protected void onCancelled(boolean mayInterruptIfRunning) {
+
+  }
+
+  void fail(@NonNull Throwable e) {
+    if (e instanceof CancellationException) {
+      cancel(false);
+    } else {
+      setException(e);
+    }
+  }
+
+  private boolean complete(int state, V value, Throwable error) {
+    final List<Runnable> listeners;
+    synchronized (this) {
+      if (mState != PENDING) {
+        return false;
+      }
+      mState = state;
+      mValue = value;
+      mError = error;
+      notifyAll();
+      listeners = new ArrayList<>(mListeners);
+      mListeners.clear();
+    }
+    for (final Runnable listener : listeners) {
+      listener.run();
+    }
+    return true;
+  }
+
+  private V getResult() throws ExecutionException {
+    if (mState == SUCCESS) {
+      return mValue;
+    } else if (mState == CANCELLED) {
+      throw new CancellationException();
+    }
+    throw new ExecutionException(mError);
+  }
+
+  private void notifyListener(Listener<? super V> listener) {
+    final int state;
+    final V value;
+    final Throwable error;
+    synchronized (this) {
+      state = mState;
+      value = mValue;
+      error = mError;
+    }
+    if (state == SUCCESS) {
+      listener.onSuccess(value);
+    } else {
+      listener.onFailure(error);
+    }
+  }
+
+  private static final class Stage<V> extends Promise<V> {
+
+    private final ListenableFuture<?> mSource;
+
+    Stage(@NonNull ListenableFuture<?> source) {
+      mSource = source;
+    }
+
+    @Override
+    protected void onCancelled(boolean mayInterruptIfRunning) {
+      mSource.cancel(mayInterruptIfRunning);
+    }
+
+  }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.exzogeni.dk.concurrent;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Single daemon thread shared by timeouts, delays and periodic cleanups of the library.
+ * Scheduled tasks must be short, blocking work is handed off to {@link AsyncQueue}.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class TimerExecutor extends ScheduledThreadPoolExecutor {
+
+  private TimerExecutor() {
+    super(1, new NamedThreadFactory("timer", true));
+  }
+
+  public static TimerExecutor get() {
+    return InstanceHolder.INSTANCE;
+  }
+
+  private static final class InstanceHolder {
+
+    public static final TimerExecutor INSTANCE = new TimerExecutor();
+
+  }
+
+}
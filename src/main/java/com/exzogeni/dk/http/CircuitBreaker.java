@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.log.Logger;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per host circuit breaker. Keeps the outcome of the last calls in a sliding window and opens when the share of
+ * failed (no response or 5xx) or slow calls reaches the threshold. While open calls fail fast, after the open
+ * interval a limited number of probes is let through (half-open): all of them succeeding closes the breaker,
+ * any failure opens it again.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class CircuitBreaker {
+
+  private final String mHost;
+
+  private final Config mConfig;
+
+  private final List<Listener> mListeners;
+
+  private final boolean[] mFailures;
+
+  private int mPosition;
+
+  private int mCount;
+
+  private int mFailureCount;
+
+  private State mState = State.CLOSED;
+
+  private long mStateSince;
+
+  private int mProbesIssued;
+
+  private int mProbesSucceeded;
+
+  CircuitBreaker(@NonNull String host, @NonNull Config config, @NonNull List<Listener> listeners) {
+    mHost = host;
+    mConfig = config;
+    mListeners = listeners;
+    mFailures = new boolean[config.mWindowSize];
+  }
+
+  @NonNull
+  public String getHost() {
+    return mHost;
+  }
+
+  @NonNull
+  public synchronized State getState() {
+    return mState;
+  }
+
+  /**
+   * @return share of failed or slow calls in the current window
+   */
+  public synchronized float getFailureRate() {
+    if (mCount == 0) {
+      return 0f;
+    }
+    return (float) mFailureCount / mCount;
+  }
+
+  /**
+   * @return true if a call may be sent now
+   */
+  boolean tryAcquire() {
+    final State from;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      if (mState == State.CLOSED) {
+        return true;
+      }
+      if (mState == State.OPEN) {
+        if (now - mStateSince < mConfig.mOpenNanos) {
+          return false;
+        }
+        from = setState(State.HALF_OPEN, now);
+      } else {
+        if (mProbesIssued >= mConfig.mProbes) {
+          if (now - mStateSince < mConfig.mOpenNanos) {
+            return false;
+          }
+          mProbesIssued = 0;
+          mStateSince = now;
+        }
+        from = null;
+      }
+      mProbesIssued++;
+    }
+    if (from != null) {
+      notifyStateChanged(from, State.HALF_OPEN);
+    }
+    return true;
+  }
+
+  void onResult(int statusCode, long latencyMs) {
+    final boolean failed = statusCode <= 0 || statusCode >= 500 || latencyMs >= mConfig.mSlowCallMs;
+    final State from;
+    final State to;
+    synchronized (this) {
+      from = mState;
+      if (mState == State.HALF_OPEN) {
+        if (failed) {
+          setState(State.OPEN, System.nanoTime());
+        } else if (++mProbesSucceeded >= mConfig.mProbes) {
+          setState(State.CLOSED, System.nanoTime());
+        }
+      } else if (mState == State.CLOSED) {
+        record(failed);
+        if (mCount >= mConfig.mMinCalls && mFailureCount >= mConfig.mFailureRatio * mCount) {
+          setState(State.OPEN, System.nanoTime());
+        }
+      }
+      to = mState;
+    }
+    if (from != to) {
+      notifyStateChanged(from, to);
+    }
+  }
+
+  private void record(boolean failed) {
+    if (mCount == mFailures.length) {
+      if (mFailures[mPosition]) {
+        mFailureCount--;
+      }
+    } else {
+      mCount++;
+    }
+    mFailures[mPosition] = failed;
+    if (failed) {
+      mFailureCount++;
+    }
+    mPosition = (mPosition + 1) % mFailures.length;
+  }
+
+  private State setState(@NonNull State state, long now) {
+    final State from = mState;
+    mState = state;
+    mStateSince = now;
+    mProbesIssued = 0;
+    mProbesSucceeded = 0;
+    if (state == State.CLOSED) {
+      mPosition = 0;
+      mCount = 0;
+      mFailureCount = 0;
+    }
+    return from;
+  }
+
+  private void notifyStateChanged(@NonNull State from, @NonNull State to) {
+    Logger.debug("%s circuit %s -> %s", mHost, from, to);
+    for (final Listener listener : mListeners) {
+      listener.onStateChanged(this, from, to);
+    }
+  }
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  public interface Listener {
+
+    void onStateChanged(@NonNull CircuitBreaker breaker, @NonNull State from, @NonNull State to);
+
+  }
+
+  static final class Config {
+
+    final int mWindowSize;
+
+    final int mMinCalls;
+
+    final float mFailureRatio;
+
+    final long mSlowCallMs;
+
+    final long mOpenNanos;
+
+    final int mProbes;
+
+    Config(int windowSize, float failureRatio, long slowCallMs, long openMs, int probes) {
+      if (windowSize <= 0) {
+        throw new IllegalArgumentException("windowSize must be positive int");
+      }
+      if (failureRatio <= 0 || failureRatio > 1) {
+        throw new IllegalArgumentException("failureRatio must be in (0, 1]");
+      }
+      if (slowCallMs <= 0) {
+        throw new IllegalArgumentException("slowCallMs must be positive long");
+      }
+      if (openMs <= 0) {
+        throw new IllegalArgumentException("openMs must be positive long");
+      }
+      if (probes <= 0) {
+        throw new IllegalArgumentException("probes must be positive int");
+      }
+      mWindowSize = windowSize;
+      mMinCalls = Math.max(1, windowSize / 2);
+      mFailureRatio = failureRatio;
+      mSlowCallMs = slowCallMs;
+      mOpenNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+      mProbes = probes;
+    }
+
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * Decoded body of a compressed response. The Content-Length header is dropped for such a response because it
+ * counts the compressed bytes, this stream keeps it together with the compressed bytes read so far, so progress
+ * can still be reported against the length on the wire.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class DecodedInputStream extends FilterInputStream {
+
+  private final CountingInputStream mWire;
+
+  private final long mWireLength;
+
+  DecodedInputStream(@NonNull InputStream decoded, @NonNull CountingInputStream wire, long wireLength) {
+    super(decoded);
+    mWire = wire;
+    mWireLength = wireLength;
+  }
+
+  /**
+   * @return compressed body length or -1 if unknown
+   */
+  public long getWireLength() {
+    return mWireLength;
+  }
+
+  /**
+   * @return compressed bytes read from the connection so far
+   */
+  public long getWireBytesRead() {
+    return mWire.getByteCount();
+  }
+
+}
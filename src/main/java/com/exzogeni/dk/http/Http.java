@@ -18,6 +18,8 @@ package com.exzogeni.dk.http;
 
 import android.support.annotation.NonNull;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -64,6 +66,16 @@ public final class Http {
     return HTTP_MANAGER.get().newTask(method, url);
   }
 
+  @NonNull
+  public static HttpDownload download(@NonNull String url, @NonNull File file, int segments) {
+    return HTTP_MANAGER.get().download(url, file, segments);
+  }
+
+  @NonNull
+  public static HttpOutbox openOutbox(@NonNull File dir, int concurrency) throws IOException {
+    return HTTP_MANAGER.get().openOutbox(dir, concurrency);
+  }
+
   public interface Method {
     String HEAD = "HEAD";
     String GET = "GET";
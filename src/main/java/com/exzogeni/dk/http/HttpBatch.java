@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.concurrent.ListenableFuture;
+import com.exzogeni.dk.concurrent.Promise;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregate handle of {@link HttpManager#submitAll}. Completes with the results in task order, cancelling it
+ * cancels every task of the batch.
+ *
+ * @author Daniel Serdyukov
+ */
+public class HttpBatch<V> extends Promise<List<V>> {
+
+  private final AtomicInteger mNext = new AtomicInteger();
+
+  private final AtomicInteger mCompleted = new AtomicInteger();
+
+  private final List<HttpTask<V>> mTasks;
+
+  private final Mode mMode;
+
+  private final Listener<V> mListener;
+
+  private final Object[] mValues;
+
+  private final Throwable[] mErrors;
+
+  HttpBatch(@NonNull Collection<? extends HttpTask<V>> tasks, @NonNull Mode mode, @Nullable Listener<V> listener) {
+    mTasks = new ArrayList<>(tasks);
+    mMode = mode;
+    mListener = listener;
+    mValues = new Object[mTasks.size()];
+    mErrors = new Throwable[mTasks.size()];
+  }
+
+  public int getTaskCount() {
+    return mTasks.size();
+  }
+
+  public int getCompletedCount() {
+    return mCompleted.get();
+  }
+
+  @Nullable
+  public synchronized Throwable getError(int index) {
+    return mErrors[index];
+  }
+
+  @Override
+  protected void onCancelled(boolean mayInterruptIfRunning) {
+    for (final HttpTask<V> task : mTasks) {
+      task.cancel();
+    }
+  }
+
+  void start(int parallelism) {
+    if (mTasks.isEmpty()) {
+      set(Collections.<V>emptyList());
+      return;
+    }
+    for (int i = Math.min(parallelism, mTasks.size()); i > 0; --i) {
+      launch();
+    }
+  }
+
+  private void launch() {
+    final int index = mNext.getAndIncrement();
+    if (index >= mTasks.size() || isDone()) {
+      return;
+    }
+    final HttpTask<V> task = mTasks.get(index);
+    task.submit().addListener(new ListenableFuture.Listener<V>() {
+      @Override
+      public void onSuccess(@Nullable V value) {
+        synchronized (HttpBatch.this) {
+          mValues[index] = value;
+        }
+        if (mListener != null && !isDone()) {
+          mListener.onResult(index, task, value);
+        }
+        onTaskFinished();
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable e) {
+        synchronized (HttpBatch.this) {
+          mErrors[index] = e;
+        }
+        if (mListener != null && !isDone()) {
+          mListener.onError(index, task, e);
+        }
+        if (mMode == Mode.FAIL_FAST && setException(e)) {
+          onCancelled(true);
+        }
+        onTaskFinished();
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private void onTaskFinished() {
+    if (mCompleted.incrementAndGet() == mTasks.size()) {
+      final Object[] values;
+      synchronized (this) {
+        values = mValues.clone();
+      }
+      set(Collections.unmodifiableList(Arrays.asList((V[]) values)));
+    } else {
+      launch();
+    }
+  }
+
+  public enum Mode {
+    FAIL_FAST,
+    COLLECT_ALL
+  }
+
+  public interface Listener<V> {
+
+    void onResult(int index, @NonNull HttpTask<V> task, @Nullable V value);
+
+    void onError(int index, @NonNull HttpTask<V> task, @NonNull Throwable e);
+
+  }
+
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.AtomicFile;
+
+import com.exzogeni.dk.concurrent.ListenableFuture;
+import com.exzogeni.dk.concurrent.Promise;
+import com.exzogeni.dk.http.cache.CachePolicy;
+import com.exzogeni.dk.http.callback.HttpCallback;
+import com.exzogeni.dk.io.BufferPoolInputStream;
+import com.exzogeni.dk.io.BufferPoolOutputStream;
+import com.exzogeni.dk.io.ByteBufferPool;
+import com.exzogeni.dk.log.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Handle of {@link HttpManager#download}. The resource is probed with a HEAD request and, if the server accepts
+ * byte ranges, fetched in parallel segments into a preallocated file. If the resource has a strong ETag or
+ * a Last-Modified date, finished bytes are checkpointed next to the file, so starting the same download again
+ * continues where it stopped; without a validator the download always starts over. Servers without range support
+ * are downloaded with a single request. Cancelling the download cancels every request and keeps the checkpoint.
+ *
+ * @author Daniel Serdyukov
+ */
+public class HttpDownload extends Promise<File> {
+
+  private static final int STATE_VERSION = 1;
+
+  private static final long CHECKPOINT_BYTES = 1024 * 1024;
+
+  private static final String CONTENT_LENGTH = "Content-Length";
+
+  private static final String ACCEPT_RANGES = "Accept-Ranges";
+
+  private static final String ETAG = "ETag";
+
+  private static final String LAST_MODIFIED = "Last-Modified";
+
+  private static final String RANGE = "Range";
+
+  private static final String IF_RANGE = "If-Range";
+
+  private final List<HttpTask<?>> mTasks = new CopyOnWriteArrayList<>();
+
+  private final AtomicInteger mRemaining = new AtomicInteger();
+
+  private final AtomicLong mDownloaded = new AtomicLong();
+
+  private final Object mLock = new Object();
+
+  private final HttpManager mHttpManager;
+
+  private final String mUrl;
+
+  private final File mFile;
+
+  private final File mStateFile;
+
+  private final int mSegments;
+
+  private volatile long mContentLength = -1;
+
+  private String mValidator;
+
+  private long[] mStarts;
+
+  private long[] mEnds;
+
+  private long[] mPositions;
+
+  /**
+   * Positions written so far, ahead of the checkpointed {@link #mPositions}.
+   */
+  private volatile AtomicLongArray mWritten;
+
+  private boolean mInvalid;
+
+  HttpDownload(@NonNull HttpManager manager, @NonNull String url, @NonNull File file, int segments) {
+    mHttpManager = manager;
+    mUrl = url;
+    mFile = file;
+    mStateFile = new File(file.getPath() + ".part");
+    mSegments = segments;
+  }
+
+  @Nullable
+  private static String getHeader(@NonNull Map<String, List<String>> headers, @NonNull String name) {
+    for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  private static long parseLength(@Nullable String value) {
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        Logger.quiet("%s", e);
+      }
+    }
+    return -1;
+  }
+
+  @NonNull
+  public File getFile() {
+    return mFile;
+  }
+
+  /**
+   * @return resource length in bytes or -1 if it is not known yet
+   */
+  public long getContentLength() {
+    return mContentLength;
+  }
+
+  public long getDownloadedBytes() {
+    final AtomicLongArray written = mWritten;
+    if (written == null) {
+      return mDownloaded.get();
+    }
+    // segment starts are set before mWritten is published and never change
+    long downloaded = 0;
+    for (int i = 0; i < mStarts.length; ++i) {
+      downloaded += written.get(i) - mStarts[i];
+    }
+    return downloaded;
+  }
+
+  @Override
+  protected void onCancelled(boolean mayInterruptIfRunning) {
+    for (final HttpTask<?> task : mTasks) {
+      task.cancel();
+    }
+    saveStateQuietly();
+  }
+
+  void start() {
+    final HttpTask<Map<String, List<String>>> probe = mHttpManager.newTask(Http.Method.HEAD, mUrl);
+    probe.addHeader(HttpEncoding.ACCEPT_ENCODING, HttpEncoding.IDENTITY);
+    probe.setCallback(new HttpCallback<Map<String, List<String>>>() {
+      @Override
+      public Map<String, List<String>> onSuccess(int statusCode, @NonNull Map<String, List<String>> headers,
+                                                 @NonNull InputStream content) throws Exception {
+        if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+          throw new IOException(HttpStatus.getStatusLine(statusCode));
+        }
+        return headers;
+      }
+
+      @Override
+      public void onException(@NonNull HttpException e) {
+        Logger.error(e);
+      }
+    });
+    submit(probe, new ListenableFuture.Listener<Map<String, List<String>>>() {
+      @Override
+      public void onSuccess(@Nullable Map<String, List<String>> headers) {
+        try {
+          onProbe(headers);
+        } catch (IOException e) {
+          onFailure(e);
+        }
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable e) {
+        setException(e);
+      }
+    });
+  }
+
+  private void onProbe(@NonNull Map<String, List<String>> headers) throws IOException {
+    final long length = parseLength(getHeader(headers, CONTENT_LENGTH));
+    if (length <= 0 || !"bytes".equalsIgnoreCase(getHeader(headers, ACCEPT_RANGES))) {
+      Logger.debug("%s ranges are not supported, downloading in one request", mUrl);
+      launchSingle();
+      return;
+    }
+    mContentLength = length;
+    String validator = getHeader(headers, ETAG);
+    if (validator == null || validator.startsWith("W/")) {
+      validator = getHeader(headers, LAST_MODIFIED);
+    }
+    synchronized (mLock) {
+      if (!restoreState(length, validator)) {
+        createState(length, validator);
+      }
+      for (int i = 0; i < mPositions.length; ++i) {
+        if (mPositions[i] <= mEnds[i]) {
+          mRemaining.incrementAndGet();
+        }
+      }
+    }
+    if (mRemaining.get() == 0) {
+      complete();
+      return;
+    }
+    for (int i = 0; i < mPositions.length; ++i) {
+      launchSegment(i);
+    }
+  }
+
+  private void launchSingle() {
+    final HttpTask<Void> task = mHttpManager.newTask(Http.Method.GET, mUrl);
+    task.setCachePolicy(CachePolicy.NO_CACHE);
+    task.setCallback(new HttpCallback<Void>() {
+      @Override
+      public Void onSuccess(int statusCode, @NonNull Map<String, List<String>> headers,
+                            @NonNull InputStream content) throws Exception {
+        if (statusCode != HttpURLConnection.HTTP_OK) {
+          throw new IOException(HttpStatus.getStatusLine(statusCode));
+        }
+        mContentLength = parseLength(getHeader(headers, CONTENT_LENGTH));
+        mDownloaded.set(0);
+        final FileOutputStream fos = new FileOutputStream(mFile);
+        final byte[] buffer = ByteBufferPool.getInstance().obtain();
+        try {
+          int read;
+          while ((read = content.read(buffer)) != -1) {
+            fos.write(buffer, 0, read);
+            mDownloaded.addAndGet(read);
+          }
+          fos.getFD().sync();
+        } finally {
+          ByteBufferPool.getInstance().free(buffer);
+          IOUtils.closeQuietly(fos);
+        }
+        return null;
+      }
+
+      @Override
+      public void onException(@NonNull HttpException e) {
+        Logger.error(e);
+      }
+    });
+    submit(task, new ListenableFuture.Listener<Void>() {
+      @Override
+      public void onSuccess(@Nullable Void value) {
+        set(mFile);
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable e) {
+        setException(e);
+      }
+    });
+  }
+
+  private void launchSegment(final int index) {
+    final long start;
+    final long end;
+    final String validator;
+    synchronized (mLock) {
+      start = mPositions[index];
+      end = mEnds[index];
+      validator = mValidator;
+    }
+    if (start > end || isDone()) {
+      return;
+    }
+    final HttpTask<Void> task = mHttpManager.newTask(Http.Method.GET, mUrl);
+    task.setCachePolicy(CachePolicy.NO_CACHE);
+    task.addHeader(HttpEncoding.ACCEPT_ENCODING, HttpEncoding.IDENTITY);
+    task.addHeader(RANGE, "bytes=" + start + "-" + end);
+    if (validator != null) {
+      task.addHeader(IF_RANGE, validator);
+    }
+    task.setCallback(new HttpCallback<Void>() {
+      @Override
+      public Void onSuccess(int statusCode, @NonNull Map<String, List<String>> headers,
+                            @NonNull InputStream content) throws Exception {
+        if (statusCode == HttpURLConnection.HTTP_OK) {
+          synchronized (mLock) {
+            mInvalid = true;
+          }
+          throw new IOException(mUrl + " has changed since the download was started");
+        }
+        if (statusCode != HttpURLConnection.HTTP_PARTIAL) {
+          throw new IOException(HttpStatus.getStatusLine(statusCode));
+        }
+        writeSegment(index, start, end, content);
+        return null;
+      }
+
+      @Override
+      public void onException(@NonNull HttpException e) {
+        Logger.error(e);
+      }
+    });
+    submit(task, new ListenableFuture.Listener<Void>() {
+      @Override
+      public void onSuccess(@Nullable Void value) {
+        if (mRemaining.decrementAndGet() == 0) {
+          complete();
+        }
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable e) {
+        saveStateQuietly();
+        if (setException(e)) {
+          onCancelled(true);
+        }
+      }
+    });
+  }
+
+  private <V> void submit(@NonNull HttpTask<V> task, @NonNull ListenableFuture.Listener<V> listener) {
+    mTasks.add(task);
+    if (isCancelled()) {
+      task.cancel();
+    }
+    task.submit().addListener(listener);
+  }
+
+  private void writeSegment(int index, long start, long end, @NonNull InputStream content) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    final byte[] buffer = ByteBufferPool.getInstance().obtain();
+    try {
+      final FileChannel channel = file.getChannel();
+      long position = start;
+      long checkpoint = start;
+      mWritten.set(index, position);
+      try {
+        int read;
+        while (position <= end
+            && (read = content.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1))) != -1) {
+          final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+          while (chunk.hasRemaining()) {
+            position += channel.write(chunk, position);
+          }
+          mWritten.set(index, position);
+          if (position - checkpoint >= CHECKPOINT_BYTES) {
+            channel.force(false);
+            checkpoint(index, position);
+            checkpoint = position;
+          }
+        }
+      } catch (IOException e) {
+        // keep the bytes that arrived before the connection broke for the next attempt
+        if (position > checkpoint) {
+          try {
+            channel.force(false);
+            checkpoint(index, position);
+          } catch (IOException ce) {
+            Logger.quiet("%s", ce);
+          }
+        }
+        throw e;
+      }
+      channel.force(false);
+      checkpoint(index, position);
+      if (position <= end) {
+        throw new EOFException("Segment " + index + " ended at " + position + " of " + end);
+      }
+    } finally {
+      ByteBufferPool.getInstance().free(buffer);
+      IOUtils.closeQuietly(file);
+    }
+  }
+
+  private void checkpoint(int index, long position) throws IOException {
+    synchronized (mLock) {
+      mPositions[index] = position;
+      saveState();
+    }
+  }
+
+  private void complete() {
+    synchronized (mLock) {
+      new AtomicFile(mStateFile).delete();
+      mInvalid = true;
+    }
+    set(mFile);
+  }
+
+  private boolean restoreState(long length, @Nullable String validator) {
+    if (validator == null || !mStateFile.exists() || mFile.length() != length) {
+      return false;
+    }
+    final FileInputStream fis;
+    try {
+      fis = new AtomicFile(mStateFile).openRead();
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    final DataInputStream dat = new DataInputStream(new BufferPoolInputStream(fis));
+    try {
+      if (dat.readInt() != STATE_VERSION || !mUrl.equals(dat.readUTF()) || dat.readLong() != length
+          || !validator.equals(dat.readUTF())) {
+        return false;
+      }
+      final int segments = dat.readInt();
+      final long[] starts = new long[segments];
+      final long[] ends = new long[segments];
+      final long[] positions = new long[segments];
+      long downloaded = 0;
+      for (int i = 0; i < segments; ++i) {
+        starts[i] = dat.readLong();
+        ends[i] = dat.readLong();
+        positions[i] = dat.readLong();
+        downloaded += positions[i] - starts[i];
+      }
+      mValidator = validator;
+      mStarts = starts;
+      mEnds = ends;
+      mPositions = positions;
+      mWritten = new AtomicLongArray(positions);
+      Logger.debug("%s resumed at %d of %d bytes", mUrl, downloaded, length);
+      return true;
+    } catch (IOException e) {
+      Logger.quiet("%s", e);
+      return false;
+    } finally {
+      IOUtils.closeQuietly(dat);
+    }
+  }
+
+  private void createState(long length, @Nullable String validator) throws IOException {
+    final File dir = mFile.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Couldn't create directory " + dir);
+    }
+    final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      file.setLength(length);
+    } finally {
+      IOUtils.closeQuietly(file);
+    }
+    final int segments = (int) Math.min(mSegments, length);
+    final long size = (length + segments - 1) / segments;
+    mValidator = validator;
+    mStarts = new long[segments];
+    mEnds = new long[segments];
+    mPositions = new long[segments];
+    for (int i = 0; i < segments; ++i) {
+      mStarts[i] = i * size;
+      mEnds[i] = Math.min(length, (i + 1) * size) - 1;
+      mPositions[i] = mStarts[i];
+    }
+    mWritten = new AtomicLongArray(mPositions);
+    saveState();
+  }
+
+  private void saveStateQuietly() {
+    try {
+      synchronized (mLock) {
+        saveState();
+      }
+    } catch (IOException e) {
+      Logger.quiet("%s", e);
+    }
+  }
+
+  private void saveState() throws IOException {
+    final AtomicFile af = new AtomicFile(mStateFile);
+    if (mInvalid || mValidator == null) {
+      // bytes of a resource without a validator can't be safely continued with If-Range
+      af.delete();
+      return;
+    }
+    if (mPositions == null) {
+      return;
+    }
+    final FileOutputStream fos = af.startWrite();
+    try {
+      final DataOutputStream dat = new DataOutputStream(new BufferPoolOutputStream(fos));
+      dat.writeInt(STATE_VERSION);
+      dat.writeUTF(mUrl);
+      dat.writeLong(mContentLength);
+      dat.writeUTF(mValidator);
+      dat.writeInt(mPositions.length);
+      for (int i = 0; i < mPositions.length; ++i) {
+        dat.writeLong(mStarts[i]);
+        dat.writeLong(mEnds[i]);
+        dat.writeLong(mPositions[i]);
+      }
+      IOUtils.closeQuietly(dat);
+      af.finishWrite(fos);
+    } catch (IOException e) {
+      af.failWrite(fos);
+      throw e;
+    }
+  }
+
+}
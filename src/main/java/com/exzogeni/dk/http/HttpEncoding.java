@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.io.GzipPoolInputStream;
+import com.exzogeni.dk.io.InflaterPoolInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public final class HttpEncoding {
+
+  public static final String GZIP = "gzip";
+
+  public static final String DEFLATE = "deflate";
+
+  public static final String IDENTITY = "identity";
+
+  public static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+  public static final String CONTENT_ENCODING = "Content-Encoding";
+
+  static final String ACCEPT_ENCODING_VALUE = GZIP + ", " + DEFLATE;
+
+  private static final String X_GZIP = "x-gzip";
+
+  private HttpEncoding() {
+  }
+
+  /**
+   * @return supported content coding of the response, or null if the content is not encoded
+   */
+  @Nullable
+  public static String getContentEncoding(@NonNull Map<String, List<String>> headers) {
+    for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (CONTENT_ENCODING.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        final String encoding = header.getValue().get(0).trim().toLowerCase();
+        if (GZIP.equals(encoding) || X_GZIP.equals(encoding)) {
+          return GZIP;
+        } else if (DEFLATE.equals(encoding)) {
+          return DEFLATE;
+        }
+      }
+    }
+    return null;
+  }
+
+  @NonNull
+  public static InputStream decode(@NonNull InputStream content, @Nullable String encoding) throws IOException {
+    if (GZIP.equals(encoding)) {
+      return new GzipPoolInputStream(content);
+    } else if (DEFLATE.equals(encoding)) {
+      final PushbackInputStream stream = new PushbackInputStream(content, 2);
+      return new InflaterPoolInputStream(stream, !isZlibWrapped(stream));
+    }
+    return content;
+  }
+
+  private static boolean isZlibWrapped(PushbackInputStream stream) throws IOException {
+    final int cmf = stream.read();
+    if (cmf == -1) {
+      return true;
+    }
+    final int flg = stream.read();
+    if (flg == -1) {
+      stream.unread(cmf);
+      return true;
+    }
+    stream.unread(flg);
+    stream.unread(cmf);
+    return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+  }
+
+}
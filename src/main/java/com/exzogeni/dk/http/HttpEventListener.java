@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the lifecycle events of every task of a {@link HttpManager}. All timestamps come from
+ * {@link System#nanoTime()}. Methods are called on the threads that execute the tasks, so they must be fast
+ * and must not throw. Connection events repeat for every attempt of a retried or hedged request.
+ *
+ * @author Daniel Serdyukov
+ */
+public abstract class HttpEventListener {
+
+  public static final HttpEventListener NONE = new HttpEventListener() {
+  };
+
+  public void onQueued(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  public void onDequeued(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  public void onCacheLookupStart(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  public void onCacheLookupEnd(@NonNull HttpTask<?> task, long nanoTime, boolean hit) {
+  }
+
+  public void onConnectStart(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  public void onConnectEnd(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  /**
+   * Request headers and body (if any) have been handed to the connection.
+   */
+  public void onRequestSent(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  /**
+   * Response status line and headers have been received.
+   */
+  public void onFirstByte(@NonNull HttpTask<?> task, long nanoTime, int statusCode) {
+  }
+
+  /**
+   * Response body has been read to the end or closed.
+   */
+  public void onBodyComplete(@NonNull HttpTask<?> task, long nanoTime, long bytesRead) {
+  }
+
+  public void onCallbackStart(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  public void onCallbackEnd(@NonNull HttpTask<?> task, long nanoTime) {
+  }
+
+  public void onFailure(@NonNull HttpTask<?> task, long nanoTime, @NonNull Throwable e) {
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.concurrent.ListenableFutureTask;
+import com.exzogeni.dk.concurrent.ThreadQueue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Single in-flight request shared by all identical tasks submitted while it is running.
+ *
+ * @author Daniel Serdyukov
+ */
+final class HttpFlight {
+
+  private final List<FutureTask<?>> mFollowers = new ArrayList<>();
+
+  private final String mKey;
+
+  private final ThreadQueue mQueue;
+
+  private boolean mLanded;
+
+  private int mStatusCode;
+
+  private Map<String, List<String>> mHeaders;
+
+  private byte[] mContent;
+
+  private Exception mError;
+
+  HttpFlight(@NonNull String key, @NonNull ThreadQueue queue) {
+    mKey = key;
+    mQueue = queue;
+  }
+
+  @NonNull
+  String getKey() {
+    return mKey;
+  }
+
+  @Nullable
+  synchronized <V> ListenableFutureTask<V> join(@NonNull final HttpTask<V> task) {
+    if (mLanded) {
+      return null;
+    }
+    final ListenableFutureTask<V> future = new ListenableFutureTask<>(new Callable<V>() {
+      @Override
+      public V call() throws Exception {
+        return task.onFlightLanded(HttpFlight.this);
+      }
+    });
+    mFollowers.add(future);
+    return future;
+  }
+
+  /**
+   * Lands the flight unless it has followers that are not cancelled.
+   */
+  synchronized boolean abandon() {
+    for (final FutureTask<?> follower : mFollowers) {
+      if (!follower.isCancelled()) {
+        return false;
+      }
+    }
+    mLanded = true;
+    return true;
+  }
+
+  synchronized boolean land() {
+    mLanded = true;
+    return !mFollowers.isEmpty();
+  }
+
+  void complete(int statusCode, @NonNull Map<String, List<String>> headers, @NonNull byte[] content) {
+    synchronized (this) {
+      mStatusCode = statusCode;
+      mHeaders = headers;
+      mContent = content;
+    }
+    dispatch();
+  }
+
+  void fail(@NonNull Exception e) {
+    synchronized (this) {
+      mError = e;
+    }
+    dispatch();
+  }
+
+  synchronized int getStatusCode() throws Exception {
+    if (mError != null) {
+      throw mError;
+    }
+    return mStatusCode;
+  }
+
+  @NonNull
+  synchronized Map<String, List<String>> getHeaders() {
+    return mHeaders;
+  }
+
+  @NonNull
+  synchronized ByteArrayInputStream getContent() {
+    return new ByteArrayInputStream(mContent);
+  }
+
+  private void dispatch() {
+    final List<FutureTask<?>> followers;
+    synchronized (this) {
+      mLanded = true;
+      followers = new ArrayList<>(mFollowers);
+      mFollowers.clear();
+    }
+    for (final FutureTask<?> follower : followers) {
+      mQueue.execute(follower);
+    }
+  }
+
+}
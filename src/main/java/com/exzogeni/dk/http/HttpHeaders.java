@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.net.HttpURLConnection;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable case-insensitive header multimap backed by a flat name/value array. Modifications return a new
+ * instance, so a snapshot can be shared between tasks without copying.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class HttpHeaders extends AbstractMap<String, List<String>> {
+
+  public static final HttpHeaders EMPTY = new HttpHeaders(new String[0]);
+
+  private final String[] mFields;
+
+  private volatile Set<Entry<String, List<String>>> mEntrySet;
+
+  private HttpHeaders(@NonNull String[] fields) {
+    mFields = fields;
+  }
+
+  @NonNull
+  public static HttpHeaders of(@Nullable Map<String, List<String>> headers) {
+    if (headers == null || headers.isEmpty()) {
+      return EMPTY;
+    }
+    if (headers instanceof HttpHeaders) {
+      return (HttpHeaders) headers;
+    }
+    final Builder builder = new Builder(headers.size());
+    for (final Entry<String, List<String>> header : headers.entrySet()) {
+      if (header.getKey() != null) {
+        for (final String value : header.getValue()) {
+          builder.add(header.getKey(), value);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  @NonNull
+  static HttpHeaders of(@NonNull HttpURLConnection cn) {
+    final Builder builder = new Builder(16);
+    String value;
+    for (int i = 0; (value = cn.getHeaderField(i)) != null; ++i) {
+      final String name = cn.getHeaderFieldKey(i);
+      if (name != null) {
+        builder.add(name, value);
+      }
+    }
+    return builder.build();
+  }
+
+  public int fieldCount() {
+    return mFields.length / 2;
+  }
+
+  @NonNull
+  public String nameAt(int index) {
+    return mFields[index * 2];
+  }
+
+  @NonNull
+  public String valueAt(int index) {
+    return mFields[index * 2 + 1];
+  }
+
+  @Nullable
+  public String getFirst(@NonNull String name) {
+    for (int i = 0; i < mFields.length; i += 2) {
+      if (name.equalsIgnoreCase(mFields[i])) {
+        return mFields[i + 1];
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  @Override
+  public List<String> get(Object name) {
+    if (!(name instanceof String)) {
+      return null;
+    }
+    List<String> values = null;
+    for (int i = 0; i < mFields.length; i += 2) {
+      if (((String) name).equalsIgnoreCase(mFields[i])) {
+        if (values == null) {
+          values = new ArrayList<>(1);
+        }
+        values.add(mFields[i + 1]);
+      }
+    }
+    if (values != null) {
+      return Collections.unmodifiableList(values);
+    }
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(Object name) {
+    return name instanceof String && getFirst((String) name) != null;
+  }
+
+  @Override
+  public int size() {
+    return entrySet().size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return mFields.length == 0;
+  }
+
+  @NonNull
+  @Override
+  public Set<Entry<String, List<String>>> entrySet() {
+    if (mEntrySet == null) {
+      final Map<String, List<String>> headers = new LinkedHashMap<>();
+      for (int i = 0; i < mFields.length; i += 2) {
+        final String name = getCanonicalName(headers, mFields[i]);
+        List<String> values = headers.get(name);
+        if (values == null) {
+          values = new ArrayList<>(1);
+          headers.put(name, values);
+        }
+        values.add(mFields[i + 1]);
+      }
+      for (final Entry<String, List<String>> header : headers.entrySet()) {
+        header.setValue(Collections.unmodifiableList(header.getValue()));
+      }
+      mEntrySet = Collections.unmodifiableSet(headers.entrySet());
+    }
+    return mEntrySet;
+  }
+
+  @NonNull
+  public HttpHeaders set(@NonNull String name, @NonNull String... values) {
+    final Builder builder = new Builder(fieldCount() + values.length);
+    for (int i = 0; i < mFields.length; i += 2) {
+      if (!name.equalsIgnoreCase(mFields[i])) {
+        builder.add(mFields[i], mFields[i + 1]);
+      }
+    }
+    for (final String value : values) {
+      builder.add(name, value);
+    }
+    return builder.build();
+  }
+
+  @NonNull
+  public HttpHeaders setAll(@NonNull Map<String, List<String>> headers) {
+    HttpHeaders result = this;
+    for (final Entry<String, List<String>> header : headers.entrySet()) {
+      if (header.getKey() != null) {
+        final List<String> values = header.getValue();
+        result = result.set(header.getKey(), values.toArray(new String[values.size()]));
+      }
+    }
+    return result;
+  }
+
+  @NonNull
+  public HttpHeaders without(@NonNull String... names) {
+    final Builder builder = new Builder(fieldCount());
+    for (int i = 0; i < mFields.length; i += 2) {
+      if (!containsIgnoreCase(names, mFields[i])) {
+        builder.add(mFields[i], mFields[i + 1]);
+      }
+    }
+    if (builder.mSize * 2 == mFields.length) {
+      return this;
+    }
+    return builder.build();
+  }
+
+  private static boolean containsIgnoreCase(String[] names, String name) {
+    for (final String candidate : names) {
+      if (candidate.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String getCanonicalName(Map<String, List<String>> headers, String name) {
+    for (final String candidate : headers.keySet()) {
+      if (candidate.equalsIgnoreCase(name)) {
+        return candidate;
+      }
+    }
+    return name;
+  }
+
+  public static final class Builder {
+
+    private String[] mFields;
+
+    private int mSize;
+
+    public Builder() {
+      this(8);
+    }
+
+    public Builder(int capacity) {
+      mFields = new String[Math.max(capacity, 1) * 2];
+    }
+
+    @NonNull
+    public Builder add(@NonNull String name, @NonNull String value) {
+      if (mSize * 2 == mFields.length) {
+        mFields = Arrays.copyOf(mFields, mFields.length * 2);
+      }
+      mFields[mSize * 2] = name;
+      mFields[mSize * 2 + 1] = value;
+      ++mSize;
+      return this;
+    }
+
+    /**
+     * Replaces all values of the field.
+     */
+    @NonNull
+    public Builder set(@NonNull String name, @NonNull String value) {
+      return removeAll(name).add(name, value);
+    }
+
+    @NonNull
+    public Builder removeAll(@NonNull String name) {
+      int size = 0;
+      for (int i = 0; i < mSize; ++i) {
+        if (!name.equalsIgnoreCase(mFields[i * 2])) {
+          mFields[size * 2] = mFields[i * 2];
+          mFields[size * 2 + 1] = mFields[i * 2 + 1];
+          ++size;
+        }
+      }
+      Arrays.fill(mFields, size * 2, mSize * 2, null);
+      mSize = size;
+      return this;
+    }
+
+    /**
+     * @return first value of the field, or null
+     */
+    @Nullable
+    public String get(@NonNull String name) {
+      for (int i = 0; i < mSize; ++i) {
+        if (name.equalsIgnoreCase(mFields[i * 2])) {
+          return mFields[i * 2 + 1];
+        }
+      }
+      return null;
+    }
+
+    @NonNull
+    public HttpHeaders build() {
+      if (mSize == 0) {
+        return EMPTY;
+      }
+      if (mSize * 2 == mFields.length) {
+        return new HttpHeaders(mFields.clone());
+      }
+      return new HttpHeaders(Arrays.copyOf(mFields, mSize * 2));
+    }
+
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.concurrent.ThreadQueue;
+import com.exzogeni.dk.concurrent.TimerExecutor;
+import com.exzogeni.dk.log.Logger;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races a delayed second copy of a request against the first one. The connection that returns its response
+ * headers first wins, the other one is disconnected.
+ *
+ * @author Daniel Serdyukov
+ */
+final class HttpHedge implements Runnable {
+
+  private static final int IDLE = 0;
+
+  private static final int QUEUED = 1;
+
+  private static final int RUNNING = 2;
+
+  private static final int FINISHED = 3;
+
+  private final HttpTask<?> mTask;
+
+  private final URI mUri;
+
+  private final ThreadQueue mQueue;
+
+  private HttpURLConnection mPrimary;
+
+  private HttpURLConnection mSecondary;
+
+  private HttpURLConnection mWinner;
+
+  private ScheduledFuture<?> mTimer;
+
+  private int mSecondaryState = IDLE;
+
+  private boolean mAbandoned;
+
+  HttpHedge(@NonNull HttpTask<?> task, @NonNull URI uri, @NonNull ThreadQueue queue) {
+    mTask = task;
+    mUri = uri;
+    mQueue = queue;
+  }
+
+  @NonNull
+  HttpURLConnection open(long delayMs) throws Exception {
+    synchronized (this) {
+      mTimer = TimerExecutor.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          launch();
+        }
+      }, delayMs, TimeUnit.MILLISECONDS);
+    }
+    final HttpURLConnection cn = mTask.newConnection(mUri);
+    synchronized (this) {
+      mPrimary = cn;
+    }
+    try {
+      mTask.exchange(cn);
+    } catch (Exception e) {
+      cn.disconnect();
+      synchronized (this) {
+        if (mWinner == null && mSecondaryState < RUNNING) {
+          mAbandoned = true;
+          mTimer.cancel(false);
+          throw e;
+        }
+        while (mWinner == null && mSecondaryState != FINISHED) {
+          wait();
+        }
+        if (mWinner != null) {
+          return mWinner;
+        }
+      }
+      throw e;
+    }
+    if (win(cn)) {
+      return cn;
+    }
+    cn.disconnect();
+    synchronized (this) {
+      return mWinner;
+    }
+  }
+
+  @Override
+  public void run() {
+    synchronized (this) {
+      if (mWinner != null || mAbandoned) {
+        mSecondaryState = FINISHED;
+        notifyAll();
+        return;
+      }
+      mSecondaryState = RUNNING;
+    }
+    HttpURLConnection cn = null;
+    try {
+      cn = mTask.newConnection(mUri);
+      synchronized (this) {
+        mSecondary = cn;
+      }
+      mTask.exchange(cn);
+      if (!win(cn)) {
+        cn.disconnect();
+      }
+    } catch (Exception e) {
+      Logger.debug("%s hedge failed: %s", mTask, e);
+      if (cn != null) {
+        cn.disconnect();
+      }
+    } finally {
+      synchronized (this) {
+        mSecondaryState = FINISHED;
+        notifyAll();
+      }
+    }
+  }
+
+  private void launch() {
+    synchronized (this) {
+      if (mWinner != null || mAbandoned || !mTask.acquireHedge()) {
+        return;
+      }
+      mSecondaryState = QUEUED;
+    }
+    Logger.debug("%s hedged", mTask);
+    mQueue.execute(this);
+  }
+
+  private boolean win(HttpURLConnection cn) {
+    final HttpURLConnection loser;
+    synchronized (this) {
+      if (mWinner != null || mAbandoned) {
+        return false;
+      }
+      mWinner = cn;
+      mTimer.cancel(false);
+      loser = (cn == mPrimary) ? mSecondary : mPrimary;
+      notifyAll();
+    }
+    if (loser != null) {
+      loser.disconnect();
+    }
+    return true;
+  }
+
+}
@@ -17,21 +17,40 @@
 package com.exzogeni.dk.http;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 
 import com.exzogeni.dk.concurrent.AsyncQueue;
+import com.exzogeni.dk.concurrent.ListenableFuture;
+import com.exzogeni.dk.concurrent.Promise;
+import com.exzogeni.dk.concurrent.TimerExecutor;
 import com.exzogeni.dk.http.cache.CacheManager;
+import com.exzogeni.dk.http.cookie.CookieJar;
+import com.exzogeni.dk.http.dns.Dns;
+import com.exzogeni.dk.http.dns.DnsCache;
 import com.exzogeni.dk.http.task.HttpFactory;
+import com.exzogeni.dk.http.task.RetryPolicy;
+import com.exzogeni.dk.http.transport.ConnectionPool;
+import com.exzogeni.dk.http.transport.HttpTransport;
 import com.exzogeni.dk.log.Logger;
 
-import java.net.CookieManager;
+import java.io.File;
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Daniel Serdyukov
@@ -40,41 +59,111 @@ public class HttpManager {
 
   private static final long SLOW_LOG_THRESHOLD = 3000;
 
+  private static final int MAX_REQUESTS = Runtime.getRuntime().availableProcessors() + 1;
+
+  private static final int MAX_REQUESTS_PER_HOST = 4;
+
+  private static final float RETRY_BUDGET_RATIO = 0.2f;
+
+  private static final int RETRY_BUDGET_MAX = 10;
+
+  private static final float HEDGE_BUDGET_RATIO = 0.05f;
+
+  private static final int HEDGE_BUDGET_MAX = 10;
+
+  private static final int LATENCY_WINDOW = 128;
+
+  private static final int LATENCY_MIN_SAMPLES = 20;
+
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  private static final long MAX_RETRY_AFTER_MS = TimeUnit.MINUTES.toMillis(10);
+
   private final AtomicInteger mTimeoutMs = new AtomicInteger(30000);
 
+  private final AtomicLong mCallTimeoutMs = new AtomicLong();
+
+  private final AtomicReference<AdaptiveTimeouts> mAdaptiveTimeouts = new AtomicReference<>();
+
   private final AtomicBoolean mLogging = new AtomicBoolean();
 
+  private final AtomicLong mSlowRequestThresholdMs = new AtomicLong(SLOW_LOG_THRESHOLD);
+
+  private final HttpMetrics mMetrics = new HttpMetrics();
+
+  private final AtomicReference<HttpEventListener> mEventListener = new AtomicReference<>(HttpEventListener.NONE);
+
+  private final AtomicBoolean mCoalescing = new AtomicBoolean(true);
+
+  private final AtomicLong mCompressionThreshold = new AtomicLong(-1);
+
+  private final AtomicReference<HttpTransport> mTransport = new AtomicReference<>(HttpTransport.DEFAULT);
+
+  private final AtomicReference<ConnectionPool> mConnectionPool = new AtomicReference<>(new ConnectionPool());
+
+  private final AtomicReference<Dns> mDns = new AtomicReference<Dns>(new DnsCache());
+
+  private final AtomicReference<RetryPolicy> mRetryPolicy = new AtomicReference<>(RetryPolicy.DEFAULT);
+
+  private final ConcurrentMap<String, RetryBudget> mRetryBudgets = new ConcurrentHashMap<>();
+
+  private volatile float mRetryBudgetRatio = RETRY_BUDGET_RATIO;
+
+  private volatile int mRetryBudgetMax = RETRY_BUDGET_MAX;
+
+  private final AtomicReference<RetryBudget> mHedgeBudget = new AtomicReference<>(
+      new RetryBudget(HEDGE_BUDGET_RATIO, HEDGE_BUDGET_MAX));
+
+  private final ConcurrentMap<String, LatencyWindow> mFirstByteLatency = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, LatencyWindow> mConnectLatency = new ConcurrentHashMap<>();
+
+  private final AtomicReference<CircuitBreaker.Config> mCircuitBreakerConfig = new AtomicReference<>();
+
+  private final ConcurrentMap<String, CircuitBreaker> mCircuitBreakers = new ConcurrentHashMap<>();
+
+  private final List<CircuitBreaker.Listener> mCircuitBreakerListeners = new CopyOnWriteArrayList<>();
+
+  private final ConcurrentMap<String, RateLimiter> mRateLimiters = new ConcurrentHashMap<>();
+
   private final AsyncQueue mAsyncQueue;
 
+  private final HttpScheduler mScheduler;
+
   private final HttpFactory mFactory;
 
-  private final CookieManager mCookieManager;
+  private final CookieHandler mCookieManager;
 
   private final CacheManager mCacheManager;
 
-  private final Map<String, List<String>> mHeaders = new ConcurrentHashMap<>();
+  private final AtomicReference<HttpHeaders> mHeaders = new AtomicReference<>(HttpHeaders.EMPTY);
+
+  private final Set<HttpTask<?>> mTasks = Collections.newSetFromMap(new ConcurrentHashMap<HttpTask<?>, Boolean>());
+
+  private final ConcurrentMap<String, HttpFlight> mFlights = new ConcurrentHashMap<>();
 
   public HttpManager() {
     this(AsyncQueue.get());
   }
 
   public HttpManager(@NonNull AsyncQueue queue) {
-    this(queue, new CookieManager(), new CacheManager());
+    this(queue, new CookieJar(), new CacheManager());
   }
 
-  public HttpManager(@NonNull CookieManager cookieManager,
+  public HttpManager(@NonNull CookieHandler cookieManager,
                      @NonNull CacheManager cacheManager) {
     this(AsyncQueue.get(), cookieManager, cacheManager);
   }
 
-  public HttpManager(@NonNull AsyncQueue queue, @NonNull CookieManager cookieManager,
+  public HttpManager(@NonNull AsyncQueue queue, @NonNull CookieHandler cookieManager,
                      @NonNull CacheManager cacheManager) {
     this(queue, HttpFactory.DEFAULT, cookieManager, cacheManager);
   }
 
-  public HttpManager(@NonNull AsyncQueue queue, @NonNull HttpFactory factory, @NonNull CookieManager cookieManager,
+  public HttpManager(@NonNull AsyncQueue queue, @NonNull HttpFactory factory, @NonNull CookieHandler cookieManager,
                      @NonNull CacheManager cacheManager) {
     mAsyncQueue = queue;
+    mScheduler = new HttpScheduler(queue, MAX_REQUESTS, MAX_REQUESTS_PER_HOST);
     mFactory = factory;
     mCookieManager = cookieManager;
     mCacheManager = cacheManager;
@@ -88,15 +177,113 @@ public class HttpManager {
     throw new IllegalArgumentException("timeoutMs must be positive int");
   }
 
+  /**
+   * Derives connect and read timeouts of tasks without an explicit timeout from the observed connect and
+   * first byte latency of their host: the latency at the given percentile times the multiplier, bounded by
+   * floor and ceiling. Until a host has enough samples the regular timeout is used.
+   */
   @NonNull
-  public HttpManager addHeader(@NonNull String key, @NonNull String... values) {
-    List<String> headers = mHeaders.get(key);
-    if (headers == null) {
-      headers = new CopyOnWriteArrayList<>();
-      mHeaders.put(key, headers);
+  public HttpManager setAdaptiveTimeouts(double percentile, float multiplier, int floorMs, int ceilingMs) {
+    final AdaptiveTimeouts adaptive = new AdaptiveTimeouts(percentile, multiplier, floorMs, ceilingMs);
+    mAdaptiveTimeouts.compareAndSet(mAdaptiveTimeouts.get(), adaptive);
+    return this;
+  }
+
+  @NonNull
+  public HttpManager clearAdaptiveTimeouts() {
+    mAdaptiveTimeouts.compareAndSet(mAdaptiveTimeouts.get(), null);
+    return this;
+  }
+
+  /**
+   * Enables a circuit breaker per host.
+   *
+   * @param windowSize   number of recent calls the failure rate is computed over
+   * @param failureRatio share of failed calls (no response, 5xx or too slow) that opens the circuit
+   * @param slowCallMs   calls taking at least this long to respond count as failed
+   * @param openMs       time calls fail fast before probes are let through
+   * @param probes       calls let through while half-open, all of them must succeed to close the circuit
+   */
+  @NonNull
+  public HttpManager setCircuitBreaker(int windowSize, float failureRatio, long slowCallMs, long openMs,
+                                       int probes) {
+    final CircuitBreaker.Config config = new CircuitBreaker.Config(windowSize, failureRatio, slowCallMs, openMs,
+        probes);
+    mCircuitBreakerConfig.compareAndSet(mCircuitBreakerConfig.get(), config);
+    mCircuitBreakers.clear();
+    return this;
+  }
+
+  @NonNull
+  public HttpManager clearCircuitBreaker() {
+    mCircuitBreakerConfig.compareAndSet(mCircuitBreakerConfig.get(), null);
+    mCircuitBreakers.clear();
+    return this;
+  }
+
+  @NonNull
+  public HttpManager addCircuitBreakerListener(@NonNull CircuitBreaker.Listener listener) {
+    mCircuitBreakerListeners.add(listener);
+    return this;
+  }
+
+  @NonNull
+  public HttpManager removeCircuitBreakerListener(@NonNull CircuitBreaker.Listener listener) {
+    mCircuitBreakerListeners.remove(listener);
+    return this;
+  }
+
+  /**
+   * @return breaker of the host, or null if circuit breaking is disabled or the host has not been called yet
+   */
+  @Nullable
+  public CircuitBreaker getCircuitBreaker(@NonNull String host) {
+    return mCircuitBreakers.get(host);
+  }
+
+  /**
+   * Limits the request rate to a host (e.g. "api.example.com") or to urls starting with a prefix
+   * (e.g. "https://api.example.com/v1/search"). Only the most specific limiter applies to a task: the longest
+   * matching prefix, otherwise the host limiter. Requests over the rate are scheduled later instead of failing,
+   * Retry-After of 429 and 503 responses pauses the limiter.
+   *
+   * @param burst requests that may be sent at once after an idle period
+   */
+  @NonNull
+  public HttpManager setRateLimit(@NonNull String hostOrPrefix, double permitsPerSecond, int burst) {
+    mRateLimiters.put(hostOrPrefix, new RateLimiter(hostOrPrefix, permitsPerSecond, burst));
+    return this;
+  }
+
+  @NonNull
+  public HttpManager removeRateLimit(@NonNull String hostOrPrefix) {
+    mRateLimiters.remove(hostOrPrefix);
+    return this;
+  }
+
+  @Nullable
+  public RateLimiter getRateLimiter(@NonNull String hostOrPrefix) {
+    return mRateLimiters.get(hostOrPrefix);
+  }
+
+  /**
+   * @param timeoutMs limit for the whole call, including retries and reading the body, 0 for no limit
+   */
+  @NonNull
+  public HttpManager setCallTimeoutMs(long timeoutMs) {
+    if (timeoutMs < 0) {
+      throw new IllegalArgumentException("timeoutMs must be non-negative long");
     }
-    headers.clear();
-    Collections.addAll(headers, values);
+    mCallTimeoutMs.compareAndSet(mCallTimeoutMs.get(), timeoutMs);
+    return this;
+  }
+
+  @NonNull
+  public HttpManager addHeader(@NonNull String key, @NonNull String... values) {
+    HttpHeaders headers;
+    do {
+      headers = mHeaders.get();
+    } while (!mHeaders.compareAndSet(headers, headers.set(key, values)));
     return this;
   }
 
@@ -106,24 +293,410 @@ public class HttpManager {
     return this;
   }
 
+  /**
+   * @param thresholdMs requests running longer than this are logged as slow
+   */
+  @NonNull
+  public HttpManager setSlowRequestThresholdMs(long thresholdMs) {
+    if (thresholdMs <= 0) {
+      throw new IllegalArgumentException("thresholdMs must be positive long");
+    }
+    mSlowRequestThresholdMs.compareAndSet(mSlowRequestThresholdMs.get(), thresholdMs);
+    return this;
+  }
+
+  @NonNull
+  public HttpMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  @NonNull
+  public HttpManager setEventListener(@Nullable HttpEventListener listener) {
+    mEventListener.compareAndSet(mEventListener.get(), listener != null ? listener : HttpEventListener.NONE);
+    return this;
+  }
+
+  @NonNull
+  public HttpManager setCoalescingEnabled(boolean enabled) {
+    mCoalescing.compareAndSet(mCoalescing.get(), enabled);
+    return this;
+  }
+
+  /**
+   * @param threshold gzip request bodies of at least this many bytes (or of unknown length), -1 to disable
+   */
+  @NonNull
+  public HttpManager setCompressionThreshold(long threshold) {
+    mCompressionThreshold.set(threshold);
+    return this;
+  }
+
+  @NonNull
+  public HttpManager setMaxRequests(int maxRequests) {
+    if (maxRequests > 0) {
+      mScheduler.setMaxRequests(maxRequests);
+      return this;
+    }
+    throw new IllegalArgumentException("maxRequests must be positive int");
+  }
+
+  @NonNull
+  public HttpManager setMaxRequestsPerHost(int maxRequests) {
+    if (maxRequests > 0) {
+      mScheduler.setMaxRequestsPerHost(maxRequests);
+      return this;
+    }
+    throw new IllegalArgumentException("maxRequests must be positive int");
+  }
+
+  @NonNull
+  public HttpManager setMaxRequestsPerHost(@NonNull String host, int maxRequests) {
+    if (maxRequests > 0) {
+      mScheduler.setMaxRequestsPerHost(host, maxRequests);
+      return this;
+    }
+    throw new IllegalArgumentException("maxRequests must be positive int");
+  }
+
+  @NonNull
+  public HttpManager setTransport(@NonNull HttpTransport transport) {
+    mTransport.compareAndSet(mTransport.get(), transport);
+    return this;
+  }
+
+  /**
+   * The pool and its counters only cover {@link com.exzogeni.dk.http.transport.NioTransport}, with the default
+   * transport connections are kept alive by the platform and {@link ConnectionPool#getReuseRate()} stays 0.
+   */
+  @NonNull
+  public HttpManager setConnectionPool(@NonNull ConnectionPool pool) {
+    final ConnectionPool oldPool = mConnectionPool.get();
+    if (mConnectionPool.compareAndSet(oldPool, pool) && oldPool != pool) {
+      oldPool.evictAll();
+    }
+    return this;
+  }
+
+  /**
+   * @see #setConnectionPool(ConnectionPool)
+   */
+  @NonNull
+  public ConnectionPool getConnectionPool() {
+    return mConnectionPool.get();
+  }
+
+  /**
+   * The resolver is used by {@link com.exzogeni.dk.http.transport.NioTransport} for plain-text http only,
+   * the default transport and https connections resolve hosts through the platform.
+   */
+  @NonNull
+  public HttpManager setDns(@NonNull Dns dns) {
+    mDns.compareAndSet(mDns.get(), dns);
+    return this;
+  }
+
+  @NonNull
+  public Dns getDns() {
+    return mDns.get();
+  }
+
+  /**
+   * Resolves the hosts in background if the resolver is a {@link DnsCache}. Like the resolver itself, this only
+   * speeds up plain-text http requests of {@link com.exzogeni.dk.http.transport.NioTransport}.
+   */
+  @NonNull
+  public HttpManager prefetchDns(@NonNull String... hosts) {
+    final Dns dns = mDns.get();
+    if (dns instanceof DnsCache) {
+      ((DnsCache) dns).prefetch(hosts);
+    }
+    return this;
+  }
+
+  @NonNull
+  public HttpManager setRetryPolicy(@NonNull RetryPolicy policy) {
+    mRetryPolicy.compareAndSet(mRetryPolicy.get(), policy);
+    return this;
+  }
+
+  @NonNull
+  public HttpManager setRetryBudget(float ratio, int maxRetries) {
+    if (ratio >= 0 && maxRetries >= 0) {
+      mRetryBudgetRatio = ratio;
+      mRetryBudgetMax = maxRetries;
+      mRetryBudgets.clear();
+      return this;
+    }
+    throw new IllegalArgumentException("ratio and maxRetries must not be negative");
+  }
+
+  @NonNull
+  public HttpManager setHedgeBudget(float ratio, int maxHedges) {
+    if (ratio >= 0 && maxHedges >= 0) {
+      mHedgeBudget.set(new RetryBudget(ratio, maxHedges));
+      return this;
+    }
+    throw new IllegalArgumentException("ratio and maxHedges must not be negative");
+  }
+
+  public int getQueueDepth(@NonNull String host) {
+    return mScheduler.getQueueDepth(host);
+  }
+
+  @NonNull
+  public Map<String, Integer> getQueueDepth() {
+    return mScheduler.getQueueDepth();
+  }
+
+  @NonNull
+  public <V> HttpBatch<V> submitAll(@NonNull Collection<? extends HttpTask<V>> tasks, int parallelism) {
+    return submitAll(tasks, parallelism, HttpBatch.Mode.COLLECT_ALL, null);
+  }
+
+  @NonNull
+  public <V> HttpBatch<V> submitAll(@NonNull Collection<? extends HttpTask<V>> tasks, int parallelism,
+                                    @NonNull HttpBatch.Mode mode, @Nullable HttpBatch.Listener<V> listener) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive int");
+    }
+    final HttpBatch<V> batch = new HttpBatch<>(tasks, mode, listener);
+    batch.start(parallelism);
+    return batch;
+  }
+
+  /**
+   * @param segments number of byte ranges fetched in parallel when the server supports them
+   */
+  @NonNull
+  public HttpDownload download(@NonNull String url, @NonNull File file, int segments) {
+    if (segments <= 0) {
+      throw new IllegalArgumentException("segments must be positive int");
+    }
+    final HttpDownload download = new HttpDownload(this, url, file, segments);
+    download.start();
+    return download;
+  }
+
+  /**
+   * Opens the durable request queue kept in the directory, pending requests of a previous process are replayed
+   * right away. Only one outbox may be open over a directory at a time. Performs disc IO.
+   *
+   * @param concurrency number of requests sent at a time
+   */
+  @NonNull
+  public HttpOutbox openOutbox(@NonNull File dir, int concurrency) throws IOException {
+    if (concurrency <= 0) {
+      throw new IllegalArgumentException("concurrency must be positive int");
+    }
+    final HttpOutbox outbox = new HttpOutbox(this, dir, concurrency);
+    outbox.open();
+    return outbox;
+  }
+
+  public void cancel(@NonNull Object tag) {
+    for (final HttpTask<?> task : mTasks) {
+      if (tag.equals(task.getTag())) {
+        task.cancel();
+      }
+    }
+  }
+
+  public void cancelAll() {
+    for (final HttpTask<?> task : mTasks) {
+      task.cancel();
+    }
+  }
+
   //@hide
 
   <V> HttpTask<V> newTask(@NonNull String method, @NonNull String url) {
     final HttpTask<V> task = mFactory.newHttpTask(method, url);
     task.setHttpManager(this);
-    task.setTimeoutMs(mTimeoutMs.get());
-    task.addHeaders(Collections.unmodifiableMap(mHeaders));
+    task.setCallTimeoutMs(mCallTimeoutMs.get());
+    task.setRetryPolicy(mRetryPolicy.get());
+    task.setCompressionThreshold(mCompressionThreshold.get());
+    task.setHeaders(mHeaders.get());
     return task;
   }
 
   @NonNull
-  <V> Future<V> submit(@NonNull HttpTask<V> task) {
-    return mAsyncQueue.submit(task);
+  <V> ListenableFuture<V> submit(@NonNull HttpTask<V> task) {
+    mTasks.add(task);
+    task.onSubmit();
+    ListenableFuture<V> future = null;
+    if (mCoalescing.get() && task.isCoalescible()) {
+      final HttpFlight flight = new HttpFlight(task.getFlightKey(), mAsyncQueue);
+      final HttpFlight leader = mFlights.putIfAbsent(flight.getKey(), flight);
+      if (leader == null) {
+        task.setFlight(flight);
+      } else {
+        future = leader.join(task);
+      }
+    }
+    if (future == null) {
+      final TaskFuture<V> taskFuture = new TaskFuture<>(task);
+      taskFuture.throttle();
+      future = taskFuture;
+    }
+    task.setFuture(future);
+    return future;
+  }
+
+  /**
+   * @return delay the server asked for, 0 if none
+   */
+  long onRetryAfter(@NonNull HttpTask<?> task, @Nullable String retryAfter) {
+    if (TextUtils.isEmpty(retryAfter)) {
+      return 0;
+    }
+    long delayMs;
+    try {
+      delayMs = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+    } catch (NumberFormatException e) {
+      delayMs = HttpDate.parse(retryAfter).getTime() - System.currentTimeMillis();
+    }
+    if (delayMs <= 0) {
+      return 0;
+    }
+    delayMs = Math.min(delayMs, MAX_RETRY_AFTER_MS);
+    final RateLimiter limiter = findRateLimiter(task.getHost(), task.getUrl());
+    if (limiter != null) {
+      Logger.debug("%s paused for %d ms by %s", limiter.getKey(), delayMs, task);
+      limiter.pause(delayMs);
+    }
+    return delayMs;
+  }
+
+  void finished(@NonNull HttpTask<?> task) {
+    mTasks.remove(task);
+  }
+
+  void reprioritize(@NonNull HttpTask<?> task) {
+    mScheduler.reprioritize(task);
+  }
+
+  /**
+   * @return false if the flight still has followers to serve
+   */
+  boolean abandon(@NonNull HttpFlight flight) {
+    if (!flight.abandon()) {
+      return false;
+    }
+    mFlights.remove(flight.getKey(), flight);
+    return true;
+  }
+
+  boolean land(@NonNull HttpFlight flight) {
+    mFlights.remove(flight.getKey(), flight);
+    return flight.land();
+  }
+
+  void onRequest(@NonNull String host) {
+    getRetryBudget(host).deposit();
+    mHedgeBudget.get().deposit();
+  }
+
+  void onFirstByte(@NonNull String host, long latencyMs) {
+    getLatencyWindow(mFirstByteLatency, host).add(latencyMs);
+  }
+
+  @Nullable
+  private RateLimiter findRateLimiter(@NonNull String host, @NonNull String url) {
+    RateLimiter match = null;
+    for (final RateLimiter limiter : mRateLimiters.values()) {
+      if (limiter.matches(host, url) && (match == null || isMoreSpecific(limiter, match))) {
+        match = limiter;
+      }
+    }
+    return match;
+  }
+
+  private static boolean isMoreSpecific(@NonNull RateLimiter limiter, @NonNull RateLimiter than) {
+    final boolean prefix = limiter.getKey().indexOf('/') >= 0;
+    if (prefix != than.getKey().indexOf('/') >= 0) {
+      return prefix;
+    }
+    return limiter.getKey().length() > than.getKey().length();
+  }
+
+  @Nullable
+  CircuitBreaker obtainCircuitBreaker(@NonNull String host) {
+    final CircuitBreaker.Config config = mCircuitBreakerConfig.get();
+    if (config == null) {
+      return null;
+    }
+    CircuitBreaker breaker = mCircuitBreakers.get(host);
+    if (breaker == null) {
+      final CircuitBreaker newBreaker = new CircuitBreaker(host, config, mCircuitBreakerListeners);
+      breaker = mCircuitBreakers.putIfAbsent(host, newBreaker);
+      if (breaker == null) {
+        breaker = newBreaker;
+      }
+    }
+    return breaker;
+  }
+
+  void onConnect(@NonNull String host, long latencyMs) {
+    getLatencyWindow(mConnectLatency, host).add(latencyMs);
+  }
+
+  int getConnectTimeoutMs(@NonNull String host) {
+    return getAdaptiveTimeoutMs(mConnectLatency.get(host));
   }
 
-  void log(@NonNull HttpTask<?> task, long execTime, String statusLine) {
+  int getReadTimeoutMs(@NonNull String host) {
+    return getAdaptiveTimeoutMs(mFirstByteLatency.get(host));
+  }
+
+  private int getAdaptiveTimeoutMs(@Nullable LatencyWindow window) {
+    final AdaptiveTimeouts adaptive = mAdaptiveTimeouts.get();
+    if (adaptive == null || window == null || window.size() < LATENCY_MIN_SAMPLES) {
+      return mTimeoutMs.get();
+    }
+    return adaptive.getTimeoutMs(window.percentile(adaptive.mPercentile));
+  }
+
+  @NonNull
+  private LatencyWindow getLatencyWindow(@NonNull ConcurrentMap<String, LatencyWindow> windows,
+                                         @NonNull String host) {
+    LatencyWindow window = windows.get(host);
+    if (window == null) {
+      final LatencyWindow newWindow = new LatencyWindow(LATENCY_WINDOW);
+      window = windows.putIfAbsent(host, newWindow);
+      if (window == null) {
+        window = newWindow;
+      }
+    }
+    return window;
+  }
+
+  long getHedgeDelayMs(@NonNull String host) {
+    final LatencyWindow window = mFirstByteLatency.get(host);
+    if (window != null && window.size() >= LATENCY_MIN_SAMPLES) {
+      return window.percentile(HEDGE_PERCENTILE);
+    }
+    return -1;
+  }
+
+  boolean acquireHedge(@NonNull HttpTask<?> task) {
+    if (!mHedgeBudget.get().withdraw()) {
+      return false;
+    }
+    // a hedge is an extra request, it must not slip past the rate limit or a Retry-After pause
+    final RateLimiter limiter = findRateLimiter(task.getHost(), task.getUrl());
+    return limiter == null || limiter.tryAcquire();
+  }
+
+  boolean acquireRetry(@NonNull String host) {
+    return getRetryBudget(host).withdraw();
+  }
+
+  void log(@NonNull HttpTask<?> task, long execTimeNanos, int statusCode, long bytesIn, long bytesOut) {
+    mMetrics.onRequest(task.getMethodName(), task.getHost(), execTimeNanos, statusCode, bytesIn, bytesOut);
     if (mLogging.get()) {
-      if (execTime > SLOW_LOG_THRESHOLD) {
+      final long execTime = TimeUnit.NANOSECONDS.toMillis(execTimeNanos);
+      final String statusLine = HttpStatus.getStatusLine(statusCode);
+      if (execTime > mSlowRequestThresholdMs.get()) {
         Logger.error("%s - %s [%d ms] SLOW REQUEST", task, statusLine, execTime);
       } else {
         Logger.info("%s - %s [%d ms]", task, statusLine, execTime);
@@ -132,7 +705,35 @@ public class HttpManager {
   }
 
   @NonNull
-  CookieManager getCookieManager() {
+  private RetryBudget getRetryBudget(@NonNull String host) {
+    RetryBudget budget = mRetryBudgets.get(host);
+    if (budget == null) {
+      final RetryBudget newBudget = new RetryBudget(mRetryBudgetRatio, mRetryBudgetMax);
+      budget = mRetryBudgets.putIfAbsent(host, newBudget);
+      if (budget == null) {
+        budget = newBudget;
+      }
+    }
+    return budget;
+  }
+
+  @NonNull
+  HttpEventListener getEventListener() {
+    return mEventListener.get();
+  }
+
+  @NonNull
+  HttpTransport getTransport() {
+    return mTransport.get();
+  }
+
+  @NonNull
+  AsyncQueue getAsyncQueue() {
+    return mAsyncQueue;
+  }
+
+  @NonNull
+  CookieHandler getCookieManager() {
     return mCookieManager;
   }
 
@@ -141,4 +742,122 @@ public class HttpManager {
     return mCacheManager;
   }
 
+  private static final class AdaptiveTimeouts {
+
+    final double mPercentile;
+
+    final float mMultiplier;
+
+    final int mFloorMs;
+
+    final int mCeilingMs;
+
+    AdaptiveTimeouts(double percentile, float multiplier, int floorMs, int ceilingMs) {
+      if (percentile <= 0 || percentile > 1) {
+        throw new IllegalArgumentException("percentile must be in (0, 1]");
+      }
+      if (multiplier < 1) {
+        throw new IllegalArgumentException("multiplier must be at least 1");
+      }
+      if (floorMs <= 0 || ceilingMs < floorMs) {
+        throw new IllegalArgumentException("floorMs must be positive int not greater than ceilingMs");
+      }
+      mPercentile = percentile;
+      mMultiplier = multiplier;
+      mFloorMs = floorMs;
+      mCeilingMs = ceilingMs;
+    }
+
+    int getTimeoutMs(long latencyMs) {
+      return (int) Math.max(mFloorMs, Math.min(mCeilingMs, (long) Math.ceil(latencyMs * mMultiplier)));
+    }
+
+  }
+
+  /**
+   * Result of a submitted task. Each attempt runs as a separate scheduler call: a retry gives up the worker thread
+   * and the host slot for the backoff delay and is dispatched to the scheduler again.
+   */
+  private final class TaskFuture<V> extends Promise<V> implements ListenableFuture.Listener<V> {
+
+    private final AtomicReference<Future<V>> mCall = new AtomicReference<>();
+
+    private final HttpTask<V> mTask;
+
+    TaskFuture(@NonNull HttpTask<V> task) {
+      mTask = task;
+    }
+
+    @Override
+    public void onSuccess(@Nullable V value) {
+      set(value);
+    }
+
+    @Override
+    public void onFailure(@NonNull Throwable e) {
+      if (e instanceof HttpTask.Backoff) {
+        final long delayMs = ((HttpTask.Backoff) e).getDelayMs();
+        if (delayMs > 0) {
+          TimerExecutor.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+              throttle();
+            }
+          }, delayMs, TimeUnit.MILLISECONDS);
+        } else {
+          throttle();
+        }
+      } else {
+        setException(e);
+      }
+    }
+
+    @Override
+    protected void onCancelled(boolean mayInterruptIfRunning) {
+      mTask.cancel();
+      // a detached flight leader keeps running for its followers
+      if (mTask.isAborted()) {
+        final Future<V> call = mCall.get();
+        if (call != null) {
+          call.cancel(mayInterruptIfRunning);
+        }
+      }
+    }
+
+    /**
+     * Reserves a rate limiter token for the next attempt, a retry waits for the token like the first attempt.
+     */
+    void throttle() {
+      if (mTask.isAborted()) {
+        return;
+      }
+      final RateLimiter limiter = findRateLimiter(mTask.getHost(), mTask.getUrl());
+      final long delayNanos = limiter != null ? limiter.reserve() : 0;
+      if (delayNanos > 0) {
+        Logger.debug("%s delayed by %s for %d ms", mTask, limiter.getKey(), TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        TimerExecutor.get().schedule(new Runnable() {
+          @Override
+          public void run() {
+            dispatch();
+          }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+      } else {
+        dispatch();
+      }
+    }
+
+    void dispatch() {
+      if (mTask.isAborted()) {
+        return;
+      }
+      final ListenableFuture<V> call = mScheduler.submit(mTask);
+      mCall.set(call);
+      if (mTask.isAborted()) {
+        call.cancel(true);
+      }
+      call.addListener(this);
+    }
+
+  }
+
 }
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request metrics of a {@link HttpManager}: latency histograms per method and host, transferred body bytes,
+ * status codes, cache outcomes and time spent waiting in the scheduler. Recording never blocks.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class HttpMetrics {
+
+  private static final int MAX_STATUS_CODE = 600;
+
+  private final ConcurrentMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<>();
+
+  private final AtomicLongArray mStatusCodes = new AtomicLongArray(MAX_STATUS_CODE);
+
+  private final AtomicLong mCacheHits = new AtomicLong();
+
+  private final AtomicLong mCacheMisses = new AtomicLong();
+
+  private final AtomicLong mCacheRevalidations = new AtomicLong();
+
+  private final Histogram mQueueWait = new Histogram();
+
+  HttpMetrics() {
+  }
+
+  @NonNull
+  public Snapshot snapshot() {
+    final Map<String, EndpointSnapshot> endpoints = new TreeMap<>();
+    for (final Map.Entry<String, Endpoint> entry : mEndpoints.entrySet()) {
+      final Endpoint endpoint = entry.getValue();
+      endpoints.put(entry.getKey(), new EndpointSnapshot(endpoint.mLatency.snapshot(), endpoint.mErrors.get(),
+          endpoint.mBytesIn.get(), endpoint.mBytesOut.get()));
+    }
+    final Map<Integer, Long> statusCodes = new TreeMap<>();
+    for (int i = 0; i < MAX_STATUS_CODE; ++i) {
+      final long count = mStatusCodes.get(i);
+      if (count > 0) {
+        statusCodes.put(i, count);
+      }
+    }
+    return new Snapshot(endpoints, statusCodes, mCacheHits.get(), mCacheMisses.get(), mCacheRevalidations.get(),
+        mQueueWait.snapshot());
+  }
+
+  public void reset() {
+    mEndpoints.clear();
+    for (int i = 0; i < MAX_STATUS_CODE; ++i) {
+      mStatusCodes.set(i, 0);
+    }
+    mCacheHits.set(0);
+    mCacheMisses.set(0);
+    mCacheRevalidations.set(0);
+    mQueueWait.reset();
+  }
+
+  /**
+   * @return text dump of the current {@link #snapshot()}
+   */
+  @NonNull
+  public String dump() {
+    return snapshot().toString();
+  }
+
+  //@hide
+
+  void onRequest(@NonNull String method, @NonNull String host, long elapsedNanos, int statusCode,
+                 long bytesIn, long bytesOut) {
+    final Endpoint endpoint = getEndpoint(method + ' ' + host);
+    endpoint.mLatency.record(elapsedNanos);
+    endpoint.mBytesIn.addAndGet(bytesIn);
+    endpoint.mBytesOut.addAndGet(bytesOut);
+    if (statusCode > 0 && statusCode < MAX_STATUS_CODE) {
+      mStatusCodes.incrementAndGet(statusCode);
+    } else {
+      endpoint.mErrors.incrementAndGet();
+    }
+  }
+
+  void onQueueWait(long elapsedNanos) {
+    mQueueWait.record(elapsedNanos);
+  }
+
+  void onCacheHit() {
+    mCacheHits.incrementAndGet();
+  }
+
+  void onCacheMiss() {
+    mCacheMisses.incrementAndGet();
+  }
+
+  void onCacheRevalidation() {
+    mCacheRevalidations.incrementAndGet();
+  }
+
+  @NonNull
+  private Endpoint getEndpoint(@NonNull String key) {
+    Endpoint endpoint = mEndpoints.get(key);
+    if (endpoint == null) {
+      final Endpoint newEndpoint = new Endpoint();
+      endpoint = mEndpoints.putIfAbsent(key, newEndpoint);
+      if (endpoint == null) {
+        endpoint = newEndpoint;
+      }
+    }
+    return endpoint;
+  }
+
+  private static final class Endpoint {
+
+    final Histogram mLatency = new Histogram();
+
+    final AtomicLong mErrors = new AtomicLong();
+
+    final AtomicLong mBytesIn = new AtomicLong();
+
+    final AtomicLong mBytesOut = new AtomicLong();
+
+  }
+
+  /**
+   * Log-linear histogram of microsecond samples: 8 buckets per power of two, so a percentile is reported with
+   * at most 12.5% error.
+   */
+  private static final class Histogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = LINEAR_BUCKETS + (Long.SIZE - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mSum = new AtomicLong();
+
+    private final AtomicLong mMax = new AtomicLong();
+
+    private static int indexOf(long value) {
+      if (value < LINEAR_BUCKETS) {
+        return (int) value;
+      }
+      final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+      final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int index) {
+      if (index < LINEAR_BUCKETS) {
+        return index;
+      }
+      final int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+      final long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+      return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    void record(long nanos) {
+      final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+      mCounts.incrementAndGet(indexOf(micros));
+      mCount.incrementAndGet();
+      mSum.addAndGet(micros);
+      long max = mMax.get();
+      while (micros > max && !mMax.compareAndSet(max, micros)) {
+        max = mMax.get();
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; ++i) {
+        mCounts.set(i, 0);
+      }
+      mCount.set(0);
+      mSum.set(0);
+      mMax.set(0);
+    }
+
+    @NonNull
+    LatencySnapshot snapshot() {
+      final long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+        counts[i] = mCounts.get(i);
+        total += counts[i];
+      }
+      final long max = mMax.get();
+      return new LatencySnapshot(total, total > 0 ? mSum.get() / total : 0,
+          percentile(counts, total, 0.5, max), percentile(counts, total, 0.95, max),
+          percentile(counts, total, 0.99, max), max);
+    }
+
+    private static long percentile(long[] counts, long total, double percentile, long max) {
+      final long rank = (long) Math.ceil(percentile * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length; ++i) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return Math.min(upperBoundOf(i), max);
+        }
+      }
+      return 0;
+    }
+
+  }
+
+  /**
+   * Latency distribution, all values are in microseconds.
+   */
+  public static final class LatencySnapshot {
+
+    private final long mCount;
+
+    private final long mMean;
+
+    private final long mP50;
+
+    private final long mP95;
+
+    private final long mP99;
+
+    private final long mMax;
+
+    LatencySnapshot(long count, long mean, long p50, long p95, long p99, long max) {
+      mCount = count;
+      mMean = mean;
+      mP50 = p50;
+      mP95 = p95;
+      mP99 = p99;
+      mMax = max;
+    }
+
+    public long getCount() {
+      return mCount;
+    }
+
+    public long getMean() {
+      return mMean;
+    }
+
+    public long getP50() {
+      return mP50;
+    }
+
+    public long getP95() {
+      return mP95;
+    }
+
+    public long getP99() {
+      return mP99;
+    }
+
+    public long getMax() {
+      return mMax;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "count=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+          mCount, mMean / 1000.0, mP50 / 1000.0, mP95 / 1000.0, mP99 / 1000.0, mMax / 1000.0);
+    }
+
+  }
+
+  public static final class EndpointSnapshot {
+
+    private final LatencySnapshot mLatency;
+
+    private final long mErrors;
+
+    private final long mBytesIn;
+
+    private final long mBytesOut;
+
+    EndpointSnapshot(@NonNull LatencySnapshot latency, long errors, long bytesIn, long bytesOut) {
+      mLatency = latency;
+      mErrors = errors;
+      mBytesIn = bytesIn;
+      mBytesOut = bytesOut;
+    }
+
+    @NonNull
+    public LatencySnapshot getLatency() {
+      return mLatency;
+    }
+
+    /**
+     * @return requests that failed without a response
+     */
+    public long getErrors() {
+      return mErrors;
+    }
+
+    public long getBytesIn() {
+      return mBytesIn;
+    }
+
+    public long getBytesOut() {
+      return mBytesOut;
+    }
+
+    @Override
+    public String toString() {
+      return mLatency + " errors=" + mErrors + " in=" + mBytesIn + "B out=" + mBytesOut + "B";
+    }
+
+  }
+
+  public static final class Snapshot {
+
+    private final Map<String, EndpointSnapshot> mEndpoints;
+
+    private final Map<Integer, Long> mStatusCodes;
+
+    private final long mCacheHits;
+
+    private final long mCacheMisses;
+
+    private final long mCacheRevalidations;
+
+    private final LatencySnapshot mQueueWait;
+
+    Snapshot(@NonNull Map<String, EndpointSnapshot> endpoints, @NonNull Map<Integer, Long> statusCodes,
+             long cacheHits, long cacheMisses, long cacheRevalidations, @NonNull LatencySnapshot queueWait) {
+      mEndpoints = Collections.unmodifiableMap(endpoints);
+      mStatusCodes = Collections.unmodifiableMap(statusCodes);
+      mCacheHits = cacheHits;
+      mCacheMisses = cacheMisses;
+      mCacheRevalidations = cacheRevalidations;
+      mQueueWait = queueWait;
+    }
+
+    /**
+     * @return endpoint stats keyed by "METHOD host"
+     */
+    @NonNull
+    public Map<String, EndpointSnapshot> getEndpoints() {
+      return mEndpoints;
+    }
+
+    @NonNull
+    public Map<Integer, Long> getStatusCodes() {
+      return mStatusCodes;
+    }
+
+    public long getCacheHits() {
+      return mCacheHits;
+    }
+
+    public long getCacheMisses() {
+      return mCacheMisses;
+    }
+
+    public long getCacheRevalidations() {
+      return mCacheRevalidations;
+    }
+
+    @NonNull
+    public LatencySnapshot getQueueWait() {
+      return mQueueWait;
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder dump = new StringBuilder(256);
+      for (final Map.Entry<String, EndpointSnapshot> endpoint : mEndpoints.entrySet()) {
+        dump.append(endpoint.getKey()).append(": ").append(endpoint.getValue()).append('\n');
+      }
+      dump.append("status: ").append(mStatusCodes).append('\n');
+      dump.append("cache: hits=").append(mCacheHits).append(" misses=").append(mCacheMisses)
+          .append(" revalidations=").append(mCacheRevalidations).append('\n');
+      dump.append("queue wait: ").append(mQueueWait);
+      return dump.toString();
+    }
+
+  }
+
+}
@@ -0,0 +1,780 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.AtomicFile;
+
+import com.exzogeni.dk.concurrent.ListenableFuture;
+import com.exzogeni.dk.concurrent.TimerExecutor;
+import com.exzogeni.dk.http.body.FileBody;
+import com.exzogeni.dk.http.body.HttpBody;
+import com.exzogeni.dk.http.cache.CachePolicy;
+import com.exzogeni.dk.http.callback.HttpCallback;
+import com.exzogeni.dk.http.task.RetryPolicy;
+import com.exzogeni.dk.io.BufferPoolInputStream;
+import com.exzogeni.dk.io.BufferPoolOutputStream;
+import com.exzogeni.dk.log.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of outgoing requests, see {@link HttpManager#openOutbox}. Enqueued requests are written to an
+ * append-only journal (bodies go to separate files next to it) before they are sent, so a request made while the
+ * network is down is replayed once it comes back, even after the process was restarted. Only the headers added to
+ * the task are persisted, default headers of the {@link HttpManager} (e.g. Authorization) are applied as they are
+ * at the time the request is sent.
+ * <p/>
+ * Requests are dispatched in the order they were enqueued, at most {@code concurrency} at a time (use 1 to also
+ * complete them in order). A connection failure, 408, 429 or 5xx response stops the dispatch and keeps the request;
+ * the outbox retries with exponential backoff and {@link #replay()} retries immediately, e.g. from a connectivity
+ * change receiver. Any other response completes the request and is reported to the listeners. A request that keeps
+ * getting retryable responses is rejected after {@link #setMaxAttempts max attempts}, so it does not hold back the
+ * requests behind it forever.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class HttpOutbox {
+
+  private static final int JOURNAL_MAGIC = 0x484f4258;
+
+  private static final int JOURNAL_VERSION = 1;
+
+  private static final byte RECORD_ADD = 1;
+
+  private static final byte RECORD_DONE = 2;
+
+  private static final byte RECORD_ATTEMPT = 3;
+
+  private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+  private static final int COMPACT_THRESHOLD = 32;
+
+  private static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+  private static final long MIN_BACKOFF_MS = 1000;
+
+  private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+
+  private static final String JOURNAL = "journal";
+
+  private static final String BODY_SUFFIX = ".body";
+
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+  private final TreeMap<Long, Entry> mPending = new TreeMap<>();
+
+  private final Map<Long, Entry> mInFlight = new HashMap<>();
+
+  private final Object mLock = new Object();
+
+  private final HttpManager mHttpManager;
+
+  private final File mDir;
+
+  private final AtomicFile mJournal;
+
+  private final int mConcurrency;
+
+  private FileOutputStream mJournalStream;
+
+  private long mNextId = 1;
+
+  private int mLive;
+
+  private int mObsolete;
+
+  private boolean mSuspended;
+
+  private boolean mClosed;
+
+  private long mBackoffMs = MIN_BACKOFF_MS;
+
+  private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+  private long mMaxAgeMs;
+
+  private Future<?> mRetry;
+
+  HttpOutbox(@NonNull HttpManager manager, @NonNull File dir, int concurrency) {
+    mHttpManager = manager;
+    mDir = dir;
+    mJournal = new AtomicFile(new File(dir, JOURNAL));
+    mConcurrency = concurrency;
+  }
+
+  /**
+   * @param maxAttempts responses with a retryable status after which the request is rejected, connection failures
+   *                    are not counted
+   */
+  @NonNull
+  public HttpOutbox setMaxAttempts(int maxAttempts) {
+    if (maxAttempts <= 0) {
+      throw new IllegalArgumentException("maxAttempts must be positive int");
+    }
+    synchronized (mLock) {
+      mMaxAttempts = maxAttempts;
+    }
+    return this;
+  }
+
+  /**
+   * @param maxAgeMs time since enqueue after which a request that fails is rejected, 0 to keep it forever
+   */
+  @NonNull
+  public HttpOutbox setMaxAgeMs(long maxAgeMs) {
+    if (maxAgeMs < 0) {
+      throw new IllegalArgumentException("maxAgeMs must be non-negative long");
+    }
+    synchronized (mLock) {
+      mMaxAgeMs = maxAgeMs;
+    }
+    return this;
+  }
+
+  public void addListener(@NonNull Listener listener) {
+    mListeners.add(listener);
+  }
+
+  public void removeListener(@NonNull Listener listener) {
+    mListeners.remove(listener);
+  }
+
+  /**
+   * Persists method, url, headers and body of the task and schedules it for sending. The task itself is not
+   * submitted and its callback is not used, outcomes are reported to the {@link Listener}s.
+   * Performs disc IO, do not call it on the main thread.
+   */
+  @NonNull
+  public Entry enqueue(@NonNull HttpTask<?> task) throws IOException {
+    final HttpBody body = task.getRequestBody();
+    final long id;
+    synchronized (mLock) {
+      if (mClosed) {
+        throw new IOException("outbox " + mDir + " is closed");
+      }
+      id = mNextId++;
+    }
+    final Entry entry;
+    if (body != null) {
+      final File bodyFile = getBodyFile(id);
+      saveBody(bodyFile, body);
+      entry = new Entry(id, System.currentTimeMillis(), task.getMethodName(), task.getUrl(), task.getOwnHeaders(),
+          body.getContentType(), body.getContentEncoding(), bodyFile);
+    } else {
+      entry = new Entry(id, System.currentTimeMillis(), task.getMethodName(), task.getUrl(), task.getOwnHeaders(),
+          null, null, null);
+    }
+    synchronized (mLock) {
+      try {
+        appendRecord(encodeAdd(entry));
+      } catch (IOException e) {
+        deleteBody(entry);
+        throw e;
+      }
+      mPending.put(id, entry);
+      ++mLive;
+    }
+    Logger.debug("%s enqueued %s", this, entry);
+    dispatch();
+    return entry;
+  }
+
+  /**
+   * Sends the pending requests right away instead of waiting for the backoff to pass.
+   */
+  public void replay() {
+    synchronized (mLock) {
+      if (mRetry != null) {
+        mRetry.cancel(false);
+        mRetry = null;
+      }
+      mBackoffMs = MIN_BACKOFF_MS;
+      mSuspended = false;
+    }
+    dispatch();
+  }
+
+  /**
+   * @return number of requests not completed yet
+   */
+  public int size() {
+    synchronized (mLock) {
+      return mLive;
+    }
+  }
+
+  /**
+   * Stops dispatching and closes the journal. Requests in flight still complete, but are replayed by the next
+   * outbox opened over the same directory.
+   */
+  public void close() {
+    synchronized (mLock) {
+      mClosed = true;
+      if (mRetry != null) {
+        mRetry.cancel(false);
+        mRetry = null;
+      }
+      IOUtils.closeQuietly(mJournalStream);
+      mJournalStream = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "HttpOutbox[" + mDir + "]";
+  }
+
+  //@hide
+
+  void open() throws IOException {
+    if (!mDir.exists() && !mDir.mkdirs()) {
+      throw new IOException("Couldn't create directory " + mDir);
+    }
+    synchronized (mLock) {
+      final boolean exists = mJournal.getBaseFile().exists();
+      final boolean clean = readJournal();
+      deleteOrphanBodies();
+      if (!exists || !clean || mObsolete > 0) {
+        compact();
+      } else {
+        mJournalStream = new FileOutputStream(mJournal.getBaseFile(), true);
+      }
+      Logger.debug("%s opened with %d pending requests", this, mLive);
+    }
+    dispatch();
+  }
+
+  private void dispatch() {
+    while (true) {
+      final Entry entry;
+      synchronized (mLock) {
+        if (mClosed || mSuspended || mInFlight.size() >= mConcurrency || mPending.isEmpty()) {
+          return;
+        }
+        entry = mPending.pollFirstEntry().getValue();
+        mInFlight.put(entry.mId, entry);
+      }
+      send(entry);
+    }
+  }
+
+  private void send(@NonNull final Entry entry) {
+    final HttpTask<Integer> task = mHttpManager.newTask(entry.mMethod, entry.mUrl);
+    for (final Map.Entry<String, List<String>> header : entry.mHeaders.entrySet()) {
+      final List<String> values = header.getValue();
+      task.addHeader(header.getKey(), values.toArray(new String[values.size()]));
+    }
+    task.setRetryPolicy(RetryPolicy.NO_RETRY);
+    task.setCachePolicy(CachePolicy.NO_CACHE);
+    if (entry.mBodyFile != null) {
+      task.setBody(new JournalBody(entry.mContentType, entry.mContentEncoding, entry.mBodyFile));
+    }
+    task.setCallback(new HttpCallback<Integer>() {
+      @Override
+      public Integer onSuccess(int statusCode, @NonNull Map<String, List<String>> headers,
+                               @NonNull InputStream content) throws Exception {
+        IOUtils.closeQuietly(content);
+        return statusCode;
+      }
+
+      @Override
+      public void onException(@NonNull HttpException e) {
+        Logger.quiet("%s", e);
+      }
+    });
+    task.submit().addListener(new ListenableFuture.Listener<Integer>() {
+      @Override
+      public void onSuccess(@Nullable Integer statusCode) {
+        if (statusCode == null || isTransient(statusCode)) {
+          postpone(entry, statusCode != null ? statusCode : 0, "status " + statusCode);
+        } else {
+          complete(entry, statusCode);
+        }
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable e) {
+        postpone(entry, 0, String.valueOf(e));
+      }
+    });
+  }
+
+  private void complete(@NonNull Entry entry, int statusCode) {
+    synchronized (mLock) {
+      mInFlight.remove(entry.mId);
+      --mLive;
+      ++mObsolete;
+      mBackoffMs = MIN_BACKOFF_MS;
+      if (!mClosed) {
+        try {
+          appendRecord(encodeId(RECORD_DONE, entry.mId));
+          if (mLive == 0 || (mObsolete >= COMPACT_THRESHOLD && mObsolete > mLive)) {
+            compact();
+          }
+        } catch (IOException e) {
+          Logger.error(e);
+        }
+      }
+    }
+    deleteBody(entry);
+    Logger.debug("%s completed %s with status %d", this, entry, statusCode);
+    for (final Listener listener : mListeners) {
+      if (statusCode > 0 && statusCode < HttpURLConnection.HTTP_BAD_REQUEST) {
+        listener.onDelivered(entry, statusCode);
+      } else {
+        listener.onRejected(entry, statusCode);
+      }
+    }
+    dispatch();
+  }
+
+  /**
+   * @param statusCode retryable response status, or 0 if the request failed without a response
+   */
+  private void postpone(@NonNull Entry entry, int statusCode, @NonNull String reason) {
+    final boolean giveUp;
+    synchronized (mLock) {
+      if (statusCode > 0) {
+        ++entry.mAttempts;
+        if (!mClosed) {
+          try {
+            appendRecord(encodeId(RECORD_ATTEMPT, entry.mId));
+            ++mObsolete;
+          } catch (IOException e) {
+            Logger.error(e);
+          }
+        }
+      }
+      giveUp = entry.mAttempts >= mMaxAttempts
+          || (mMaxAgeMs > 0 && System.currentTimeMillis() - entry.mCreatedTime >= mMaxAgeMs);
+    }
+    if (giveUp) {
+      Logger.warn("%s gave up on %s after %d attempts: %s", this, entry, entry.mAttempts, reason);
+      complete(entry, statusCode);
+      return;
+    }
+    synchronized (mLock) {
+      mInFlight.remove(entry.mId);
+      mPending.put(entry.mId, entry);
+      if (mClosed || mSuspended) {
+        return;
+      }
+      mSuspended = true;
+      Logger.debug("%s suspended for %d ms, %s failed: %s", this, mBackoffMs, entry, reason);
+      mRetry = TimerExecutor.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (mLock) {
+            mRetry = null;
+            mSuspended = false;
+          }
+          dispatch();
+        }
+      }, mBackoffMs, TimeUnit.MILLISECONDS);
+      mBackoffMs = Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+    }
+  }
+
+  private boolean readJournal() {
+    final File journal = mJournal.getBaseFile();
+    if (!journal.exists()) {
+      return true;
+    }
+    final DataInputStream dat;
+    try {
+      dat = new DataInputStream(new BufferPoolInputStream(mJournal.openRead()));
+    } catch (IOException e) {
+      Logger.quiet("%s", e);
+      return false;
+    }
+    try {
+      if (dat.readInt() != JOURNAL_MAGIC || dat.readInt() != JOURNAL_VERSION) {
+        Logger.warn("%s unknown journal format, discarding it", this);
+        return false;
+      }
+      final CRC32 crc = new CRC32();
+      while (true) {
+        final int first = dat.read();
+        if (first == -1) {
+          return true;
+        }
+        final int size = first << 24 | dat.readUnsignedByte() << 16 | dat.readUnsignedShort();
+        if (size <= 0 || size > MAX_RECORD_SIZE) {
+          return false;
+        }
+        final byte[] record = new byte[size];
+        dat.readFully(record);
+        crc.reset();
+        crc.update(record, 0, size);
+        if (dat.readLong() != crc.getValue()) {
+          return false;
+        }
+        applyRecord(record);
+      }
+    } catch (IOException e) {
+      Logger.warn("%s journal is truncated: %s", this, e);
+      return false;
+    } finally {
+      IOUtils.closeQuietly(dat);
+    }
+  }
+
+  private void applyRecord(@NonNull byte[] record) throws IOException {
+    final DataInputStream dat = new DataInputStream(new ByteArrayInputStream(record));
+    final byte type = dat.readByte();
+    final long id = dat.readLong();
+    mNextId = Math.max(mNextId, id + 1);
+    if (type == RECORD_ADD) {
+      final long createdTime = dat.readLong();
+      final int attempts = dat.readInt();
+      final String method = dat.readUTF();
+      final String url = dat.readUTF();
+      int fieldCount = dat.readInt();
+      final HttpHeaders.Builder headers = new HttpHeaders.Builder(fieldCount);
+      while (fieldCount-- > 0) {
+        headers.add(dat.readUTF(), dat.readUTF());
+      }
+      File bodyFile = null;
+      String contentType = null;
+      String contentEncoding = null;
+      if (dat.readBoolean()) {
+        bodyFile = getBodyFile(id);
+        contentType = readNullableUTF(dat);
+        contentEncoding = readNullableUTF(dat);
+      }
+      final Entry entry = new Entry(id, createdTime, method, url, headers.build(), contentType, contentEncoding,
+          bodyFile);
+      entry.mAttempts = attempts;
+      if (mPending.put(id, entry) == null) {
+        ++mLive;
+      }
+    } else if (type == RECORD_DONE) {
+      if (mPending.remove(id) != null) {
+        --mLive;
+      }
+      ++mObsolete;
+    } else if (type == RECORD_ATTEMPT) {
+      final Entry entry = mPending.get(id);
+      if (entry != null) {
+        ++entry.mAttempts;
+      }
+      ++mObsolete;
+    } else {
+      throw new IOException("unknown journal record " + type);
+    }
+  }
+
+  private void deleteOrphanBodies() {
+    final File[] files = mDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    final Set<String> bodies = new HashSet<>();
+    for (final Entry entry : mPending.values()) {
+      if (entry.mBodyFile != null) {
+        bodies.add(entry.mBodyFile.getName());
+      }
+    }
+    for (final File file : files) {
+      if (file.getName().endsWith(BODY_SUFFIX) && !bodies.contains(file.getName()) && !file.delete()) {
+        Logger.warn("%s couldn't delete %s", this, file);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the journal with the requests that are not completed yet. Caller must hold {@link #mLock}.
+   */
+  private void compact() throws IOException {
+    IOUtils.closeQuietly(mJournalStream);
+    mJournalStream = null;
+    final FileOutputStream fos = mJournal.startWrite();
+    try {
+      final DataOutputStream dat = new DataOutputStream(new BufferPoolOutputStream(fos));
+      dat.writeInt(JOURNAL_MAGIC);
+      dat.writeInt(JOURNAL_VERSION);
+      for (final Entry entry : mPending.values()) {
+        writeRecord(dat, encodeAdd(entry));
+      }
+      for (final Entry entry : mInFlight.values()) {
+        writeRecord(dat, encodeAdd(entry));
+      }
+      dat.flush();
+      mJournal.finishWrite(fos);
+    } catch (IOException e) {
+      mJournal.failWrite(fos);
+      throw e;
+    }
+    mObsolete = 0;
+    mJournalStream = new FileOutputStream(mJournal.getBaseFile(), true);
+  }
+
+  private void appendRecord(@NonNull byte[] record) throws IOException {
+    if (mJournalStream == null) {
+      throw new IOException("outbox " + mDir + " is closed");
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 12);
+    writeRecord(new DataOutputStream(bytes), record);
+    final FileChannel channel = mJournalStream.getChannel();
+    final long length = channel.size();
+    try {
+      mJournalStream.write(bytes.toByteArray());
+      mJournalStream.getFD().sync();
+    } catch (IOException e) {
+      discardTail(channel, length);
+      throw e;
+    }
+  }
+
+  /**
+   * Cuts a partly written record off the journal. Left in place it would end the journal on the next open and the
+   * records appended after it would be lost. Caller must hold {@link #mLock}.
+   */
+  private void discardTail(@NonNull FileChannel channel, long length) {
+    try {
+      channel.truncate(length);
+      return;
+    } catch (IOException e) {
+      Logger.quiet("%s", e);
+    }
+    try {
+      compact();
+    } catch (IOException e) {
+      // the journal stays closed, later records fail instead of landing behind the garbage
+      Logger.error(e);
+    }
+  }
+
+  private static void writeRecord(@NonNull DataOutputStream dat, @NonNull byte[] record) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(record, 0, record.length);
+    dat.writeInt(record.length);
+    dat.write(record);
+    dat.writeLong(crc.getValue());
+  }
+
+  @NonNull
+  private static byte[] encodeAdd(@NonNull Entry entry) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    final DataOutputStream dat = new DataOutputStream(bytes);
+    dat.writeByte(RECORD_ADD);
+    dat.writeLong(entry.mId);
+    dat.writeLong(entry.mCreatedTime);
+    dat.writeInt(entry.mAttempts);
+    dat.writeUTF(entry.mMethod);
+    dat.writeUTF(entry.mUrl);
+    final HttpHeaders headers = entry.mHeaders;
+    dat.writeInt(headers.fieldCount());
+    for (int i = 0; i < headers.fieldCount(); ++i) {
+      dat.writeUTF(headers.nameAt(i));
+      dat.writeUTF(headers.valueAt(i));
+    }
+    dat.writeBoolean(entry.mBodyFile != null);
+    if (entry.mBodyFile != null) {
+      writeNullableUTF(dat, entry.mContentType);
+      writeNullableUTF(dat, entry.mContentEncoding);
+    }
+    return bytes.toByteArray();
+  }
+
+  @NonNull
+  private static byte[] encodeId(byte type, long id) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+    final DataOutputStream dat = new DataOutputStream(bytes);
+    dat.writeByte(type);
+    dat.writeLong(id);
+    return bytes.toByteArray();
+  }
+
+  private static void writeNullableUTF(@NonNull DataOutputStream dat, @Nullable String value) throws IOException {
+    dat.writeBoolean(value != null);
+    if (value != null) {
+      dat.writeUTF(value);
+    }
+  }
+
+  @Nullable
+  private static String readNullableUTF(@NonNull DataInputStream dat) throws IOException {
+    if (dat.readBoolean()) {
+      return dat.readUTF();
+    }
+    return null;
+  }
+
+  private static boolean isTransient(int statusCode) {
+    return statusCode <= 0 || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+        || statusCode == HTTP_TOO_MANY_REQUESTS || statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+  }
+
+  private static void saveBody(@NonNull File bodyFile, @NonNull HttpBody body) throws IOException {
+    final FileOutputStream fos = new FileOutputStream(bodyFile);
+    try {
+      final BufferPoolOutputStream out = new BufferPoolOutputStream(fos);
+      body.writeTo(out);
+      out.flush();
+      fos.getFD().sync();
+    } catch (IOException e) {
+      IOUtils.closeQuietly(fos);
+      if (!bodyFile.delete()) {
+        Logger.warn("Couldn't delete %s", bodyFile);
+      }
+      throw e;
+    } finally {
+      IOUtils.closeQuietly(fos);
+    }
+  }
+
+  private static void deleteBody(@NonNull Entry entry) {
+    if (entry.mBodyFile != null && !entry.mBodyFile.delete()) {
+      Logger.warn("Couldn't delete %s", entry.mBodyFile);
+    }
+  }
+
+  @NonNull
+  private File getBodyFile(long id) {
+    return new File(mDir, id + BODY_SUFFIX);
+  }
+
+  /**
+   * Outcome of the enqueued requests. Called on the thread that completed the request.
+   */
+  public interface Listener {
+
+    /**
+     * The server accepted the request (status below 400).
+     */
+    void onDelivered(@NonNull Entry entry, int statusCode);
+
+    /**
+     * The server refused the request with a status that is not worth retrying, or the request ran out of attempts
+     * or age ({@code statusCode} is 0 if it failed without a response). The request is dropped.
+     */
+    void onRejected(@NonNull Entry entry, int statusCode);
+
+  }
+
+  public static final class Entry {
+
+    final long mId;
+
+    final long mCreatedTime;
+
+    final String mMethod;
+
+    final String mUrl;
+
+    final HttpHeaders mHeaders;
+
+    final String mContentType;
+
+    final String mContentEncoding;
+
+    final File mBodyFile;
+
+    int mAttempts;
+
+    Entry(long id, long createdTime, @NonNull String method, @NonNull String url, @NonNull HttpHeaders headers,
+          @Nullable String contentType, @Nullable String contentEncoding, @Nullable File bodyFile) {
+      mId = id;
+      mCreatedTime = createdTime;
+      mMethod = method;
+      mUrl = url;
+      mHeaders = headers;
+      mContentType = contentType;
+      mContentEncoding = contentEncoding;
+      mBodyFile = bodyFile;
+    }
+
+    public long getId() {
+      return mId;
+    }
+
+    /**
+     * @return enqueue time in milliseconds since epoch
+     */
+    public long getCreatedTime() {
+      return mCreatedTime;
+    }
+
+    @NonNull
+    public String getMethod() {
+      return mMethod;
+    }
+
+    @NonNull
+    public String getUrl() {
+      return mUrl;
+    }
+
+    /**
+     * @return headers added to the task, sent over the current default headers of {@link HttpManager}
+     */
+    @NonNull
+    public HttpHeaders getHeaders() {
+      return mHeaders;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + mId + "] " + mMethod + " " + mUrl;
+    }
+
+  }
+
+  private static final class JournalBody extends FileBody {
+
+    private final String mContentEncoding;
+
+    JournalBody(@Nullable String contentType, @Nullable String contentEncoding, @NonNull File file) {
+      super(contentType, file);
+      mContentEncoding = contentEncoding;
+    }
+
+    @Nullable
+    @Override
+    public String getContentEncoding() {
+      return mContentEncoding;
+    }
+
+  }
+
+}
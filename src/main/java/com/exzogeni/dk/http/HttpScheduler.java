@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.concurrent.ListenableFuture;
+import com.exzogeni.dk.concurrent.ListenableFutureTask;
+import com.exzogeni.dk.concurrent.ThreadQueue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches tasks to the {@link ThreadQueue} honoring global and per-host concurrency limits and task priorities.
+ *
+ * @author Daniel Serdyukov
+ */
+final class HttpScheduler {
+
+  private static final Comparator<Call<?>> CALL_ORDER = new Comparator<Call<?>>() {
+    @Override
+    public int compare(Call<?> lhs, Call<?> rhs) {
+      final int byPriority = lhs.mPriority.compareTo(rhs.mPriority);
+      if (byPriority != 0) {
+        return byPriority;
+      }
+      return lhs.mOrder < rhs.mOrder ? -1 : (lhs.mOrder == rhs.mOrder ? 0 : 1);
+    }
+  };
+
+  private final AtomicLong mSequence = new AtomicLong();
+
+  private final Map<String, Host> mHosts = new HashMap<>();
+
+  private final Map<String, Integer> mHostLimits = new HashMap<>();
+
+  private final ThreadQueue mQueue;
+
+  private int mMaxRequests;
+
+  private int mMaxRequestsPerHost;
+
+  private int mRunning;
+
+  HttpScheduler(@NonNull ThreadQueue queue, int maxRequests, int maxRequestsPerHost) {
+    mQueue = queue;
+    mMaxRequests = maxRequests;
+    mMaxRequestsPerHost = maxRequestsPerHost;
+  }
+
+  void setMaxRequests(int maxRequests) {
+    synchronized (this) {
+      mMaxRequests = maxRequests;
+    }
+    promote();
+  }
+
+  void setMaxRequestsPerHost(int maxRequestsPerHost) {
+    synchronized (this) {
+      mMaxRequestsPerHost = maxRequestsPerHost;
+    }
+    promote();
+  }
+
+  void setMaxRequestsPerHost(@NonNull String host, int maxRequestsPerHost) {
+    synchronized (this) {
+      mHostLimits.put(host, maxRequestsPerHost);
+    }
+    promote();
+  }
+
+  @NonNull
+  <V> ListenableFuture<V> submit(@NonNull HttpTask<V> task) {
+    final Call<V> call = new Call<>(task, mSequence.incrementAndGet());
+    synchronized (this) {
+      Host host = mHosts.get(call.mHost);
+      if (host == null) {
+        host = new Host();
+        mHosts.put(call.mHost, host);
+      }
+      host.mPending.offer(call);
+    }
+    promote();
+    return call;
+  }
+
+  void reprioritize(@NonNull HttpTask<?> task) {
+    synchronized (this) {
+      final Host host = mHosts.get(task.getHost());
+      if (host != null) {
+        for (final Call<?> call : host.mPending) {
+          if (call.mTask == task) {
+            host.mPending.remove(call);
+            call.mPriority = task.getPriority();
+            host.mPending.offer(call);
+            break;
+          }
+        }
+      }
+    }
+    promote();
+  }
+
+  synchronized int getQueueDepth(@NonNull String host) {
+    final Host entry = mHosts.get(host);
+    if (entry != null) {
+      return entry.mPending.size();
+    }
+    return 0;
+  }
+
+  @NonNull
+  synchronized Map<String, Integer> getQueueDepth() {
+    final Map<String, Integer> depth = new HashMap<>(mHosts.size());
+    for (final Map.Entry<String, Host> entry : mHosts.entrySet()) {
+      depth.put(entry.getKey(), entry.getValue().mPending.size());
+    }
+    return depth;
+  }
+
+  private void promote() {
+    final List<Call<?>> ready = new ArrayList<>();
+    synchronized (this) {
+      Call<?> call;
+      while ((call = poll()) != null) {
+        ready.add(call);
+      }
+    }
+    for (final Call<?> call : ready) {
+      mQueue.execute(call);
+    }
+  }
+
+  @Nullable
+  private Call<?> poll() {
+    Host best = null;
+    for (final Map.Entry<String, Host> entry : mHosts.entrySet()) {
+      final Host host = entry.getValue();
+      final Call<?> head = host.mPending.peek();
+      if (head != null && host.mRunning < getHostLimit(entry.getKey())
+          && (best == null || CALL_ORDER.compare(head, best.mPending.peek()) < 0)) {
+        best = host;
+      }
+    }
+    if (best != null) {
+      final Call<?> call = best.mPending.peek();
+      if (mRunning < mMaxRequests || call.mPriority == HttpTask.Priority.IMMEDIATE) {
+        best.mPending.poll();
+        best.mRunning++;
+        mRunning++;
+        return call;
+      }
+    }
+    return null;
+  }
+
+  private int getHostLimit(String host) {
+    final Integer limit = mHostLimits.get(host);
+    if (limit != null) {
+      return limit;
+    }
+    return mMaxRequestsPerHost;
+  }
+
+  private boolean dequeue(Call<?> call) {
+    synchronized (this) {
+      final Host host = mHosts.get(call.mHost);
+      if (host != null && host.mPending.remove(call)) {
+        release(call.mHost, host);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void finished(Call<?> call) {
+    synchronized (this) {
+      final Host host = mHosts.get(call.mHost);
+      if (host != null) {
+        host.mRunning--;
+        mRunning--;
+        release(call.mHost, host);
+      }
+    }
+    promote();
+  }
+
+  private void release(String name, Host host) {
+    if (host.mRunning == 0 && host.mPending.isEmpty()) {
+      mHosts.remove(name);
+    }
+  }
+
+  private static final class Host {
+
+    final PriorityQueue<Call<?>> mPending = new PriorityQueue<>(11, CALL_ORDER);
+
+    int mRunning;
+
+  }
+
+  private final class Call<V> extends ListenableFutureTask<V> {
+
+    final AtomicBoolean mFinished = new AtomicBoolean();
+
+    final HttpTask<V> mTask;
+
+    final String mHost;
+
+    final long mOrder;
+
+    HttpTask.Priority mPriority;
+
+    Call(HttpTask<V> task, long order) {
+      super(task);
+      mTask = task;
+      mHost = task.getHost();
+      mOrder = order;
+      mPriority = task.getPriority();
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        finish();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      final boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled) {
+        if (!dequeue(this)) {
+          finish();
+        }
+        mTask.cancel();
+      }
+      return cancelled;
+    }
+
+    private void finish() {
+      if (mFinished.compareAndSet(false, true)) {
+        finished(this);
+      }
+    }
+
+  }
+
+}
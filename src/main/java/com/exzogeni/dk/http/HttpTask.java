@@ -16,33 +16,51 @@
 
 package com.exzogeni.dk.http;
 
-import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import com.exzogeni.dk.concurrent.ListenableFuture;
+import com.exzogeni.dk.concurrent.TimerExecutor;
+import com.exzogeni.dk.http.body.GzipBody;
+import com.exzogeni.dk.http.body.HttpBody;
 import com.exzogeni.dk.http.cache.CacheManager;
 import com.exzogeni.dk.http.cache.CachePolicy;
 import com.exzogeni.dk.http.callback.HttpCallback;
+import com.exzogeni.dk.http.callback.StreamCallback;
+import com.exzogeni.dk.http.cookie.CookieJar;
+import com.exzogeni.dk.http.task.RetryPolicy;
+import com.exzogeni.dk.http.transport.ConnectionTimings;
+import com.exzogeni.dk.io.ByteBufferPool;
 import com.exzogeni.dk.log.Logger;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.CookieManager;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.CookieHandler;
 import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Daniel Serdyukov
@@ -51,11 +69,41 @@ public abstract class HttpTask<V> implements Callable<V> {
 
   private static final AtomicInteger SEQUENCE = new AtomicInteger();
 
+  private static final String CONTENT_LENGTH = "Content-Length";
+
+  private static final String COOKIE = "Cookie";
+
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  private static final String[] FLIGHT_HEADERS = new String[]{
+      "accept", "accept-charset", "accept-encoding", "accept-language", "authorization", "range"
+  };
+
   private final AtomicInteger mStatusCode = new AtomicInteger();
 
+  private final AtomicLong mBytesIn = new AtomicLong();
+
+  private final AtomicLong mBytesOut = new AtomicLong();
+
+  private volatile long mSubmitTime;
+
+  private long mStartTime;
+
+  private int mAttempt;
+
+  private volatile long mRetryAfterMs;
+
+  private Future<?> mDeadline;
+
+  private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+  private volatile boolean mDetached;
+
+  private final List<HttpURLConnection> mConnections = new ArrayList<>();
+
   private final int mSequence = SEQUENCE.incrementAndGet();
 
-  private final Map<String, List<String>> mHeaders = new ConcurrentHashMap<>();
+  private final AtomicBoolean mDeadlineExceeded = new AtomicBoolean();
 
   private final String mUrl;
 
@@ -65,7 +113,35 @@ public abstract class HttpTask<V> implements Callable<V> {
 
   private CachePolicy mCachePolicy;
 
-  private int mTimeoutMs;
+  private RetryPolicy mRetryPolicy = RetryPolicy.NO_RETRY;
+
+  private HttpBody mBody;
+
+  private long mCompressionThreshold = -1;
+
+  private int mTimeoutMs = -1;
+
+  private long mCallTimeoutMs;
+
+  private volatile long mCallDeadline;
+
+  private boolean mCoalescing = true;
+
+  private boolean mHedging;
+
+  private long mHedgeDelayMs;
+
+  private volatile Priority mPriority = Priority.NORMAL;
+
+  private volatile HttpHeaders mHeaders = HttpHeaders.EMPTY;
+
+  private volatile HttpHeaders mOwnHeaders = HttpHeaders.EMPTY;
+
+  private volatile Object mTag;
+
+  private volatile Future<V> mFuture;
+
+  private HttpFlight mFlight;
 
   private String mEncodedUrl;
 
@@ -80,17 +156,6 @@ public abstract class HttpTask<V> implements Callable<V> {
     mCachePolicy = policy;
   }
 
-  @NonNull
-  private static Map<String, List<String>> getHeaderFields(HttpURLConnection cn) {
-    final Map<String, List<String>> headers = cn.getHeaderFields();
-    if (headers != null) {
-      final Map<String, List<String>> localHeaders = new HashMap<>(headers);
-      localHeaders.remove(null);
-      return Collections.unmodifiableMap(localHeaders);
-    }
-    return Collections.emptyMap();
-  }
-
   @NonNull
   private static InputStream getInputStream(HttpURLConnection cn) {
     try {
@@ -104,6 +169,36 @@ public abstract class HttpTask<V> implements Callable<V> {
     }
   }
 
+  @NonNull
+  private static byte[] toByteArray(InputStream content) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = ByteBufferPool.getInstance().obtain();
+    try {
+      IOUtils.copyLarge(content, out, buffer);
+    } finally {
+      ByteBufferPool.getInstance().free(buffer);
+      IOUtils.closeQuietly(content);
+    }
+    return out.toByteArray();
+  }
+
+  private static long parseLength(@Nullable String value) {
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        Logger.quiet("%s", e);
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isStaleConnection(IOException e) {
+    return e instanceof EOFException
+        || (e instanceof SocketException && !(e instanceof ConnectException)
+        && !(e instanceof NoRouteToHostException));
+  }
+
   @NonNull
   public String getUrl() {
     return mUrl;
@@ -115,21 +210,90 @@ public abstract class HttpTask<V> implements Callable<V> {
     return this;
   }
 
+  /**
+   * @param timeoutMs fixed connect and read timeout, overrides the (adaptive) timeouts of {@link HttpManager}
+   */
   @NonNull
   public HttpTask<V> setTimeoutMs(int timeoutMs) {
     mTimeoutMs = timeoutMs;
     return this;
   }
 
+  /**
+   * @param timeoutMs limit for the whole call, including retries and reading the body, 0 for no limit
+   */
+  @NonNull
+  public HttpTask<V> setCallTimeoutMs(long timeoutMs) {
+    mCallTimeoutMs = timeoutMs;
+    return this;
+  }
+
   @NonNull
   public HttpTask<V> addHeader(@NonNull String key, @NonNull String... values) {
-    List<String> headers = mHeaders.get(key);
-    if (headers == null) {
-      headers = new CopyOnWriteArrayList<>();
-      mHeaders.put(key, headers);
+    mHeaders = mHeaders.set(key, values);
+    mOwnHeaders = mOwnHeaders.set(key, values);
+    return this;
+  }
+
+  @NonNull
+  public Priority getPriority() {
+    return mPriority;
+  }
+
+  @NonNull
+  public HttpTask<V> setPriority(@NonNull Priority priority) {
+    if (mPriority != priority) {
+      mPriority = priority;
+      if (mHttpManager != null) {
+        mHttpManager.reprioritize(this);
+      }
     }
-    headers.clear();
-    Collections.addAll(headers, values);
+    return this;
+  }
+
+  @NonNull
+  public HttpTask<V> setBody(@Nullable HttpBody body) {
+    mBody = body;
+    return this;
+  }
+
+  /**
+   * @param threshold gzip request bodies of at least this many bytes (or of unknown length), -1 to disable
+   */
+  @NonNull
+  public HttpTask<V> setCompressionThreshold(long threshold) {
+    mCompressionThreshold = threshold;
+    return this;
+  }
+
+  @NonNull
+  public HttpTask<V> setRetryPolicy(@NonNull RetryPolicy policy) {
+    mRetryPolicy = policy;
+    return this;
+  }
+
+  /**
+   * Allows a second copy of a GET request to be sent if the first one has not received response headers
+   * within the hedge delay.
+   */
+  @NonNull
+  public HttpTask<V> setHedgingEnabled(boolean enabled) {
+    mHedging = enabled;
+    return this;
+  }
+
+  /**
+   * @param delayMs fixed hedge delay, or 0 to use the observed 95th percentile latency of the host
+   */
+  @NonNull
+  public HttpTask<V> setHedgeDelayMs(long delayMs) {
+    mHedgeDelayMs = delayMs;
+    return this;
+  }
+
+  @NonNull
+  public HttpTask<V> setCoalescingEnabled(boolean enabled) {
+    mCoalescing = enabled;
     return this;
   }
 
@@ -139,33 +303,121 @@ public abstract class HttpTask<V> implements Callable<V> {
     return this;
   }
 
+  @Nullable
+  public Object getTag() {
+    return mTag;
+  }
+
   @NonNull
-  public Future<V> submit() {
+  public HttpTask<V> setTag(@Nullable Object tag) {
+    mTag = tag;
+    return this;
+  }
+
+  @NonNull
+  public ListenableFuture<V> submit() {
     return mHttpManager.submit(this);
   }
 
+  public boolean isCancelled() {
+    return mCancelled.get();
+  }
+
+  /**
+   * Cancels the task. If identical requests of other callers were coalesced into this one, the request keeps running
+   * for them and only the callback of this task is dropped.
+   */
+  public void cancel() {
+    if (mCancelled.compareAndSet(false, true)) {
+      final HttpFlight flight = mFlight;
+      if (flight != null && !mHttpManager.abandon(flight)) {
+        mDetached = true;
+        final Future<V> future = mFuture;
+        if (future != null) {
+          // drops only this task's result, the scheduler call keeps its slot until the exchange is over
+          future.cancel(false);
+        }
+        Logger.debug("%s cancelled, still serving coalesced requests", this);
+        return;
+      }
+      final Future<V> future = mFuture;
+      if (future != null) {
+        future.cancel(true);
+      }
+      if (flight != null) {
+        flight.fail(new CancellationException(toString()));
+      }
+      final List<HttpURLConnection> connections;
+      synchronized (mConnections) {
+        connections = new ArrayList<>(mConnections);
+        mConnections.clear();
+      }
+      for (final HttpURLConnection cn : connections) {
+        cn.disconnect();
+      }
+      mHttpManager.finished(this);
+      Logger.debug("%s cancelled", this);
+    }
+  }
+
+  /**
+   * Runs one attempt of the task. A retry is not run in place: the attempt ends with {@link Backoff} and
+   * {@link HttpManager} submits the task again once the retry delay has passed, so the worker thread and the
+   * scheduler slot are free in the meantime.
+   */
   @Override
   public V call() throws Exception {
-    final long startTime = SystemClock.uptimeMillis();
+    final HttpEventListener events = mHttpManager.getEventListener();
+    final boolean firstAttempt = mStartTime == 0;
+    if (firstAttempt) {
+      mStartTime = System.nanoTime();
+      events.onDequeued(this, mStartTime);
+      if (mSubmitTime > 0) {
+        mHttpManager.getMetrics().onQueueWait(mStartTime - mSubmitTime);
+      }
+      mDeadline = scheduleDeadline(mStartTime);
+    }
+    boolean backoff = false;
     try {
       final URI uri = getEncodedUriInternal();
-      if (mCachePolicy == null || mCachePolicy.shouldCache(uri)) {
+      if (firstAttempt && (mCachePolicy == null || mCachePolicy.shouldCache(uri))) {
         final CacheManager cm = mHttpManager.getCacheManager();
         final Map<String, List<String>> headers = new HashMap<>();
+        events.onCacheLookupStart(this, System.nanoTime());
         final InputStream content = cm.get(uri, headers);
+        events.onCacheLookupEnd(this, System.nanoTime(), content != null);
         if (content != null) {
+          mHttpManager.getMetrics().onCacheHit();
           return onSuccessInternal(
               HttpURLConnection.HTTP_NOT_MODIFIED,
-              Collections.<String, List<String>>emptyMap(),
+              HttpHeaders.EMPTY,
               content
           );
-        } else {
-          mHeaders.putAll(headers);
+        }
+        mHttpManager.getMetrics().onCacheMiss();
+        if (!headers.isEmpty()) {
+          mHeaders = mHeaders.setAll(headers);
         }
       }
       return onPerformNetworkRequest(uri);
+    } catch (Backoff e) {
+      backoff = true;
+      throw e;
+    } catch (Exception e) {
+      events.onFailure(this, System.nanoTime(), e);
+      if (mFlight != null && mHttpManager.land(mFlight)) {
+        mFlight.fail(e);
+      }
+      throw e;
     } finally {
-      mHttpManager.log(this, (SystemClock.uptimeMillis() - startTime), HttpStatus.getStatusLine(mStatusCode.get()));
+      if (!backoff) {
+        if (mDeadline != null) {
+          mDeadline.cancel(false);
+        }
+        mHttpManager.finished(this);
+        mHttpManager.log(this, System.nanoTime() - mStartTime, mStatusCode.get(), mBytesIn.get(),
+            mBytesOut.get());
+      }
     }
   }
 
@@ -180,6 +432,21 @@ public abstract class HttpTask<V> implements Callable<V> {
   @NonNull
   protected abstract String getEncodedUrl();
 
+  @Nullable
+  protected HttpBody getBody() {
+    final HttpBody body = mBody;
+    if (body != null && mCompressionThreshold >= 0 && body.getContentEncoding() == null) {
+      final long contentLength = body.getContentLength();
+      if (contentLength < 0 || contentLength >= mCompressionThreshold) {
+        return new MeteredBody(new GzipBody(body), mBytesOut);
+      }
+    }
+    if (body != null) {
+      return new MeteredBody(body, mBytesOut);
+    }
+    return null;
+  }
+
   protected void onPrepareConnection(@NonNull HttpURLConnection cn) throws Exception {
 
   }
@@ -192,12 +459,144 @@ public abstract class HttpTask<V> implements Callable<V> {
     mHttpManager = manager;
   }
 
-  void addHeaders(@NonNull Map<String, List<String>> headers) {
-    mHeaders.putAll(headers);
+  void setHeaders(@NonNull HttpHeaders headers) {
+    mHeaders = headers;
+  }
+
+  /**
+   * @return headers added to this task, without the default headers of {@link HttpManager}
+   */
+  @NonNull
+  HttpHeaders getOwnHeaders() {
+    return mOwnHeaders;
+  }
+
+  /**
+   * @return body as it was set, without compression and metering of {@link #getBody()}
+   */
+  @Nullable
+  HttpBody getRequestBody() {
+    return mBody;
+  }
+
+  @NonNull
+  String getHost() {
+    final String host = getEncodedUriInternal().getHost();
+    if (host == null) {
+      return "";
+    }
+    return host;
+  }
+
+  void onSubmit() {
+    mSubmitTime = System.nanoTime();
+    mHttpManager.getEventListener().onQueued(this, mSubmitTime);
+  }
+
+  void setFuture(@NonNull Future<V> future) {
+    mFuture = future;
+    if (isAborted()) {
+      future.cancel(true);
+    }
+  }
+
+  @NonNull
+  HttpURLConnection newConnection(@NonNull URI uri) throws IOException {
+    final HttpURLConnection cn = mHttpManager.getTransport()
+        .openConnection(uri, mHttpManager.getConnectionPool(), mHttpManager.getDns());
+    synchronized (mConnections) {
+      if (!isAborted()) {
+        mConnections.add(cn);
+        return cn;
+      }
+    }
+    throw new InterruptedIOException(this + " cancelled");
+  }
+
+  void exchange(@NonNull HttpURLConnection cn) throws Exception {
+    final HttpEventListener events = mHttpManager.getEventListener();
+    final long startTime = System.nanoTime();
+    onPrepareConnectionInternal(cn);
+    final long connectStart = System.nanoTime();
+    events.onConnectStart(this, connectStart);
+    cn.connect();
+    final long connectEnd = System.nanoTime();
+    events.onConnectEnd(this, connectEnd);
+    onPerformRequest(cn);
+    events.onRequestSent(this, System.nanoTime());
+    final int statusCode = cn.getResponseCode();
+    final long firstByteTime = System.nanoTime();
+    events.onFirstByte(this, firstByteTime, statusCode);
+    if (statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+      mRetryAfterMs = mHttpManager.onRetryAfter(this, cn.getHeaderField("Retry-After"));
+    }
+    mHttpManager.onFirstByte(getHost(), TimeUnit.NANOSECONDS.toMillis(firstByteTime - startTime));
+    if (cn instanceof ConnectionTimings) {
+      final long connectNanos = ((ConnectionTimings) cn).getConnectNanos();
+      if (connectNanos >= 0) {
+        mHttpManager.onConnect(getHost(), TimeUnit.NANOSECONDS.toMillis(connectNanos));
+      }
+    } else {
+      // platform connection: connect() covers dns, tcp and tls, and returns at once for a kept-alive socket
+      mHttpManager.onConnect(getHost(), TimeUnit.NANOSECONDS.toMillis(connectEnd - connectStart));
+    }
+  }
+
+  boolean acquireHedge() {
+    return mHttpManager.acquireHedge(this);
+  }
+
+  /**
+   * @return true if the task was cancelled and nobody else waits for its response
+   */
+  boolean isAborted() {
+    return mCancelled.get() && !mDetached;
+  }
+
+  boolean isCoalescible() {
+    return mCoalescing && Http.Method.GET.equals(getMethodName()) && !isStreaming();
+  }
+
+  void setFlight(@NonNull HttpFlight flight) {
+    mFlight = flight;
+  }
+
+  @NonNull
+  String getFlightKey() {
+    final StringBuilder key = new StringBuilder(getMethodName()).append(' ').append(getEncodedUrlInternal());
+    final HttpHeaders headers = mHeaders;
+    for (final String name : FLIGHT_HEADERS) {
+      final List<String> values = headers.get(name);
+      if (values != null) {
+        key.append('\n').append(name).append(':').append(values);
+      }
+    }
+    return key.toString();
+  }
+
+  V onFlightLanded(@NonNull HttpFlight flight) throws Exception {
+    final long startTime = System.nanoTime();
+    try {
+      return onSuccessInternal(flight.getStatusCode(), flight.getHeaders(), flight.getContent());
+    } catch (Exception e) {
+      mHttpManager.getEventListener().onFailure(this, System.nanoTime(), e);
+      throw onException(new HttpException(getEncodedUrlInternal(), e));
+    } finally {
+      mHttpManager.finished(this);
+      mHttpManager.log(this, System.nanoTime() - startTime, mStatusCode.get(), mBytesIn.get(), mBytesOut.get());
+    }
+  }
+
+  /**
+   * A {@link StreamCallback} reads the body straight from the connection, so it is neither written to the cache
+   * first nor buffered for coalesced requests.
+   */
+  private boolean isStreaming() {
+    return mCallback instanceof StreamCallback;
   }
 
   private HttpException onException(HttpException e) {
-    if (mCallback != null) {
+    if (mCallback != null && !mCancelled.get()) {
       mCallback.onException(e);
     }
     return e;
@@ -214,70 +613,280 @@ public abstract class HttpTask<V> implements Callable<V> {
   @NonNull
   private URI getEncodedUriInternal() {
     if (mEncodedUri == null) {
-      mEncodedUri = URI.create(getEncodedUrlInternal());
+      final String url = getEncodedUrlInternal();
+      final URI uri = UrlEncoder.getInstance().toUri(url);
+      mEncodedUri = uri != null ? uri : URI.create(url);
     }
     return mEncodedUri;
   }
 
+  @Nullable
+  private Future<?> scheduleDeadline(long startTime) {
+    if (mCallTimeoutMs <= 0) {
+      return null;
+    }
+    mCallDeadline = startTime + TimeUnit.MILLISECONDS.toNanos(mCallTimeoutMs);
+    return TimerExecutor.get().schedule(new Runnable() {
+      @Override
+      public void run() {
+        onDeadlineExceeded();
+      }
+    }, mCallTimeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void onDeadlineExceeded() {
+    if (mDeadlineExceeded.compareAndSet(false, true)) {
+      final List<HttpURLConnection> connections;
+      synchronized (mConnections) {
+        connections = new ArrayList<>(mConnections);
+      }
+      for (final HttpURLConnection cn : connections) {
+        cn.disconnect();
+      }
+      Logger.debug("%s call timeout of %d ms exceeded", this, mCallTimeoutMs);
+    }
+  }
+
+  private long getRemainingMs() {
+    if (mCallDeadline == 0) {
+      return Long.MAX_VALUE;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(mCallDeadline - System.nanoTime());
+  }
+
+  /**
+   * @return timeout shortened to the time left until the call deadline (0 means no timeout)
+   */
+  private int withinDeadline(int timeoutMs) {
+    final long remainingMs = getRemainingMs();
+    if (remainingMs == Long.MAX_VALUE) {
+      return timeoutMs;
+    }
+    final int limitMs = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remainingMs));
+    if (timeoutMs == 0) {
+      return limitMs;
+    }
+    return Math.min(timeoutMs, limitMs);
+  }
+
+  @NonNull
+  private SocketTimeoutException newDeadlineException(@Nullable Throwable cause) {
+    final SocketTimeoutException e = new SocketTimeoutException(this + " exceeded call timeout of "
+        + mCallTimeoutMs + " ms");
+    if (cause != null) {
+      e.initCause(cause);
+    }
+    return e;
+  }
+
   private V onPerformNetworkRequest(URI uri) throws Exception {
     Logger.debug("%s", uri);
-    final HttpURLConnection cn = (HttpURLConnection) uri.toURL().openConnection();
+    final String host = getHost();
+    if (mAttempt == 0) {
+      mHttpManager.onRequest(host);
+    }
+    final CircuitBreaker breaker = mHttpManager.obtainCircuitBreaker(host);
+    boolean staleRetried = false;
+    boolean permitted = false;
+    while (true) {
+      if (isAborted()) {
+        throw new InterruptedIOException(this + " cancelled");
+      }
+      if (mDeadlineExceeded.get()) {
+        throw onException(new HttpException(getEncodedUrlInternal(), newDeadlineException(null)));
+      }
+      // a retry on a stale connection is the same logical attempt, it keeps the permit (e.g. a half-open probe)
+      if (!permitted && breaker != null && !breaker.tryAcquire()) {
+        return onCircuitOpen(uri, host);
+      }
+      permitted = false;
+      final long attemptTime = System.nanoTime();
+      HttpURLConnection cn = null;
+      boolean keepAlive = false;
+      try {
+        final int statusCode;
+        try {
+          cn = openConnection(uri);
+          statusCode = cn.getResponseCode();
+        } catch (IOException e) {
+          if (mDeadlineExceeded.get()) {
+            throw onException(new HttpException(getEncodedUrlInternal(), newDeadlineException(e)));
+          }
+          if (!staleRetried && isStaleConnection(e) && (mBody == null || mBody.isRepeatable())
+              && mRetryPolicy.shouldRetry(getMethodName(), 1, 0, e)) {
+            Logger.debug("%s retry on stale connection: %s", this, e);
+            staleRetried = true;
+            permitted = true;
+            continue;
+          }
+          if (breaker != null && !isAborted()) {
+            breaker.onResult(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attemptTime));
+          }
+          final long delayMs = getRetryDelayMs(host, mAttempt + 1, 0, e);
+          if (delayMs >= 0) {
+            ++mAttempt;
+            throw new Backoff(delayMs);
+          }
+          throw onException(new HttpException(getEncodedUrlInternal(), e));
+        }
+        if (breaker != null) {
+          breaker.onResult(statusCode, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attemptTime));
+        }
+        final long delayMs = getRetryDelayMs(host, mAttempt + 1, statusCode, null);
+        if (delayMs >= 0) {
+          ++mAttempt;
+          throw new Backoff(delayMs);
+        }
+        final V result = onSuccessInternal(cn);
+        keepAlive = true;
+        return result;
+      } finally {
+        if (cn != null && !keepAlive) {
+          cn.disconnect();
+        }
+        synchronized (mConnections) {
+          mConnections.clear();
+        }
+      }
+    }
+  }
+
+  private V onCircuitOpen(URI uri, String host) throws Exception {
+    if (mCachePolicy == null || mCachePolicy.shouldCache(uri)) {
+      final InputStream content = mHttpManager.getCacheManager().getStale(uri);
+      if (content != null) {
+        Logger.debug("%s circuit open, serving stale cache", this);
+        return onSuccessInternal(HttpURLConnection.HTTP_NOT_MODIFIED, HttpHeaders.EMPTY, content);
+      }
+    }
+    throw onException(new HttpException(getEncodedUrlInternal(), new IOException(host + " circuit breaker is open")));
+  }
+
+  private HttpURLConnection openConnection(URI uri) throws Exception {
+    if (mHedging && Http.Method.GET.equals(getMethodName())) {
+      final long delayMs = mHedgeDelayMs > 0 ? mHedgeDelayMs : mHttpManager.getHedgeDelayMs(getHost());
+      if (delayMs >= 0) {
+        return new HttpHedge(this, uri, mHttpManager.getAsyncQueue()).open(delayMs);
+      }
+    }
+    final HttpURLConnection cn = newConnection(uri);
     try {
-      onPrepareConnectionInternal(cn);
-      onPerformRequest(cn);
-      return onSuccessInternal(cn);
-    } finally {
+      exchange(cn);
+    } catch (Exception e) {
       cn.disconnect();
+      throw e;
     }
+    return cn;
+  }
+
+  /**
+   * @return delay before the retry or -1 if the request should not be retried
+   */
+  private long getRetryDelayMs(String host, int attempt, int statusCode, IOException e) {
+    if (isAborted() || mDeadlineExceeded.get() || (mBody != null && !mBody.isRepeatable())
+        || !mRetryPolicy.shouldRetry(getMethodName(), attempt, statusCode, e)) {
+      return -1;
+    }
+    long delayMs = mRetryPolicy.getRetryDelayMs(attempt);
+    if (statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+      delayMs = Math.max(delayMs, mRetryAfterMs);
+    }
+    if (getRemainingMs() > delayMs && mHttpManager.acquireRetry(host)) {
+      Logger.debug("%s retry #%d in %d ms: %s", this, attempt, delayMs,
+          e != null ? e : HttpStatus.getStatusLine(statusCode));
+      return Math.max(0, delayMs);
+    }
+    return -1;
   }
 
   private void onPrepareConnectionInternal(HttpURLConnection cn) throws Exception {
     final URI uri = cn.getURL().toURI();
     cn.setRequestMethod(getMethodName());
-    cn.setConnectTimeout(mTimeoutMs);
-    cn.setReadTimeout(mTimeoutMs);
-    final CookieManager cm = mHttpManager.getCookieManager();
-    final Map<String, List<String>> cookies = cm.get(uri, new HashMap<String, List<String>>());
-    for (final Map.Entry<String, List<String>> cookie : cookies.entrySet()) {
-      for (final String value : cookie.getValue()) {
-        cn.addRequestProperty(cookie.getKey(), value);
-      }
+    if (mTimeoutMs >= 0) {
+      cn.setConnectTimeout(withinDeadline(mTimeoutMs));
+      cn.setReadTimeout(withinDeadline(mTimeoutMs));
+    } else {
+      cn.setConnectTimeout(withinDeadline(mHttpManager.getConnectTimeoutMs(getHost())));
+      cn.setReadTimeout(withinDeadline(mHttpManager.getReadTimeoutMs(getHost())));
     }
-    for (final Map.Entry<String, List<String>> header : mHeaders.entrySet()) {
-      for (final String value : header.getValue()) {
-        cn.addRequestProperty(header.getKey(), value);
+    final CookieHandler cookieHandler = mHttpManager.getCookieManager();
+    if (cookieHandler instanceof CookieJar) {
+      final String cookie = ((CookieJar) cookieHandler).getCookieHeader(uri);
+      if (cookie != null) {
+        cn.addRequestProperty(COOKIE, cookie);
+      }
+    } else {
+      final Map<String, List<String>> cookies = cookieHandler.get(uri, new HashMap<String, List<String>>());
+      for (final Map.Entry<String, List<String>> cookie : cookies.entrySet()) {
+        for (final String value : cookie.getValue()) {
+          cn.addRequestProperty(cookie.getKey(), value);
+        }
       }
     }
+    final HttpHeaders headers = mHeaders;
+    for (int i = 0; i < headers.fieldCount(); ++i) {
+      cn.addRequestProperty(headers.nameAt(i), headers.valueAt(i));
+    }
+    if (cn.getRequestProperty(HttpEncoding.ACCEPT_ENCODING) == null) {
+      cn.setRequestProperty(HttpEncoding.ACCEPT_ENCODING, HttpEncoding.ACCEPT_ENCODING_VALUE);
+    }
     onPrepareConnection(cn);
   }
 
   @SuppressWarnings("checkstyle:illegalcatch")
   private V onSuccessInternal(HttpURLConnection cn) throws Exception {
+    BodyInputStream counter = null;
     try {
       final URI uri = getEncodedUriInternal();
-      final Map<String, List<String>> headers = getHeaderFields(cn);
-      final CookieManager cookieManager = mHttpManager.getCookieManager();
+      final HttpHeaders headers = HttpHeaders.of(cn);
+      final CookieHandler cookieHandler = mHttpManager.getCookieManager();
       final CacheManager cacheManager = mHttpManager.getCacheManager();
-      cookieManager.put(uri, headers);
+      cookieHandler.put(uri, headers);
       final int responseCode = cn.getResponseCode();
-      InputStream content = getInputStream(cn);
-      if (responseCode == HttpURLConnection.HTTP_OK && mCachePolicy.shouldCache(uri)) {
+      final String encoding = HttpEncoding.getContentEncoding(headers);
+      counter = new BodyInputStream(getInputStream(cn));
+      InputStream content = counter;
+      if (responseCode == HttpURLConnection.HTTP_OK && !isStreaming() && mCachePolicy.shouldCache(uri)) {
         content = cacheManager.put(uri, headers, content);
       } else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && mCachePolicy.shouldCache(uri)) {
+        mHttpManager.getMetrics().onCacheRevalidation();
         content = cacheManager.update(uri, headers);
+      } else if (encoding != null) {
+        content = new DecodedInputStream(HttpEncoding.decode(content, encoding), counter,
+            parseLength(headers.getFirst(CONTENT_LENGTH)));
+      }
+      if (encoding != null) {
+        return onSuccessInternal(responseCode, headers.without(HttpEncoding.CONTENT_ENCODING, CONTENT_LENGTH),
+            content);
       }
       return onSuccessInternal(responseCode, headers, content);
     } catch (Exception e) {
-      throw onException(new HttpException(getEncodedUrlInternal(), e));
+      throw onException(new HttpException(getEncodedUrlInternal(),
+          mDeadlineExceeded.get() ? newDeadlineException(e) : e));
+    } finally {
+      if (counter != null) {
+        counter.complete();
+      }
     }
   }
 
   private V onSuccessInternal(int statusCode, @NonNull Map<String, List<String>> headers,
                               @NonNull InputStream content) throws Exception {
     mStatusCode.compareAndSet(mStatusCode.get(), statusCode);
+    if (mFlight != null && mHttpManager.land(mFlight)) {
+      final byte[] shared = toByteArray(content);
+      mFlight.complete(statusCode, headers, shared);
+      content = new ByteArrayInputStream(shared);
+    }
     try {
-      if (mCallback != null) {
-        return mCallback.onSuccess(mStatusCode.get(), headers, content);
+      if (mCallback != null && !mCancelled.get()) {
+        final HttpEventListener events = mHttpManager.getEventListener();
+        events.onCallbackStart(this, System.nanoTime());
+        try {
+          return mCallback.onSuccess(mStatusCode.get(), headers, content);
+        } finally {
+          events.onCallbackEnd(this, System.nanoTime());
+        }
       }
     } finally {
       IOUtils.closeQuietly(content);
@@ -285,4 +894,61 @@ public abstract class HttpTask<V> implements Callable<V> {
     return null;
   }
 
+  /**
+   * Network body stream, counts the bytes and reports the end of the body once.
+   */
+  private final class BodyInputStream extends CountingInputStream {
+
+    private boolean mComplete;
+
+    BodyInputStream(@NonNull InputStream in) {
+      super(in);
+    }
+
+    @Override
+    protected synchronized void afterRead(int n) {
+      super.afterRead(n);
+      if (n == -1) {
+        complete();
+      }
+    }
+
+    synchronized void complete() {
+      if (!mComplete) {
+        mComplete = true;
+        mBytesIn.addAndGet(getByteCount());
+        mHttpManager.getEventListener().onBodyComplete(HttpTask.this, System.nanoTime(), getByteCount());
+      }
+    }
+
+  }
+
+  /**
+   * Ends an attempt that should be retried after the delay.
+   */
+  static final class Backoff extends Exception {
+
+    private final long mDelayMs;
+
+    Backoff(long delayMs) {
+      mDelayMs = delayMs;
+    }
+
+    long getDelayMs() {
+      return mDelayMs;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+
+  }
+
+  public enum Priority {
+    IMMEDIATE,
+    NORMAL,
+    BACKGROUND
+  }
+
 }
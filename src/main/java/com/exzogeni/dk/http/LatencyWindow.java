@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import java.util.Arrays;
+
+/**
+ * Ring buffer of the most recent latency samples.
+ *
+ * @author Daniel Serdyukov
+ */
+final class LatencyWindow {
+
+  private final long[] mSamples;
+
+  private int mPosition;
+
+  private int mCount;
+
+  LatencyWindow(int size) {
+    mSamples = new long[size];
+  }
+
+  synchronized void add(long sample) {
+    mSamples[mPosition] = sample;
+    mPosition = (mPosition + 1) % mSamples.length;
+    if (mCount < mSamples.length) {
+      mCount++;
+    }
+  }
+
+  synchronized int size() {
+    return mCount;
+  }
+
+  /**
+   * @return sample at the given percentile (0..1), or -1 if the window is empty
+   */
+  long percentile(double percentile) {
+    final long[] samples;
+    synchronized (this) {
+      if (mCount == 0) {
+        return -1;
+      }
+      samples = Arrays.copyOf(mSamples, mCount);
+    }
+    Arrays.sort(samples);
+    return samples[Math.min(samples.length - 1, (int) Math.ceil(percentile * samples.length) - 1)];
+  }
+
+}
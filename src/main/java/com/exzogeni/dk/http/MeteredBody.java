@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.http.body.HttpBody;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes a request body puts on the wire.
+ *
+ * @author Daniel Serdyukov
+ */
+final class MeteredBody implements HttpBody {
+
+  private final HttpBody mBody;
+
+  private final AtomicLong mBytesWritten;
+
+  MeteredBody(@NonNull HttpBody body, @NonNull AtomicLong bytesWritten) {
+    mBody = body;
+    mBytesWritten = bytesWritten;
+  }
+
+  @Nullable
+  @Override
+  public String getContentType() {
+    return mBody.getContentType();
+  }
+
+  @Nullable
+  @Override
+  public String getContentEncoding() {
+    return mBody.getContentEncoding();
+  }
+
+  @Override
+  public long getContentLength() {
+    return mBody.getContentLength();
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return mBody.isRepeatable();
+  }
+
+  @Override
+  public void writeTo(@NonNull OutputStream out) throws IOException {
+    final CountingOutputStream counter = new CountingOutputStream(out);
+    try {
+      mBody.writeTo(counter);
+    } finally {
+      mBytesWritten.addAndGet(counter.getByteCount());
+    }
+  }
+
+}
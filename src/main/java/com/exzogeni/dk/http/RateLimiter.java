@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket of {@link HttpManager#setRateLimit}. Tokens are reserved ahead of time: a request that
+ * exceeds the rate is told how long to wait instead of being rejected, and the wait happens before the request is
+ * scheduled, so no worker thread is blocked.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class RateLimiter {
+
+  private final AtomicLong mTheoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+  private final String mKey;
+
+  private final double mPermitsPerSecond;
+
+  private final int mBurst;
+
+  private final long mIntervalNanos;
+
+  private final long mToleranceNanos;
+
+  RateLimiter(@NonNull String key, double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive double");
+    }
+    if (burst <= 0) {
+      throw new IllegalArgumentException("burst must be positive int");
+    }
+    mKey = key;
+    mPermitsPerSecond = permitsPerSecond;
+    mBurst = burst;
+    mIntervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    mToleranceNanos = mIntervalNanos * (burst - 1);
+  }
+
+  /**
+   * @return host or url prefix the limiter applies to
+   */
+  @NonNull
+  public String getKey() {
+    return mKey;
+  }
+
+  public double getPermitsPerSecond() {
+    return mPermitsPerSecond;
+  }
+
+  public int getBurst() {
+    return mBurst;
+  }
+
+  /**
+   * Stops handing out tokens for the given time, e.g. when the server asks to back off.
+   */
+  public void pause(long delayMs) {
+    final long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs) + mToleranceNanos;
+    long arrival;
+    do {
+      arrival = mTheoreticalArrival.get();
+      if (arrival != Long.MIN_VALUE && arrival - until >= 0) {
+        return;
+      }
+    } while (!mTheoreticalArrival.compareAndSet(arrival, until));
+  }
+
+  /**
+   * Reserves a token.
+   *
+   * @return nanoseconds to wait before the token may be used
+   */
+  long reserve() {
+    while (true) {
+      final long now = System.nanoTime();
+      final long arrival = mTheoreticalArrival.get();
+      final long start = arrival == Long.MIN_VALUE || arrival - now < 0 ? now : arrival;
+      if (mTheoreticalArrival.compareAndSet(arrival, start + mIntervalNanos)) {
+        return Math.max(0, start - mToleranceNanos - now);
+      }
+    }
+  }
+
+  /**
+   * Takes a token only if one is available right now.
+   */
+  boolean tryAcquire() {
+    while (true) {
+      final long now = System.nanoTime();
+      final long arrival = mTheoreticalArrival.get();
+      final long start = arrival == Long.MIN_VALUE || arrival - now < 0 ? now : arrival;
+      if (start - mToleranceNanos - now > 0) {
+        return false;
+      }
+      if (mTheoreticalArrival.compareAndSet(arrival, start + mIntervalNanos)) {
+        return true;
+      }
+    }
+  }
+
+  boolean matches(@NonNull String host, @NonNull String url) {
+    if (mKey.indexOf('/') >= 0) {
+      return url.startsWith(mKey);
+    }
+    return mKey.equalsIgnoreCase(host);
+  }
+
+}
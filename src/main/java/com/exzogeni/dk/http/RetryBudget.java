@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every request deposits {@code ratio} of a retry, every retry withdraws a whole one. The balance never drops
+ * below zero and never exceeds {@code maxRetries}, so retries can't amplify the load on a failing host.
+ *
+ * @author Daniel Serdyukov
+ */
+final class RetryBudget {
+
+  private static final long SCALE = 1000;
+
+  private final AtomicLong mBalance;
+
+  private final long mDeposit;
+
+  private final long mCapacity;
+
+  RetryBudget(float ratio, int maxRetries) {
+    mDeposit = (long) (ratio * SCALE);
+    mCapacity = maxRetries * SCALE;
+    mBalance = new AtomicLong(mCapacity);
+  }
+
+  void deposit() {
+    long balance;
+    do {
+      balance = mBalance.get();
+      if (balance >= mCapacity) {
+        return;
+      }
+    } while (!mBalance.compareAndSet(balance, Math.min(mCapacity, balance + mDeposit)));
+  }
+
+  boolean withdraw() {
+    long balance;
+    do {
+      balance = mBalance.get();
+      if (balance < SCALE) {
+        return false;
+      }
+    } while (!mBalance.compareAndSet(balance, balance - SCALE));
+    return true;
+  }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Single-pass URL encoder. Characters that {@link URI} does not accept in a component are percent-encoded
+ * (as UTF-8), valid escapes are kept as is. Recent results are kept together with the parsed {@link URI}.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class UrlEncoder {
+
+  private static final int MAX_SIZE = 256;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private static final boolean[] PATH_CHARS = allowed(";/:@&=+$,");
+
+  private static final boolean[] QUERY_CHARS = allowed(";/?:@&=+$,[]");
+
+  private final Map<String, CacheEntry> mCache;
+
+  public UrlEncoder(final int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive int");
+    }
+    mCache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  @NonNull
+  public static UrlEncoder getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  private static boolean[] allowed(String reserved) {
+    final boolean[] chars = new boolean[128];
+    for (char c = 'a'; c <= 'z'; ++c) {
+      chars[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; ++c) {
+      chars[c] = true;
+    }
+    for (char c = '0'; c <= '9'; ++c) {
+      chars[c] = true;
+    }
+    for (final char c : "-_.!~*'()".toCharArray()) {
+      chars[c] = true;
+    }
+    for (final char c : reserved.toCharArray()) {
+      chars[c] = true;
+    }
+    return chars;
+  }
+
+  private static boolean isHex(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isEscape(String url, int index) {
+    return index + 2 < url.length() && isHex(url.charAt(index + 1)) && isHex(url.charAt(index + 2));
+  }
+
+  private static int getComponentStart(String url) {
+    for (int i = 0; i < url.length(); ++i) {
+      final char c = url.charAt(i);
+      if (c == ':') {
+        if (url.startsWith("//", i + 1)) {
+          final int authorityEnd = indexOfAny(url, i + 3, "/?#");
+          return authorityEnd >= 0 ? authorityEnd : url.length();
+        }
+        return i + 1;
+      }
+      if (c == '/' || c == '?' || c == '#') {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  private static int indexOfAny(String url, int from, String chars) {
+    for (int i = from; i < url.length(); ++i) {
+      if (chars.indexOf(url.charAt(i)) >= 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @NonNull
+  static String encodeUrl(@NonNull String url) {
+    StringBuilder encoded = null;
+    boolean query = false;
+    boolean fragment = false;
+    final int length = url.length();
+    for (int i = getComponentStart(url); i < length; ++i) {
+      final char c = url.charAt(i);
+      final boolean keep;
+      if (c == '#' && !fragment) {
+        fragment = true;
+        keep = true;
+      } else if (c == '?' && !query && !fragment) {
+        query = true;
+        keep = true;
+      } else if (c == '%') {
+        keep = isEscape(url, i);
+      } else {
+        keep = c < 128 && (query || fragment ? QUERY_CHARS : PATH_CHARS)[c];
+      }
+      if (keep) {
+        if (encoded != null) {
+          encoded.append(c);
+        }
+        continue;
+      }
+      if (encoded == null) {
+        encoded = new StringBuilder(length + 16).append(url, 0, i);
+      }
+      final int end = Character.isHighSurrogate(c) && i + 1 < length ? i + 2 : i + 1;
+      for (final byte b : url.substring(i, end).getBytes(UTF_8)) {
+        encoded.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+      }
+      i = end - 1;
+    }
+    if (encoded != null) {
+      return encoded.toString();
+    }
+    return url;
+  }
+
+  @NonNull
+  public String encode(@NonNull String url) {
+    return getEntry(url).mUrl;
+  }
+
+  /**
+   * @return parsed form of the encoded url or null if it is still not a valid {@link URI}
+   */
+  @Nullable
+  public URI toUri(@NonNull String url) {
+    return getEntry(url).mUri;
+  }
+
+  private CacheEntry getEntry(String url) {
+    synchronized (mCache) {
+      final CacheEntry entry = mCache.get(url);
+      if (entry != null) {
+        return entry;
+      }
+    }
+    final String encoded = encodeUrl(url);
+    URI uri;
+    try {
+      uri = new URI(encoded);
+    } catch (URISyntaxException e) {
+      uri = null;
+    }
+    final CacheEntry entry = new CacheEntry(uri != null ? encoded : url, uri);
+    synchronized (mCache) {
+      mCache.put(url, entry);
+    }
+    return entry;
+  }
+
+  private static final class CacheEntry {
+
+    final String mUrl;
+
+    final URI mUri;
+
+    CacheEntry(String url, URI uri) {
+      mUrl = url;
+      mUri = uri;
+    }
+
+  }
+
+  private static final class Holder {
+    public static final UrlEncoder INSTANCE = new UrlEncoder(MAX_SIZE);
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.body;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class ByteArrayBody implements HttpBody {
+
+  private final String mContentType;
+
+  private final byte[] mContent;
+
+  private final int mOffset;
+
+  private final int mLength;
+
+  public ByteArrayBody(@Nullable String contentType, @NonNull byte[] content) {
+    this(contentType, content, 0, content.length);
+  }
+
+  public ByteArrayBody(@Nullable String contentType, @NonNull byte[] content, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > content.length) {
+      throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length);
+    }
+    mContentType = contentType;
+    mContent = content;
+    mOffset = offset;
+    mLength = length;
+  }
+
+  @Nullable
+  @Override
+  public String getContentType() {
+    return mContentType;
+  }
+
+  @Nullable
+  @Override
+  public String getContentEncoding() {
+    return null;
+  }
+
+  @Override
+  public long getContentLength() {
+    return mLength;
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public void writeTo(@NonNull OutputStream out) throws IOException {
+    out.write(mContent, mOffset, mLength);
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.body;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.io.ByteBufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the remaining bytes of the buffer without changing its position.
+ *
+ * @author Daniel Serdyukov
+ */
+public class ByteBufferBody implements HttpBody {
+
+  private final String mContentType;
+
+  private final ByteBuffer mContent;
+
+  public ByteBufferBody(@Nullable String contentType, @NonNull ByteBuffer content) {
+    mContentType = contentType;
+    mContent = content.duplicate();
+  }
+
+  @Nullable
+  @Override
+  public String getContentType() {
+    return mContentType;
+  }
+
+  @Nullable
+  @Override
+  public String getContentEncoding() {
+    return null;
+  }
+
+  @Override
+  public long getContentLength() {
+    return mContent.remaining();
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public void writeTo(@NonNull OutputStream out) throws IOException {
+    final ByteBuffer content = mContent.duplicate();
+    if (content.hasArray()) {
+      out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+      return;
+    }
+    final byte[] buffer = ByteBufferPool.getInstance().obtain();
+    try {
+      while (content.hasRemaining()) {
+        final int length = Math.min(buffer.length, content.remaining());
+        content.get(buffer, 0, length);
+        out.write(buffer, 0, length);
+      }
+    } finally {
+      ByteBufferPool.getInstance().free(buffer);
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.body;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.io.ByteBufferPool;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class FileBody implements HttpBody {
+
+  private final String mContentType;
+
+  private final File mFile;
+
+  public FileBody(@Nullable String contentType, @NonNull File file) {
+    mContentType = contentType;
+    mFile = file;
+  }
+
+  @Nullable
+  @Override
+  public String getContentType() {
+    return mContentType;
+  }
+
+  @Nullable
+  @Override
+  public String getContentEncoding() {
+    return null;
+  }
+
+  @Override
+  public long getContentLength() {
+    return mFile.length();
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public void writeTo(@NonNull OutputStream out) throws IOException {
+    final InputStream in = new FileInputStream(mFile);
+    final byte[] buffer = ByteBufferPool.getInstance().obtain();
+    try {
+      IOUtils.copyLarge(in, out, buffer);
+    } finally {
+      ByteBufferPool.getInstance().free(buffer);
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.body;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.http.HttpEncoding;
+import com.exzogeni.dk.io.GzipPoolOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Gzip-compresses another body on the fly. The compressed length is unknown, so it is always sent chunked.
+ *
+ * @author Daniel Serdyukov
+ */
+public class GzipBody implements HttpBody {
+
+  private final HttpBody mBody;
+
+  public GzipBody(@NonNull HttpBody body) {
+    mBody = body;
+  }
+
+  @Nullable
+  @Override
+  public String getContentType() {
+    return mBody.getContentType();
+  }
+
+  @Nullable
+  @Override
+  public String getContentEncoding() {
+    return HttpEncoding.GZIP;
+  }
+
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return mBody.isRepeatable();
+  }
+
+  @Override
+  public void writeTo(@NonNull OutputStream out) throws IOException {
+    final GzipPoolOutputStream gzip = new GzipPoolOutputStream(new NonClosingOutputStream(out));
+    try {
+      mBody.writeTo(gzip);
+      gzip.finish();
+    } finally {
+      gzip.close();
+    }
+  }
+
+  private static final class NonClosingOutputStream extends FilterOutputStream {
+
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.body;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public interface HttpBody {
+
+  @Nullable
+  String getContentType();
+
+  @Nullable
+  String getContentEncoding();
+
+  /**
+   * @return body length in bytes, or -1 if unknown (the body is sent in chunked streaming mode)
+   */
+  long getContentLength();
+
+  /**
+   * @return true if {@link #writeTo(OutputStream)} may be called more than once, e.g. to retry the request
+   */
+  boolean isRepeatable();
+
+  void writeTo(@NonNull OutputStream out) throws IOException;
+
+}
@@ -19,6 +19,8 @@ package com.exzogeni.dk.http.cache;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.exzogeni.dk.http.HttpEncoding;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -55,6 +57,17 @@ public class CacheManager {
     return null;
   }
 
+  /**
+   * @return cached content regardless of its age, e.g. to serve it while the origin is unavailable
+   */
+  @Nullable
+  public InputStream getStale(@NonNull URI uri) throws IOException {
+    if (mCacheStore != null) {
+      return mCacheStore.get(uri, null);
+    }
+    return null;
+  }
+
   @NonNull
   public InputStream put(@NonNull URI uri, @NonNull Map<String, List<String>> headers, @NonNull InputStream content)
       throws IOException {
@@ -64,7 +77,7 @@ public class CacheManager {
         return mCacheStore.put(uri, headers, content, maxAge);
       }
     }
-    return content;
+    return HttpEncoding.decode(content, HttpEncoding.getContentEncoding(headers));
   }
 
   @NonNull
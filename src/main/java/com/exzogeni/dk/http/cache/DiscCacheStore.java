@@ -23,6 +23,7 @@ import android.text.TextUtils;
 
 import com.exzogeni.dk.crypto.Digest;
 import com.exzogeni.dk.http.HttpDate;
+import com.exzogeni.dk.http.HttpEncoding;
 import com.exzogeni.dk.io.BufferPoolInputStream;
 import com.exzogeni.dk.io.BufferPoolOutputStream;
 import com.exzogeni.dk.io.ByteBufferPool;
@@ -38,9 +39,10 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -58,10 +60,23 @@ public class DiscCacheStore implements CacheStore {
     ACCEPT_HEADERS.put("last-modified", "If-Modified-Since");
   }
 
+  private static final String META_CONTENT_ENCODING = ":content-encoding";
+
   private final File mCacheDir;
 
+  private final boolean mStoreEncoded;
+
   public DiscCacheStore(@NonNull File cacheDir) {
+    this(cacheDir, false);
+  }
+
+  /**
+   * @param storeEncoded keep gzip/deflate responses compressed on disc and decode them on every read,
+   *                     otherwise responses are decoded once before they are written
+   */
+  public DiscCacheStore(@NonNull File cacheDir, boolean storeEncoded) {
     mCacheDir = cacheDir;
+    mStoreEncoded = storeEncoded;
   }
 
   @Nullable
@@ -70,14 +85,17 @@ public class DiscCacheStore implements CacheStore {
     final File cacheFile = new File(mCacheDir, Digest.getInstance().hash(uri.toString()));
     final File metaFile = new File(mCacheDir, "." + cacheFile.getName());
     if (cacheFile.exists() && metaFile.exists()) {
+      final Map<String, List<String>> metaHeaders = new HashMap<>();
+      final long expireTime = readMetaFile(metaFile, metaHeaders);
+      final String encoding = getMetaEncoding(metaHeaders);
       if (headers == null) {
-        return new AtomicFile(cacheFile).openRead();
+        return HttpEncoding.decode(new AtomicFile(cacheFile).openRead(), encoding);
       } else {
-        final long expireTime = readMetaFile(metaFile, headers);
+        headers.putAll(metaHeaders);
         Logger.debug("expireTime=%s, systemTime=%s", HttpDate.format(expireTime),
             HttpDate.format(System.currentTimeMillis()));
         if (expireTime > System.currentTimeMillis()) {
-          return new AtomicFile(cacheFile).openRead();
+          return HttpEncoding.decode(new AtomicFile(cacheFile).openRead(), encoding);
         }
       }
     }
@@ -93,8 +111,18 @@ public class DiscCacheStore implements CacheStore {
     }
     final File cacheFile = new File(mCacheDir, Digest.getInstance().hash(uri.toString()));
     final File metaFile = new File(mCacheDir, "." + cacheFile.getName());
-    saveMetaFile(metaFile, getMetaHeaders(headers), maxAge);
-    return saveCacheFile(cacheFile, content);
+    final String encoding = HttpEncoding.getContentEncoding(headers);
+    try {
+      if (mStoreEncoded) {
+        saveMetaFile(metaFile, getMetaHeaders(headers, encoding), maxAge);
+        return HttpEncoding.decode(saveCacheFile(cacheFile, content), encoding);
+      }
+      saveMetaFile(metaFile, getMetaHeaders(headers, null), maxAge);
+      return saveCacheFile(cacheFile, HttpEncoding.decode(content, encoding));
+    } catch (IOException e) {
+      new AtomicFile(metaFile).delete();
+      throw e;
+    }
   }
 
   @NonNull
@@ -104,24 +132,45 @@ public class DiscCacheStore implements CacheStore {
     final File cacheFile = new File(mCacheDir, Digest.getInstance().hash(uri.toString()));
     final File metaFile = new File(mCacheDir, "." + cacheFile.getName());
     if (cacheFile.exists() && metaFile.exists()) {
-      saveMetaFile(metaFile, getMetaHeaders(headers), maxAge);
-      return new AtomicFile(cacheFile).openRead();
+      final String encoding = getMetaEncoding(metaFile);
+      saveMetaFile(metaFile, getMetaHeaders(headers, encoding), maxAge);
+      return HttpEncoding.decode(new AtomicFile(cacheFile).openRead(), encoding);
     }
     throw new FileNotFoundException(cacheFile.getAbsolutePath());
   }
 
   @NonNull
-  private Map<String, List<String>> getMetaHeaders(@NonNull Map<String, List<String>> headers) {
-    final Map<String, List<String>> metaHeaders = new HashMap<>(ACCEPT_HEADERS.size());
+  private Map<String, List<String>> getMetaHeaders(@NonNull Map<String, List<String>> headers,
+                                                   @Nullable String encoding) {
+    final Map<String, List<String>> metaHeaders = new HashMap<>(ACCEPT_HEADERS.size() + 1);
     for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
       final String metaHeaderName = ACCEPT_HEADERS.get(header.getKey().toLowerCase());
       if (!TextUtils.isEmpty(metaHeaderName)) {
         metaHeaders.put(metaHeaderName, header.getValue());
       }
     }
+    if (encoding != null) {
+      metaHeaders.put(META_CONTENT_ENCODING, Collections.singletonList(encoding));
+    }
     return metaHeaders;
   }
 
+  @Nullable
+  private String getMetaEncoding(@NonNull File metaFile) throws IOException {
+    final Map<String, List<String>> metaHeaders = new HashMap<>();
+    readMetaFile(metaFile, metaHeaders);
+    return getMetaEncoding(metaHeaders);
+  }
+
+  @Nullable
+  private String getMetaEncoding(@NonNull Map<String, List<String>> metaHeaders) {
+    final List<String> encoding = metaHeaders.remove(META_CONTENT_ENCODING);
+    if (encoding != null && !encoding.isEmpty()) {
+      return encoding.get(0);
+    }
+    return null;
+  }
+
   private void saveMetaFile(@NonNull File metaFile, @NonNull Map<String, List<String>> metaHeaders, long maxAge)
       throws IOException {
     final AtomicFile af = new AtomicFile(metaFile);
@@ -150,11 +199,15 @@ public class DiscCacheStore implements CacheStore {
     final AtomicFile af = new AtomicFile(cacheFile);
     final FileOutputStream fos = af.startWrite();
     try {
-      final OutputStream out = new BufferPoolOutputStream(fos);
       final byte[] buffer = ByteBufferPool.getInstance().obtain();
       try {
-        IOUtils.copyLarge(content, out, buffer);
-        IOUtils.closeQuietly(out);
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+          if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Cache write aborted");
+          }
+          fos.write(buffer, 0, read);
+        }
         af.finishWrite(fos);
       } finally {
         ByteBufferPool.getInstance().free(buffer);
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.callback;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.http.HttpException;
+import com.exzogeni.dk.http.HttpStatus;
+import com.exzogeni.dk.io.ByteBufferPool;
+import com.exzogeni.dk.log.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the response body to a file. Bodies served from a cache file are moved with
+ * {@link FileChannel#transferTo}, network bodies are written from a pooled buffer straight into the target channel.
+ *
+ * @author Daniel Serdyukov
+ */
+public class FileCallback implements HttpCallback<File> {
+
+  private final File mFile;
+
+  public FileCallback(@NonNull File file) {
+    mFile = file;
+  }
+
+  private static long transfer(@NonNull FileChannel source, @NonNull FileChannel target) throws IOException {
+    final long size = source.size();
+    long position = source.position();
+    while (position < size) {
+      position += source.transferTo(position, size - position, target);
+    }
+    return target.position();
+  }
+
+  private static long copy(@NonNull InputStream content, @NonNull FileChannel target) throws IOException {
+    final byte[] buffer = ByteBufferPool.getInstance().obtain();
+    try {
+      int read;
+      while ((read = content.read(buffer)) != -1) {
+        final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+        while (chunk.hasRemaining()) {
+          target.write(chunk);
+        }
+      }
+      return target.position();
+    } finally {
+      ByteBufferPool.getInstance().free(buffer);
+    }
+  }
+
+  @Override
+  public File onSuccess(int statusCode, @NonNull Map<String, List<String>> headers, @NonNull InputStream content)
+      throws Exception {
+    if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+      throw new IOException(HttpStatus.getStatusLine(statusCode));
+    }
+    final File dir = mFile.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Couldn't create directory " + dir);
+    }
+    final FileOutputStream fos = new FileOutputStream(mFile);
+    try {
+      final FileChannel target = fos.getChannel();
+      final long length;
+      if (content instanceof FileInputStream) {
+        length = transfer(((FileInputStream) content).getChannel(), target);
+      } else {
+        length = copy(content, target);
+      }
+      Logger.debug("%s saved, %d bytes", mFile, length);
+    } finally {
+      IOUtils.closeQuietly(fos);
+    }
+    onSuccess(statusCode, headers, mFile);
+    return mFile;
+  }
+
+  @Override
+  public void onException(@NonNull HttpException e) {
+    Logger.error(e);
+  }
+
+  public void onSuccess(int statusCode, @NonNull Map<String, List<String>> headers, @NonNull File file) {
+  }
+
+}
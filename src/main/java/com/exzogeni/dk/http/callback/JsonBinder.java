@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.callback;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fills an object from a JSON object one field at a time, without reflection and without an intermediate tree.
+ * Nested objects are read by calling another binder from {@link #bind}.
+ *
+ * @author Daniel Serdyukov
+ */
+public abstract class JsonBinder<T> {
+
+  /**
+   * Reads an object, or null for a JSON null.
+   */
+  @Nullable
+  public T read(@NonNull JsonPullParser parser) throws IOException {
+    if (parser.peek() == JsonPullParser.Token.NULL) {
+      parser.nextNull();
+      return null;
+    }
+    final T object = newInstance();
+    parser.beginObject();
+    while (parser.hasNext()) {
+      final String name = parser.nextName();
+      if (!bind(object, name, parser)) {
+        parser.skipValue();
+      }
+    }
+    parser.endObject();
+    return object;
+  }
+
+  /**
+   * Reads an array of objects, or null for a JSON null.
+   */
+  @Nullable
+  public List<T> readList(@NonNull JsonPullParser parser) throws IOException {
+    if (parser.peek() == JsonPullParser.Token.NULL) {
+      parser.nextNull();
+      return null;
+    }
+    final List<T> list = new ArrayList<>();
+    parser.beginArray();
+    while (parser.hasNext()) {
+      list.add(read(parser));
+    }
+    parser.endArray();
+    return list;
+  }
+
+  @NonNull
+  protected abstract T newInstance();
+
+  /**
+   * Reads the value of the field into the object.
+   *
+   * @return false if the field is unknown, its value is skipped then
+   */
+  protected abstract boolean bind(@NonNull T object, @NonNull String name, @NonNull JsonPullParser parser)
+      throws IOException;
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.callback;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binds the JSON object of the response body with a {@link JsonBinder}.
+ *
+ * @author Daniel Serdyukov
+ */
+public class JsonBindingCallback<T> extends JsonCallback<T> {
+
+  private final JsonBinder<T> mBinder;
+
+  public JsonBindingCallback(@NonNull JsonBinder<T> binder) {
+    mBinder = binder;
+  }
+
+  @Override
+  protected T onParse(int statusCode, @NonNull Map<String, List<String>> headers, @NonNull JsonPullParser parser)
+      throws Exception {
+    return mBinder.read(parser);
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.callback;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.http.HttpException;
+import com.exzogeni.dk.log.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the response body with a {@link JsonPullParser} while it is read, unlike {@link StringCallback} the body
+ * is never held in memory as a whole. The charset is taken from the Content-Type header, UTF-8 by default.
+ *
+ * @author Daniel Serdyukov
+ */
+public abstract class JsonCallback<V> implements HttpCallback<V> {
+
+  private static final String CONTENT_TYPE = "Content-Type";
+
+  private static final String CHARSET = "charset=";
+
+  @NonNull
+  private static Charset getCharset(@NonNull Map<String, List<String>> headers) {
+    for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (CONTENT_TYPE.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        final String contentType = header.getValue().get(0);
+        final int start = contentType.toLowerCase().indexOf(CHARSET);
+        if (start >= 0) {
+          int end = contentType.indexOf(';', start);
+          if (end < 0) {
+            end = contentType.length();
+          }
+          try {
+            return Charset.forName(contentType.substring(start + CHARSET.length(), end).replace("\"", "").trim());
+          } catch (IllegalArgumentException e) {
+            Logger.quiet("%s", e);
+          }
+        }
+      }
+    }
+    return Charset.forName("UTF-8");
+  }
+
+  @Override
+  public V onSuccess(int statusCode, @NonNull Map<String, List<String>> headers, @NonNull InputStream content)
+      throws Exception {
+    final JsonPullParser parser = new JsonPullParser(content, getCharset(headers));
+    final V result;
+    try {
+      result = onParse(statusCode, headers, parser);
+    } finally {
+      IOUtils.closeQuietly(parser);
+    }
+    onSuccess(statusCode, headers, result);
+    return result;
+  }
+
+  @Override
+  public void onException(@NonNull HttpException e) {
+    Logger.error(e);
+  }
+
+  /**
+   * Called on the worker thread that reads the response.
+   */
+  @Nullable
+  protected abstract V onParse(int statusCode, @NonNull Map<String, List<String>> headers,
+                               @NonNull JsonPullParser parser) throws Exception;
+
+  public void onSuccess(int statusCode, @NonNull Map<String, List<String>> headers, @Nullable V result) {
+
+  }
+
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.callback;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.io.ByteBufferPool;
+import com.exzogeni.dk.io.CharBufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Pull parser of a JSON document read straight from a stream. Bytes are decoded chunk by chunk into pooled
+ * buffers, so only the value being read is materialized, never the whole document. The API follows
+ * {@code android.util.JsonReader}: {@link #peek()} the next token and consume it with the matching method.
+ * Malformed input is reported with an {@link IOException}, reading a token of the wrong type with an
+ * {@link IllegalStateException}. The parser must be {@link #close() closed} to return its buffers to the pools.
+ *
+ * @author Daniel Serdyukov
+ */
+public final class JsonPullParser implements Closeable {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int PEEKED_NONE = 0;
+
+  private static final int PEEKED_BEGIN_OBJECT = 1;
+
+  private static final int PEEKED_END_OBJECT = 2;
+
+  private static final int PEEKED_BEGIN_ARRAY = 3;
+
+  private static final int PEEKED_END_ARRAY = 4;
+
+  private static final int PEEKED_NAME = 5;
+
+  private static final int PEEKED_STRING = 6;
+
+  private static final int PEEKED_NUMBER = 7;
+
+  private static final int PEEKED_TRUE = 8;
+
+  private static final int PEEKED_FALSE = 9;
+
+  private static final int PEEKED_NULL = 10;
+
+  private static final int PEEKED_END_DOCUMENT = 11;
+
+  private static final Token[] TOKENS = new Token[]{
+      null, Token.BEGIN_OBJECT, Token.END_OBJECT, Token.BEGIN_ARRAY, Token.END_ARRAY, Token.NAME, Token.STRING,
+      Token.NUMBER, Token.BOOLEAN, Token.BOOLEAN, Token.NULL, Token.END_DOCUMENT
+  };
+
+  private static final int EMPTY_DOCUMENT = 0;
+
+  private static final int NONEMPTY_DOCUMENT = 1;
+
+  private static final int EMPTY_ARRAY = 2;
+
+  private static final int NONEMPTY_ARRAY = 3;
+
+  private static final int EMPTY_OBJECT = 4;
+
+  private static final int DANGLING_NAME = 5;
+
+  private static final int NONEMPTY_OBJECT = 6;
+
+  private final StringBuilder mBuilder = new StringBuilder();
+
+  private final InputStream mIn;
+
+  private final CharsetDecoder mDecoder;
+
+  private final ByteBuffer mByteBuffer;
+
+  private byte[] mBytes;
+
+  private char[] mChars;
+
+  private int mPos;
+
+  private int mLimit;
+
+  private long mOffset;
+
+  private boolean mEndOfInput;
+
+  private boolean mFlushed;
+
+  private int mPeeked = PEEKED_NONE;
+
+  private String mPeekedNumber;
+
+  private int[] mStack = new int[16];
+
+  private int mStackSize;
+
+  public JsonPullParser(@NonNull InputStream in) {
+    this(in, UTF_8);
+  }
+
+  public JsonPullParser(@NonNull InputStream in, @NonNull Charset charset) {
+    mIn = in;
+    mDecoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    mBytes = ByteBufferPool.getInstance().obtain();
+    mByteBuffer = ByteBuffer.wrap(mBytes);
+    mByteBuffer.limit(0);
+    mChars = CharBufferPool.getInstance().obtain();
+    mStack[mStackSize++] = EMPTY_DOCUMENT;
+  }
+
+  @NonNull
+  public Token peek() throws IOException {
+    return TOKENS[peeked()];
+  }
+
+  public boolean hasNext() throws IOException {
+    final int peeked = peeked();
+    return peeked != PEEKED_END_OBJECT && peeked != PEEKED_END_ARRAY && peeked != PEEKED_END_DOCUMENT;
+  }
+
+  public void beginObject() throws IOException {
+    expect(PEEKED_BEGIN_OBJECT);
+    push(EMPTY_OBJECT);
+    mPeeked = PEEKED_NONE;
+  }
+
+  public void endObject() throws IOException {
+    expect(PEEKED_END_OBJECT);
+    --mStackSize;
+    mPeeked = PEEKED_NONE;
+  }
+
+  public void beginArray() throws IOException {
+    expect(PEEKED_BEGIN_ARRAY);
+    push(EMPTY_ARRAY);
+    mPeeked = PEEKED_NONE;
+  }
+
+  public void endArray() throws IOException {
+    expect(PEEKED_END_ARRAY);
+    --mStackSize;
+    mPeeked = PEEKED_NONE;
+  }
+
+  @NonNull
+  public String nextName() throws IOException {
+    expect(PEEKED_NAME);
+    mPeeked = PEEKED_NONE;
+    return readQuoted();
+  }
+
+  /**
+   * @return string value, or the literal of a number value
+   */
+  @NonNull
+  public String nextString() throws IOException {
+    final int peeked = peeked();
+    if (peeked == PEEKED_NUMBER) {
+      mPeeked = PEEKED_NONE;
+      return mPeekedNumber;
+    }
+    expect(PEEKED_STRING);
+    mPeeked = PEEKED_NONE;
+    return readQuoted();
+  }
+
+  public boolean nextBoolean() throws IOException {
+    final int peeked = peeked();
+    if (peeked != PEEKED_TRUE) {
+      expect(PEEKED_FALSE);
+    }
+    mPeeked = PEEKED_NONE;
+    return peeked == PEEKED_TRUE;
+  }
+
+  public void nextNull() throws IOException {
+    expect(PEEKED_NULL);
+    mPeeked = PEEKED_NONE;
+  }
+
+  /**
+   * Reads a number, or a string holding a number.
+   */
+  public double nextDouble() throws IOException {
+    return Double.parseDouble(nextNumber());
+  }
+
+  /**
+   * Reads a number, or a string holding a number, that has no fractional part.
+   */
+  public long nextLong() throws IOException {
+    final String value = nextNumber();
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      final double number = Double.parseDouble(value);
+      final long result = (long) number;
+      if (result != number) {
+        throw new NumberFormatException("Expected a long but was " + value);
+      }
+      return result;
+    }
+  }
+
+  public int nextInt() throws IOException {
+    final long value = nextLong();
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Expected an int but was " + value);
+    }
+    return (int) value;
+  }
+
+  /**
+   * Skips the next value, including nested arrays and objects, without materializing it.
+   */
+  public void skipValue() throws IOException {
+    int depth = 0;
+    do {
+      final int peeked = peeked();
+      if (peeked == PEEKED_BEGIN_OBJECT) {
+        push(EMPTY_OBJECT);
+        ++depth;
+      } else if (peeked == PEEKED_BEGIN_ARRAY) {
+        push(EMPTY_ARRAY);
+        ++depth;
+      } else if (peeked == PEEKED_END_OBJECT || peeked == PEEKED_END_ARRAY) {
+        if (depth == 0) {
+          throw new IllegalStateException("Expected a value but was " + TOKENS[peeked] + getLocation());
+        }
+        --mStackSize;
+        --depth;
+      } else if (peeked == PEEKED_NAME || peeked == PEEKED_STRING) {
+        skipQuoted();
+      } else if (peeked == PEEKED_END_DOCUMENT) {
+        throw new IllegalStateException("Expected a value but was END_DOCUMENT" + getLocation());
+      }
+      mPeeked = PEEKED_NONE;
+    } while (depth > 0);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mChars != null) {
+      CharBufferPool.getInstance().free(mChars);
+      ByteBufferPool.getInstance().free(mBytes);
+      mChars = null;
+      mBytes = null;
+      mIn.close();
+    }
+  }
+
+  private int peeked() throws IOException {
+    if (mChars == null) {
+      throw new IllegalStateException("JsonPullParser is closed");
+    }
+    if (mPeeked == PEEKED_NONE) {
+      mPeeked = doPeek();
+    }
+    return mPeeked;
+  }
+
+  private void expect(int expected) throws IOException {
+    final int peeked = peeked();
+    if (peeked != expected) {
+      throw new IllegalStateException("Expected " + TOKENS[expected] + " but was " + TOKENS[peeked] + getLocation());
+    }
+  }
+
+  @NonNull
+  private String nextNumber() throws IOException {
+    final int peeked = peeked();
+    if (peeked == PEEKED_NUMBER) {
+      mPeeked = PEEKED_NONE;
+      return mPeekedNumber;
+    }
+    if (peeked != PEEKED_STRING) {
+      throw new IllegalStateException("Expected NUMBER but was " + TOKENS[peeked] + getLocation());
+    }
+    mPeeked = PEEKED_NONE;
+    return readQuoted();
+  }
+
+  private void push(int scope) {
+    if (mStackSize == mStack.length) {
+      mStack = Arrays.copyOf(mStack, mStackSize * 2);
+    }
+    mStack[mStackSize++] = scope;
+  }
+
+  private int doPeek() throws IOException {
+    final int top = mStackSize - 1;
+    final int scope = mStack[top];
+    int c;
+    if (scope == EMPTY_ARRAY || scope == NONEMPTY_ARRAY) {
+      mStack[top] = NONEMPTY_ARRAY;
+      c = nextNonWhitespace(true);
+      if (c == ']') {
+        return PEEKED_END_ARRAY;
+      }
+      if (scope == NONEMPTY_ARRAY) {
+        if (c != ',') {
+          throw syntaxError("Unterminated array");
+        }
+        c = nextNonWhitespace(true);
+      }
+    } else if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT) {
+      mStack[top] = DANGLING_NAME;
+      c = nextNonWhitespace(true);
+      if (c == '}') {
+        return PEEKED_END_OBJECT;
+      }
+      if (scope == NONEMPTY_OBJECT) {
+        if (c != ',') {
+          throw syntaxError("Unterminated object");
+        }
+        c = nextNonWhitespace(true);
+      }
+      if (c != '"') {
+        throw syntaxError("Expected name");
+      }
+      return PEEKED_NAME;
+    } else if (scope == DANGLING_NAME) {
+      mStack[top] = NONEMPTY_OBJECT;
+      if (nextNonWhitespace(true) != ':') {
+        throw syntaxError("Expected ':'");
+      }
+      c = nextNonWhitespace(true);
+    } else if (scope == EMPTY_DOCUMENT) {
+      mStack[top] = NONEMPTY_DOCUMENT;
+      c = nextNonWhitespace(true);
+      if (c == '\uFEFF') {
+        c = nextNonWhitespace(true);
+      }
+    } else {
+      if (nextNonWhitespace(false) == -1) {
+        return PEEKED_END_DOCUMENT;
+      }
+      throw syntaxError("Expected end of document");
+    }
+    switch (c) {
+      case '{':
+        return PEEKED_BEGIN_OBJECT;
+      case '[':
+        return PEEKED_BEGIN_ARRAY;
+      case '"':
+        return PEEKED_STRING;
+      case 't':
+        expectLiteral("rue");
+        return PEEKED_TRUE;
+      case 'f':
+        expectLiteral("alse");
+        return PEEKED_FALSE;
+      case 'n':
+        expectLiteral("ull");
+        return PEEKED_NULL;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          readNumber((char) c);
+          return PEEKED_NUMBER;
+        }
+        throw syntaxError("Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  private int nextNonWhitespace(boolean required) throws IOException {
+    while (mPos < mLimit || fill(1)) {
+      final char c = mChars[mPos++];
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c;
+      }
+    }
+    if (required) {
+      throw syntaxError("End of input");
+    }
+    return -1;
+  }
+
+  private void expectLiteral(@NonNull String rest) throws IOException {
+    final int length = rest.length();
+    if (mLimit - mPos < length && !fill(length)) {
+      throw syntaxError("End of input");
+    }
+    for (int i = 0; i < length; ++i) {
+      if (mChars[mPos + i] != rest.charAt(i)) {
+        throw syntaxError("Unexpected literal");
+      }
+    }
+    mPos += length;
+    if ((mPos < mLimit || fill(1)) && Character.isLetterOrDigit(mChars[mPos])) {
+      throw syntaxError("Unexpected literal");
+    }
+  }
+
+  private void readNumber(char first) throws IOException {
+    mBuilder.setLength(0);
+    mBuilder.append(first);
+    while (mPos < mLimit || fill(1)) {
+      final char c = mChars[mPos];
+      if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+') {
+        mBuilder.append(c);
+        ++mPos;
+      } else {
+        break;
+      }
+    }
+    mPeekedNumber = mBuilder.toString();
+  }
+
+  /**
+   * Reads a string after its opening quote.
+   */
+  @NonNull
+  private String readQuoted() throws IOException {
+    mBuilder.setLength(0);
+    while (true) {
+      int start = mPos;
+      while (mPos < mLimit) {
+        final char c = mChars[mPos++];
+        if (c == '"') {
+          if (mBuilder.length() == 0) {
+            return new String(mChars, start, mPos - start - 1);
+          }
+          mBuilder.append(mChars, start, mPos - start - 1);
+          return mBuilder.toString();
+        } else if (c == '\\') {
+          mBuilder.append(mChars, start, mPos - start - 1);
+          mBuilder.append(readEscape());
+          start = mPos;
+        }
+      }
+      mBuilder.append(mChars, start, mPos - start);
+      if (!fill(1)) {
+        throw syntaxError("Unterminated string");
+      }
+    }
+  }
+
+  private void skipQuoted() throws IOException {
+    while (mPos < mLimit || fill(1)) {
+      final char c = mChars[mPos++];
+      if (c == '"') {
+        return;
+      } else if (c == '\\') {
+        if (mPos == mLimit && !fill(1)) {
+          break;
+        }
+        ++mPos;
+      }
+    }
+    throw syntaxError("Unterminated string");
+  }
+
+  private char readEscape() throws IOException {
+    if (mPos == mLimit && !fill(1)) {
+      throw syntaxError("Unterminated escape sequence");
+    }
+    final char c = mChars[mPos++];
+    switch (c) {
+      case 'u':
+        if (mLimit - mPos < 4 && !fill(4)) {
+          throw syntaxError("Unterminated escape sequence");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; ++i) {
+          final int digit = Character.digit(mChars[mPos + i], 16);
+          if (digit < 0) {
+            throw syntaxError("Malformed unicode escape");
+          }
+          value = value << 4 | digit;
+        }
+        mPos += 4;
+        return (char) value;
+      case 't':
+        return '\t';
+      case 'b':
+        return '\b';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case '"':
+      case '\\':
+      case '/':
+        return c;
+      default:
+        throw syntaxError("Invalid escape sequence");
+    }
+  }
+
+  /**
+   * Moves the unread chars to the start of the buffer and decodes until at least {@code minimum} are available.
+   *
+   * @return false if the input ended first
+   */
+  private boolean fill(int minimum) throws IOException {
+    if (mPos > 0) {
+      mOffset += mPos;
+      mLimit -= mPos;
+      System.arraycopy(mChars, mPos, mChars, 0, mLimit);
+      mPos = 0;
+    }
+    while (mLimit < minimum) {
+      if (!decode()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean decode() throws IOException {
+    final CharBuffer out = CharBuffer.wrap(mChars, mLimit, mChars.length - mLimit);
+    while (!mFlushed) {
+      mDecoder.decode(mByteBuffer, out, mEndOfInput);
+      if (mEndOfInput) {
+        mDecoder.flush(out);
+        mFlushed = true;
+      }
+      if (out.position() > mLimit) {
+        mLimit = out.position();
+        return true;
+      }
+      if (mFlushed) {
+        return false;
+      }
+      mByteBuffer.compact();
+      final int read = mIn.read(mBytes, mByteBuffer.position(), mByteBuffer.remaining());
+      if (read == -1) {
+        mEndOfInput = true;
+      } else {
+        mByteBuffer.position(mByteBuffer.position() + read);
+      }
+      mByteBuffer.flip();
+    }
+    return false;
+  }
+
+  @NonNull
+  private IOException syntaxError(@NonNull String message) {
+    return new IOException(message + getLocation());
+  }
+
+  @NonNull
+  private String getLocation() {
+    return " at char " + (mOffset + mPos);
+  }
+
+  public enum Token {
+    BEGIN_OBJECT,
+    END_OBJECT,
+    BEGIN_ARRAY,
+    END_ARRAY,
+    NAME,
+    STRING,
+    NUMBER,
+    BOOLEAN,
+    NULL,
+    END_DOCUMENT
+  }
+
+}
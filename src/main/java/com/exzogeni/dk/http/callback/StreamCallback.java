@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.callback;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.http.DecodedInputStream;
+import com.exzogeni.dk.http.HttpException;
+import com.exzogeni.dk.io.ByteBufferPool;
+import com.exzogeni.dk.log.Logger;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Delivers the response body in chunks as they are read from the connection or cache instead of a single stream.
+ * Chunks are backed by pooled buffers and are only valid until {@link #onChunk(ByteBuffer)} returns.
+ * While paused the body is not read, so the server is throttled by the socket receive window.
+ * A response read from the network is not written to the cache and the request is never coalesced with identical
+ * ones, so progress and pause always act on the connection. A fresh cached response is still served from the cache.
+ * Progress of a compressed response is reported in compressed bytes against its Content-Length, chunks and
+ * {@link #onComplete} carry the decoded body. An instance serves a single request.
+ *
+ * @author Daniel Serdyukov
+ */
+public abstract class StreamCallback<V> implements HttpCallback<V> {
+
+  private static final String CONTENT_LENGTH = "Content-Length";
+
+  private final Object mLock = new Object();
+
+  private boolean mPaused;
+
+  private volatile boolean mCancelled;
+
+  private static long getContentLength(@NonNull Map<String, List<String>> headers) {
+    for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+      if (CONTENT_LENGTH.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        try {
+          return Long.parseLong(header.getValue().get(0).trim());
+        } catch (NumberFormatException e) {
+          Logger.quiet("%s", e);
+        }
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public final V onSuccess(int statusCode, @NonNull Map<String, List<String>> headers, @NonNull InputStream content)
+      throws Exception {
+    final DecodedInputStream decoded = content instanceof DecodedInputStream ? (DecodedInputStream) content : null;
+    final long contentLength = decoded != null ? decoded.getWireLength() : getContentLength(headers);
+    onStart(statusCode, headers, contentLength);
+    final byte[] buffer = ByteBufferPool.getInstance().obtain();
+    try {
+      long bytesRead = 0;
+      int read;
+      while (awaitResume() && (read = content.read(buffer)) != -1) {
+        if (read > 0) {
+          bytesRead += read;
+          onChunk(ByteBuffer.wrap(buffer, 0, read));
+          onProgress(decoded != null ? decoded.getWireBytesRead() : bytesRead, contentLength);
+        }
+      }
+      if (mCancelled) {
+        throw new CancellationException("Stream cancelled after " + bytesRead + " bytes");
+      }
+      return onComplete(statusCode, headers, bytesRead);
+    } finally {
+      ByteBufferPool.getInstance().free(buffer);
+    }
+  }
+
+  @Override
+  public void onException(@NonNull HttpException e) {
+    Logger.error(e);
+  }
+
+  /**
+   * Stops reading the body after the current chunk until {@link #resume()} is called. The request keeps its worker
+   * thread and its scheduler slot while paused, so a long pause holds back other requests to the same host;
+   * {@link #cancel()} a stream that is not going to be resumed soon.
+   */
+  public void pause() {
+    synchronized (mLock) {
+      mPaused = true;
+    }
+  }
+
+  public void resume() {
+    synchronized (mLock) {
+      mPaused = false;
+      mLock.notifyAll();
+    }
+  }
+
+  public boolean isPaused() {
+    synchronized (mLock) {
+      return mPaused;
+    }
+  }
+
+  /**
+   * Stops reading the body, the rest of the response is discarded together with its connection.
+   */
+  public void cancel() {
+    synchronized (mLock) {
+      mCancelled = true;
+      mLock.notifyAll();
+    }
+  }
+
+  public boolean isCancelled() {
+    return mCancelled;
+  }
+
+  /**
+   * @param contentLength body length in bytes on the wire (compressed if the response is) or -1 if unknown
+   */
+  protected void onStart(int statusCode, @NonNull Map<String, List<String>> headers, long contentLength)
+      throws Exception {
+  }
+
+  protected abstract void onChunk(@NonNull ByteBuffer chunk) throws Exception;
+
+  /**
+   * @param bytesRead     body bytes read from the connection, compressed if the response is
+   * @param contentLength body length in bytes on the wire or -1 if unknown
+   */
+  protected void onProgress(long bytesRead, long contentLength) {
+  }
+
+  protected V onComplete(int statusCode, @NonNull Map<String, List<String>> headers, long bytesRead)
+      throws Exception {
+    return null;
+  }
+
+  private boolean awaitResume() throws InterruptedException {
+    synchronized (mLock) {
+      while (mPaused && !mCancelled) {
+        mLock.wait();
+      }
+      return !mCancelled;
+    }
+  }
+
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.cookie;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.exzogeni.dk.concurrent.AsyncQueue;
+import com.exzogeni.dk.concurrent.TimerExecutor;
+import com.exzogeni.dk.log.Logger;
+
+import java.io.IOException;
+import java.net.CookieHandler;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link CookieHandler} that indexes cookies by registrable domain and caches the resulting {@code Cookie}
+ * header per request target. Persistent cookies are written to the optional {@link Store} in batches.
+ *
+ * @author Daniel Serdyukov
+ */
+public class CookieJar extends CookieHandler {
+
+  private static final String COOKIE = "Cookie";
+
+  private static final String SET_COOKIE = "Set-Cookie";
+
+  private static final String HTTPS = "https";
+
+  private static final int MAX_CACHED_HEADERS = 128;
+
+  private static final long SAVE_DELAY_MS = 1000;
+
+  /**
+   * Second-level labels that are public suffixes under a country code TLD (co.uk, com.au, ac.jp and so on).
+   */
+  private static final Set<String> PUBLIC_SECOND_LEVEL = new HashSet<>(Arrays.asList(
+      "ac", "co", "com", "edu", "gen", "go", "gob", "gov", "gv", "in", "info", "int", "ltd", "me", "mil", "ne",
+      "net", "nhs", "nic", "nom", "or", "org", "plc", "sch"
+  ));
+
+  private final Runnable mSave = new Runnable() {
+    @Override
+    public void run() {
+      mSaveScheduled.set(false);
+      flush();
+    }
+  };
+
+  private final AtomicBoolean mSaveScheduled = new AtomicBoolean();
+
+  private final Map<String, List<Entry>> mDomains = new HashMap<>();
+
+  private final Map<String, CachedHeader> mHeaders = new LinkedHashMap<String, CachedHeader>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedHeader> eldest) {
+      return size() > MAX_CACHED_HEADERS;
+    }
+  };
+
+  private final Store mStore;
+
+  public CookieJar() {
+    this(null);
+  }
+
+  /**
+   * Loads persistent cookies from the store on the calling thread.
+   */
+  public CookieJar(@Nullable Store store) {
+    mStore = store;
+    if (store != null) {
+      try {
+        for (final HttpCookie cookie : store.load()) {
+          final String domain = cookie.getDomain();
+          if (domain != null && !cookie.hasExpired()) {
+            final boolean hostOnly = !domain.startsWith(".");
+            add(new Entry(cookie, normalizeDomain(domain), hostOnly, System.currentTimeMillis()));
+          }
+        }
+      } catch (IOException e) {
+        Logger.quiet("%s", e);
+      }
+    }
+  }
+
+  @NonNull
+  static String getRegistrableDomain(@NonNull String host) {
+    final int last = host.lastIndexOf('.');
+    if (last <= 0 || host.indexOf(':') >= 0 || Character.isDigit(host.charAt(host.length() - 1))) {
+      return host;
+    }
+    final int second = host.lastIndexOf('.', last - 1);
+    if (second < 0) {
+      return host;
+    }
+    if (host.length() - last - 1 == 2 && PUBLIC_SECOND_LEVEL.contains(host.substring(second + 1, last))) {
+      return host.substring(host.lastIndexOf('.', second - 1) + 1);
+    }
+    return host.substring(second + 1);
+  }
+
+  private static String normalizeDomain(String domain) {
+    final String normalized = domain.toLowerCase(Locale.US);
+    if (normalized.startsWith(".")) {
+      return normalized.substring(1);
+    }
+    return normalized;
+  }
+
+  private static String getDefaultPath(String path) {
+    if (path == null || !path.startsWith("/")) {
+      return "/";
+    }
+    final int slash = path.lastIndexOf('/');
+    if (slash == 0) {
+      return "/";
+    }
+    return path.substring(0, slash);
+  }
+
+  private static boolean domainMatches(String domain, String host) {
+    return host.equals(domain)
+        || host.endsWith(domain) && host.charAt(host.length() - domain.length() - 1) == '.';
+  }
+
+  private static boolean pathMatches(String cookiePath, String path) {
+    if (path.equals(cookiePath)) {
+      return true;
+    }
+    return path.startsWith(cookiePath)
+        && (cookiePath.endsWith("/") || path.charAt(cookiePath.length()) == '/');
+  }
+
+  @NonNull
+  @Override
+  public Map<String, List<String>> get(@NonNull URI uri, @NonNull Map<String, List<String>> requestHeaders) {
+    final String header = getCookieHeader(uri);
+    if (header != null) {
+      return Collections.singletonMap(COOKIE, Collections.singletonList(header));
+    }
+    return Collections.emptyMap();
+  }
+
+  @Nullable
+  public synchronized String getCookieHeader(@NonNull URI uri) {
+    final String host = uri.getHost();
+    if (host == null) {
+      return null;
+    }
+    final boolean secure = HTTPS.equalsIgnoreCase(uri.getScheme());
+    final String path = TextUtils.isEmpty(uri.getRawPath()) ? "/" : uri.getRawPath();
+    final String key = (secure ? "s:" : ":") + host.toLowerCase(Locale.US) + path;
+    final long now = System.currentTimeMillis();
+    final CachedHeader cached = mHeaders.get(key);
+    if (cached != null && now < cached.mExpiresAt) {
+      return cached.mHeader;
+    }
+    final CachedHeader header = buildHeader(host.toLowerCase(Locale.US), path, secure, now);
+    mHeaders.put(key, header);
+    return header.mHeader;
+  }
+
+  @Override
+  public void put(@NonNull URI uri, @NonNull Map<String, List<String>> responseHeaders) {
+    final String host = uri.getHost();
+    if (host == null) {
+      return;
+    }
+    for (final Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+      if (SET_COOKIE.equalsIgnoreCase(header.getKey())) {
+        for (final String value : header.getValue()) {
+          try {
+            for (final HttpCookie cookie : HttpCookie.parse(value)) {
+              add(uri, cookie);
+            }
+          } catch (IllegalArgumentException e) {
+            Logger.quiet("%s", e);
+          }
+        }
+      }
+    }
+  }
+
+  public void add(@NonNull URI uri, @NonNull HttpCookie cookie) {
+    final String host = uri.getHost();
+    if (host == null) {
+      return;
+    }
+    final String requestHost = host.toLowerCase(Locale.US);
+    final String domain;
+    final boolean hostOnly;
+    if (cookie.getDomain() == null) {
+      domain = requestHost;
+      hostOnly = true;
+    } else {
+      domain = normalizeDomain(cookie.getDomain());
+      if (!domainMatches(domain, requestHost) || domain.length() < getRegistrableDomain(requestHost).length()) {
+        return;
+      }
+      hostOnly = false;
+    }
+    if (cookie.getPath() == null) {
+      cookie.setPath(getDefaultPath(uri.getRawPath()));
+    }
+    add(new Entry(cookie, domain, hostOnly, System.currentTimeMillis()));
+  }
+
+  @NonNull
+  public synchronized List<HttpCookie> getCookies() {
+    final List<HttpCookie> cookies = new ArrayList<>();
+    for (final List<Entry> entries : mDomains.values()) {
+      for (final Entry entry : entries) {
+        cookies.add(entry.mCookie);
+      }
+    }
+    return cookies;
+  }
+
+  public void removeAll() {
+    synchronized (this) {
+      mDomains.clear();
+      mHeaders.clear();
+    }
+    scheduleSave();
+  }
+
+  /**
+   * Writes persistent cookies to the store on the calling thread.
+   */
+  public void flush() {
+    if (mStore == null) {
+      return;
+    }
+    final List<HttpCookie> cookies = new ArrayList<>();
+    final long now = System.currentTimeMillis();
+    synchronized (this) {
+      for (final List<Entry> entries : mDomains.values()) {
+        for (final Entry entry : entries) {
+          if (entry.mExpiresAt != Long.MAX_VALUE && entry.mExpiresAt > now) {
+            final HttpCookie cookie = (HttpCookie) entry.mCookie.clone();
+            cookie.setDomain(entry.mHostOnly ? entry.mDomain : "." + entry.mDomain);
+            cookie.setMaxAge((entry.mExpiresAt - now) / 1000);
+            cookies.add(cookie);
+          }
+        }
+      }
+    }
+    try {
+      mStore.save(cookies);
+    } catch (IOException e) {
+      Logger.quiet("%s", e);
+    }
+  }
+
+  private void add(Entry entry) {
+    synchronized (this) {
+      final String key = getRegistrableDomain(entry.mDomain);
+      List<Entry> entries = mDomains.get(key);
+      if (entries == null) {
+        entries = new ArrayList<>();
+        mDomains.put(key, entries);
+      }
+      final Iterator<Entry> iterator = entries.iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().isSameCookie(entry)) {
+          iterator.remove();
+        }
+      }
+      if (entry.mExpiresAt > entry.mCreatedAt) {
+        int index = 0;
+        while (index < entries.size() && entries.get(index).mPath.length() >= entry.mPath.length()) {
+          ++index;
+        }
+        entries.add(index, entry);
+      } else if (entries.isEmpty()) {
+        mDomains.remove(key);
+      }
+      mHeaders.clear();
+    }
+    scheduleSave();
+  }
+
+  private CachedHeader buildHeader(String host, String path, boolean secure, long now) {
+    final List<Entry> entries = mDomains.get(getRegistrableDomain(host));
+    long expiresAt = Long.MAX_VALUE;
+    StringBuilder header = null;
+    if (entries != null) {
+      final Iterator<Entry> iterator = entries.iterator();
+      while (iterator.hasNext()) {
+        final Entry entry = iterator.next();
+        if (entry.mExpiresAt <= now) {
+          iterator.remove();
+          continue;
+        }
+        if (entry.matches(host, path, secure)) {
+          if (header == null) {
+            header = new StringBuilder();
+          } else {
+            header.append("; ");
+          }
+          header.append(entry.mCookie.getName()).append('=').append(entry.mCookie.getValue());
+          expiresAt = Math.min(expiresAt, entry.mExpiresAt);
+        }
+      }
+    }
+    return new CachedHeader(header != null ? header.toString() : null, expiresAt);
+  }
+
+  private void scheduleSave() {
+    if (mStore != null && mSaveScheduled.compareAndSet(false, true)) {
+      TimerExecutor.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          AsyncQueue.get().execute(mSave);
+        }
+      }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public interface Store {
+
+    @NonNull
+    List<HttpCookie> load() throws IOException;
+
+    void save(@NonNull List<HttpCookie> cookies) throws IOException;
+
+  }
+
+  private static final class Entry {
+
+    final HttpCookie mCookie;
+
+    final String mDomain;
+
+    final String mPath;
+
+    final boolean mHostOnly;
+
+    final long mCreatedAt;
+
+    final long mExpiresAt;
+
+    Entry(HttpCookie cookie, String domain, boolean hostOnly, long now) {
+      mCookie = cookie;
+      mDomain = domain;
+      mPath = cookie.getPath() != null ? cookie.getPath() : "/";
+      mHostOnly = hostOnly;
+      mCreatedAt = now;
+      final long maxAge = cookie.getMaxAge();
+      mExpiresAt = maxAge < 0 ? Long.MAX_VALUE : now + TimeUnit.SECONDS.toMillis(maxAge);
+    }
+
+    boolean isSameCookie(Entry other) {
+      return mCookie.getName().equals(other.mCookie.getName()) && mDomain.equals(other.mDomain)
+          && mPath.equals(other.mPath);
+    }
+
+    boolean matches(String host, String path, boolean secure) {
+      if (mCookie.getSecure() && !secure) {
+        return false;
+      }
+      if (mHostOnly ? !mDomain.equals(host) : !domainMatches(mDomain, host)) {
+        return false;
+      }
+      return pathMatches(mPath, path);
+    }
+
+  }
+
+  private static final class CachedHeader {
+
+    final String mHeader;
+
+    final long mExpiresAt;
+
+    CachedHeader(String header, long expiresAt) {
+      mHeader = header;
+      mExpiresAt = expiresAt;
+    }
+
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.cookie;
+
+import android.support.annotation.NonNull;
+import android.support.v4.util.AtomicFile;
+
+import com.exzogeni.dk.io.BufferPoolInputStream;
+import com.exzogeni.dk.io.BufferPoolOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class FileCookieStore implements CookieJar.Store {
+
+  private static final int VERSION = 1;
+
+  private final File mFile;
+
+  public FileCookieStore(@NonNull File file) {
+    mFile = file;
+  }
+
+  @NonNull
+  @Override
+  public List<HttpCookie> load() throws IOException {
+    final AtomicFile af = new AtomicFile(mFile);
+    final FileInputStream fis;
+    try {
+      fis = af.openRead();
+    } catch (FileNotFoundException e) {
+      return Collections.emptyList();
+    }
+    final DataInputStream dat = new DataInputStream(new BufferPoolInputStream(fis));
+    try {
+      if (dat.readInt() != VERSION) {
+        return Collections.emptyList();
+      }
+      int count = dat.readInt();
+      final List<HttpCookie> cookies = new ArrayList<>(count);
+      while (count-- > 0) {
+        final HttpCookie cookie = new HttpCookie(dat.readUTF(), dat.readUTF());
+        cookie.setDomain(dat.readUTF());
+        cookie.setPath(dat.readUTF());
+        cookie.setMaxAge(dat.readLong());
+        cookie.setSecure(dat.readBoolean());
+        cookies.add(cookie);
+      }
+      return cookies;
+    } finally {
+      IOUtils.closeQuietly(dat);
+    }
+  }
+
+  @Override
+  public void save(@NonNull List<HttpCookie> cookies) throws IOException {
+    final File dir = mFile.getParentFile();
+    if (dir != null && !dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Couldn't create directory " + dir);
+    }
+    final AtomicFile af = new AtomicFile(mFile);
+    final FileOutputStream fos = af.startWrite();
+    try {
+      final DataOutputStream dat = new DataOutputStream(new BufferPoolOutputStream(fos));
+      dat.writeInt(VERSION);
+      dat.writeInt(cookies.size());
+      for (final HttpCookie cookie : cookies) {
+        dat.writeUTF(cookie.getName());
+        dat.writeUTF(cookie.getValue());
+        dat.writeUTF(cookie.getDomain());
+        dat.writeUTF(cookie.getPath());
+        dat.writeLong(cookie.getMaxAge());
+        dat.writeBoolean(cookie.getSecure());
+      }
+      IOUtils.closeQuietly(dat);
+      af.finishWrite(fos);
+    } catch (IOException e) {
+      af.failWrite(fos);
+      throw e;
+    }
+  }
+
+}
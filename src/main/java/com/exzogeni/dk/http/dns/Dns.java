@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.dns;
+
+import android.support.annotation.NonNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public interface Dns {
+
+  Dns SYSTEM = new Dns() {
+    @NonNull
+    @Override
+    public List<InetAddress> lookup(@NonNull String host) throws UnknownHostException {
+      return Collections.unmodifiableList(Arrays.asList(InetAddress.getAllByName(host)));
+    }
+  };
+
+  @NonNull
+  List<InetAddress> lookup(@NonNull String host) throws UnknownHostException;
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.dns;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.concurrent.AsyncQueue;
+import com.exzogeni.dk.concurrent.ThreadQueue;
+import com.exzogeni.dk.log.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory cache over another {@link Dns}. Expired answers are served while they are refreshed in background
+ * for up to the stale ttl, failed lookups are remembered for the negative ttl.
+ * Only transports that resolve through {@link Dns} benefit, see {@link com.exzogeni.dk.http.HttpManager#setDns}.
+ *
+ * @author Daniel Serdyukov
+ */
+public class DnsCache implements Dns {
+
+  private static final long POSITIVE_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+  private static final long NEGATIVE_TTL_MS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final long STALE_TTL_MS = TimeUnit.HOURS.toMillis(1);
+
+  private final ConcurrentMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+  private final Dns mDelegate;
+
+  private final ThreadQueue mQueue;
+
+  private volatile long mPositiveTtlMs = POSITIVE_TTL_MS;
+
+  private volatile long mNegativeTtlMs = NEGATIVE_TTL_MS;
+
+  private volatile long mStaleTtlMs = STALE_TTL_MS;
+
+  public DnsCache() {
+    this(Dns.SYSTEM);
+  }
+
+  public DnsCache(@NonNull Dns delegate) {
+    this(delegate, AsyncQueue.get());
+  }
+
+  public DnsCache(@NonNull Dns delegate, @NonNull ThreadQueue queue) {
+    mDelegate = delegate;
+    mQueue = queue;
+  }
+
+  @NonNull
+  public DnsCache setPositiveTtlMs(long ttlMs) {
+    if (ttlMs < 0) {
+      throw new IllegalArgumentException("ttlMs must not be negative");
+    }
+    mPositiveTtlMs = ttlMs;
+    return this;
+  }
+
+  @NonNull
+  public DnsCache setNegativeTtlMs(long ttlMs) {
+    if (ttlMs < 0) {
+      throw new IllegalArgumentException("ttlMs must not be negative");
+    }
+    mNegativeTtlMs = ttlMs;
+    return this;
+  }
+
+  @NonNull
+  public DnsCache setStaleTtlMs(long ttlMs) {
+    if (ttlMs < 0) {
+      throw new IllegalArgumentException("ttlMs must not be negative");
+    }
+    mStaleTtlMs = ttlMs;
+    return this;
+  }
+
+  @NonNull
+  @Override
+  public List<InetAddress> lookup(@NonNull String host) throws UnknownHostException {
+    final String key = host.toLowerCase(Locale.US);
+    final Entry entry = mEntries.get(key);
+    if (entry != null) {
+      final long now = SystemClock.elapsedRealtime();
+      if (now < entry.mExpiresAt) {
+        return entry.get();
+      }
+      if (entry.mAddresses != null && now < entry.mExpiresAt + mStaleTtlMs) {
+        refresh(key, entry);
+        return entry.mAddresses;
+      }
+    }
+    return resolve(key, null);
+  }
+
+  public void prefetch(@NonNull String... hosts) {
+    for (final String host : hosts) {
+      final String key = host.toLowerCase(Locale.US);
+      mQueue.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            resolve(key, null);
+          } catch (UnknownHostException e) {
+            Logger.quiet("%s", e);
+          }
+        }
+      });
+    }
+  }
+
+  public void evict(@NonNull String host) {
+    mEntries.remove(host.toLowerCase(Locale.US));
+  }
+
+  public void evictAll() {
+    mEntries.clear();
+  }
+
+  private void refresh(final String key, final Entry stale) {
+    if (stale.mRefreshing.compareAndSet(false, true)) {
+      mQueue.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            resolve(key, stale);
+          } catch (UnknownHostException e) {
+            Logger.quiet("%s", e);
+          } finally {
+            stale.mRefreshing.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  private List<InetAddress> resolve(String key, @Nullable Entry stale) throws UnknownHostException {
+    try {
+      final List<InetAddress> addresses = mDelegate.lookup(key);
+      if (addresses.isEmpty()) {
+        throw new UnknownHostException(key);
+      }
+      mEntries.put(key, new Entry(addresses, null, SystemClock.elapsedRealtime() + mPositiveTtlMs));
+      return addresses;
+    } catch (UnknownHostException e) {
+      if (stale == null) {
+        mEntries.put(key, new Entry(null, e, SystemClock.elapsedRealtime() + mNegativeTtlMs));
+      }
+      throw e;
+    }
+  }
+
+  private static final class Entry {
+
+    final AtomicBoolean mRefreshing = new AtomicBoolean();
+
+    final List<InetAddress> mAddresses;
+
+    final UnknownHostException mError;
+
+    final long mExpiresAt;
+
+    Entry(@Nullable List<InetAddress> addresses, @Nullable UnknownHostException error, long expiresAt) {
+      mAddresses = addresses;
+      mError = error;
+      mExpiresAt = expiresAt;
+    }
+
+    List<InetAddress> get() throws UnknownHostException {
+      if (mAddresses != null) {
+        return mAddresses;
+      }
+      throw new UnknownHostException(mError.getMessage());
+    }
+
+  }
+
+}
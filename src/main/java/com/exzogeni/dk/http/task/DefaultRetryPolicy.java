@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.task;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.http.Http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Exponential backoff with full jitter, retrying idempotent methods only.
+ *
+ * @author Daniel Serdyukov
+ */
+public class DefaultRetryPolicy implements RetryPolicy {
+
+  private static final int MAX_RETRIES = 2;
+
+  private static final long INITIAL_DELAY_MS = 250;
+
+  private static final long MAX_DELAY_MS = 10000;
+
+  private final Random mRandom = new Random();
+
+  private final int mMaxRetries;
+
+  private final long mInitialDelayMs;
+
+  private final long mMaxDelayMs;
+
+  public DefaultRetryPolicy() {
+    this(MAX_RETRIES, INITIAL_DELAY_MS, MAX_DELAY_MS);
+  }
+
+  public DefaultRetryPolicy(int maxRetries, long initialDelayMs, long maxDelayMs) {
+    mMaxRetries = maxRetries;
+    mInitialDelayMs = initialDelayMs;
+    mMaxDelayMs = maxDelayMs;
+  }
+
+  @Override
+  public boolean shouldRetry(@NonNull String method, int attempt, int statusCode, @Nullable IOException e) {
+    if (attempt > mMaxRetries || !isIdempotent(method)) {
+      return false;
+    }
+    if (e != null) {
+      return !(e instanceof UnknownHostException);
+    }
+    return statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+        || statusCode == HttpURLConnection.HTTP_BAD_GATEWAY
+        || statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+        || statusCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+  }
+
+  @Override
+  public long getRetryDelayMs(int attempt) {
+    final long ceiling = Math.min(mMaxDelayMs, mInitialDelayMs << Math.min(attempt - 1, 30));
+    if (ceiling <= 0) {
+      return 0;
+    }
+    synchronized (mRandom) {
+      return (long) (mRandom.nextDouble() * ceiling);
+    }
+  }
+
+  protected boolean isIdempotent(@NonNull String method) {
+    return Http.Method.GET.equals(method)
+        || Http.Method.HEAD.equals(method)
+        || Http.Method.PUT.equals(method)
+        || Http.Method.DELETE.equals(method);
+  }
+
+}
@@ -16,16 +16,13 @@
 
 package com.exzogeni.dk.http.task;
 
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.exzogeni.dk.http.Http;
 import com.exzogeni.dk.http.HttpTask;
+import com.exzogeni.dk.http.UrlEncoder;
 import com.exzogeni.dk.http.cache.CachePolicy;
 
-import java.net.URI;
-import java.net.URISyntaxException;
-
 /**
  * @author Daniel Serdyukov
  */
@@ -48,15 +45,7 @@ class HeadTask<V> extends HttpTask<V> {
   @NonNull
   @Override
   protected String getEncodedUrl() {
-    final Uri uri = Uri.parse(getUrl());
-    try {
-      return new URI(
-          uri.getScheme(), uri.getAuthority(),
-          uri.getPath(), uri.getQuery(), uri.getFragment()
-      ).toASCIIString();
-    } catch (URISyntaxException e) {
-      return getUrl();
-    }
+    return UrlEncoder.getInstance().encode(getUrl());
   }
 
 }
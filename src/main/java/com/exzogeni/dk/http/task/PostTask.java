@@ -19,7 +19,10 @@ package com.exzogeni.dk.http.task;
 import android.support.annotation.NonNull;
 
 import com.exzogeni.dk.http.Http;
+import com.exzogeni.dk.http.HttpEncoding;
+import com.exzogeni.dk.http.body.HttpBody;
 
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 
 /**
@@ -27,6 +30,8 @@ import java.net.HttpURLConnection;
  */
 class PostTask<V> extends HeadTask<V> {
 
+  private static final String CONTENT_TYPE = "Content-Type";
+
   protected PostTask(@NonNull String url) {
     super(url);
   }
@@ -41,6 +46,37 @@ class PostTask<V> extends HeadTask<V> {
   protected void onPrepareConnection(@NonNull HttpURLConnection cn) throws Exception {
     super.onPrepareConnection(cn);
     cn.setDoOutput(true);
+    final HttpBody body = getBody();
+    if (body != null) {
+      final String contentType = body.getContentType();
+      if (contentType != null && cn.getRequestProperty(CONTENT_TYPE) == null) {
+        cn.setRequestProperty(CONTENT_TYPE, contentType);
+      }
+      final String contentEncoding = body.getContentEncoding();
+      if (contentEncoding != null) {
+        cn.setRequestProperty(HttpEncoding.CONTENT_ENCODING, contentEncoding);
+      }
+      final long contentLength = body.getContentLength();
+      if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+        cn.setFixedLengthStreamingMode((int) contentLength);
+      } else {
+        cn.setChunkedStreamingMode(0);
+      }
+    }
+  }
+
+  @Override
+  protected void onPerformRequest(@NonNull HttpURLConnection cn) throws Exception {
+    super.onPerformRequest(cn);
+    final HttpBody body = getBody();
+    if (body != null) {
+      final OutputStream out = cn.getOutputStream();
+      try {
+        body.writeTo(out);
+      } finally {
+        out.close();
+      }
+    }
   }
 
 }
@@ -16,8 +16,36 @@
 
 package com.exzogeni.dk.http.task;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
 /**
  * @author Daniel Serdyukov
  */
 public interface RetryPolicy {
+
+  RetryPolicy NO_RETRY = new RetryPolicy() {
+    @Override
+    public boolean shouldRetry(@NonNull String method, int attempt, int statusCode, @Nullable IOException e) {
+      return false;
+    }
+
+    @Override
+    public long getRetryDelayMs(int attempt) {
+      return 0;
+    }
+  };
+
+  RetryPolicy DEFAULT = new DefaultRetryPolicy();
+
+  /**
+   * @param attempt    number of the retry being considered, starting from 1
+   * @param statusCode response status code, or 0 if the request failed with {@code e}
+   */
+  boolean shouldRetry(@NonNull String method, int attempt, int statusCode, @Nullable IOException e);
+
+  long getRetryDelayMs(int attempt);
+
 }
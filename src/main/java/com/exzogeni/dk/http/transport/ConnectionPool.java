@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.concurrent.TimerExecutor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connections of the {@link NioTransport}, owned by the {@link com.exzogeni.dk.http.HttpManager}.
+ *
+ * @author Daniel Serdyukov
+ */
+public class ConnectionPool {
+
+  private static final int MAX_IDLE_PER_HOST = 5;
+
+  private static final long KEEP_ALIVE_MS = TimeUnit.MINUTES.toMillis(5);
+
+  private final Runnable mEviction = new Runnable() {
+    @Override
+    public void run() {
+      evict();
+    }
+  };
+
+  private final AtomicLong mRequestCount = new AtomicLong();
+
+  private final AtomicLong mReuseCount = new AtomicLong();
+
+  private final AtomicLong mConnectCount = new AtomicLong();
+
+  private final AtomicLong mEvictionCount = new AtomicLong();
+
+  private final Map<String, Deque<NioConnection>> mIdle = new HashMap<>();
+
+  private final int mMaxIdlePerHost;
+
+  private final long mKeepAliveNanos;
+
+  private boolean mEvictionScheduled;
+
+  public ConnectionPool() {
+    this(MAX_IDLE_PER_HOST, KEEP_ALIVE_MS);
+  }
+
+  public ConnectionPool(int maxIdlePerHost, long keepAliveMs) {
+    if (maxIdlePerHost < 0 || keepAliveMs <= 0) {
+      throw new IllegalArgumentException("maxIdlePerHost must not be negative and keepAliveMs must be positive");
+    }
+    mMaxIdlePerHost = maxIdlePerHost;
+    mKeepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMs);
+  }
+
+  private static boolean isHealthy(NioConnection connection) {
+    if (!connection.mChannel.isOpen() || !connection.mKey.isValid()) {
+      return false;
+    }
+    try {
+      return connection.mChannel.read(ByteBuffer.allocate(1)) == 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public long getRequestCount() {
+    return mRequestCount.get();
+  }
+
+  public long getReuseCount() {
+    return mReuseCount.get();
+  }
+
+  public long getConnectCount() {
+    return mConnectCount.get();
+  }
+
+  public long getEvictionCount() {
+    return mEvictionCount.get();
+  }
+
+  /**
+   * @return share of requests of the {@link NioTransport} served over a kept-alive connection
+   */
+  public float getReuseRate() {
+    final long requests = mRequestCount.get();
+    if (requests > 0) {
+      return (float) mReuseCount.get() / requests;
+    }
+    return 0f;
+  }
+
+  public synchronized int getIdleCount() {
+    int count = 0;
+    for (final Deque<NioConnection> connections : mIdle.values()) {
+      count += connections.size();
+    }
+    return count;
+  }
+
+  public void evictAll() {
+    final List<NioConnection> evicted = new ArrayList<>();
+    synchronized (this) {
+      for (final Deque<NioConnection> connections : mIdle.values()) {
+        evicted.addAll(connections);
+      }
+      mIdle.clear();
+    }
+    close(evicted);
+  }
+
+  @Nullable
+  NioConnection acquire(@NonNull String address) {
+    mRequestCount.incrementAndGet();
+    while (true) {
+      final NioConnection connection;
+      synchronized (this) {
+        final Deque<NioConnection> connections = mIdle.get(address);
+        connection = connections != null ? connections.pollFirst() : null;
+      }
+      if (connection == null) {
+        mConnectCount.incrementAndGet();
+        return null;
+      }
+      if (isHealthy(connection)) {
+        mReuseCount.incrementAndGet();
+        return connection;
+      }
+      mEvictionCount.incrementAndGet();
+      connection.close();
+    }
+  }
+
+  void release(@NonNull String address, @NonNull NioConnection connection) {
+    final List<NioConnection> evicted = new ArrayList<>();
+    synchronized (this) {
+      Deque<NioConnection> connections = mIdle.get(address);
+      if (connections == null) {
+        connections = new ArrayDeque<>();
+        mIdle.put(address, connections);
+      }
+      connection.mIdleSince = System.nanoTime();
+      connections.offerFirst(connection);
+      while (connections.size() > mMaxIdlePerHost) {
+        evicted.add(connections.pollLast());
+      }
+      if (!mEvictionScheduled && !connections.isEmpty()) {
+        mEvictionScheduled = true;
+        TimerExecutor.get().schedule(mEviction, mKeepAliveNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+    close(evicted);
+  }
+
+  private void evict() {
+    final List<NioConnection> evicted = new ArrayList<>();
+    synchronized (this) {
+      final long now = System.nanoTime();
+      long nextEviction = Long.MAX_VALUE;
+      final Iterator<Deque<NioConnection>> hosts = mIdle.values().iterator();
+      while (hosts.hasNext()) {
+        final Deque<NioConnection> connections = hosts.next();
+        final Iterator<NioConnection> iterator = connections.iterator();
+        while (iterator.hasNext()) {
+          final NioConnection connection = iterator.next();
+          final long idleNanos = now - connection.mIdleSince;
+          if (idleNanos >= mKeepAliveNanos) {
+            iterator.remove();
+            evicted.add(connection);
+          } else {
+            nextEviction = Math.min(nextEviction, mKeepAliveNanos - idleNanos);
+          }
+        }
+        if (connections.isEmpty()) {
+          hosts.remove();
+        }
+      }
+      mEvictionScheduled = nextEviction != Long.MAX_VALUE;
+      if (mEvictionScheduled) {
+        TimerExecutor.get().schedule(mEviction, nextEviction, TimeUnit.NANOSECONDS);
+      }
+    }
+    close(evicted);
+  }
+
+  private void close(List<NioConnection> connections) {
+    for (final NioConnection connection : connections) {
+      mEvictionCount.incrementAndGet();
+      connection.close();
+    }
+  }
+
+}
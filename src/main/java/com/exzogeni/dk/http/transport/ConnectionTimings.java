@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+/**
+ * Implemented by connections that know how long it took to establish their socket.
+ *
+ * @author Daniel Serdyukov
+ */
+public interface ConnectionTimings {
+
+  /**
+   * @return nanoseconds spent connecting the socket, or -1 if a pooled socket was reused or it is not connected yet
+   */
+  long getConnectNanos();
+
+}
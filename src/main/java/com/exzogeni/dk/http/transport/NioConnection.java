@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+import android.support.annotation.NonNull;
+
+import org.apache.commons.io.IOUtils;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Idle keep-alive connection parked in a {@link ConnectionPool}. The channel stays registered with the selector
+ * of its reactor (with no interest ops), so it must be reused on the same reactor.
+ *
+ * @author Daniel Serdyukov
+ */
+final class NioConnection {
+
+  final SocketChannel mChannel;
+
+  final SelectionKey mKey;
+
+  final NioReactor mReactor;
+
+  long mIdleSince;
+
+  NioConnection(@NonNull SocketChannel channel, @NonNull SelectionKey key, @NonNull NioReactor reactor) {
+    mChannel = channel;
+    mKey = key;
+    mReactor = reactor;
+  }
+
+  void close() {
+    IOUtils.closeQuietly(mChannel);
+  }
+
+}
@@ -0,0 +1,702 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.exzogeni.dk.log.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single HTTP/1.1 request/response exchange. Socket I/O and response parsing happen on the reactor thread,
+ * the caller only moves bytes in and out of the bounded write and read queues.
+ *
+ * @author Daniel Serdyukov
+ */
+final class NioExchange {
+
+  private static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+  private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  private static final int STATE_HEAD = 0;
+
+  private static final int STATE_FIXED = 1;
+
+  private static final int STATE_CHUNK_SIZE = 2;
+
+  private static final int STATE_CHUNK_DATA = 3;
+
+  private static final int STATE_CHUNK_CRLF = 4;
+
+  private static final int STATE_TRAILER = 5;
+
+  private static final int STATE_UNTIL_CLOSE = 6;
+
+  private static final int STATE_DONE = 7;
+
+  private final Runnable mUpdateInterest = new Runnable() {
+    @Override
+    public void run() {
+      updateInterest();
+    }
+  };
+
+  private final Queue<ByteBuffer> mWriteQueue = new ArrayDeque<>();
+
+  private final Queue<byte[]> mReadQueue = new ArrayDeque<>();
+
+  private final List<String> mHeaderKeys = new ArrayList<>();
+
+  private final List<String> mHeaderValues = new ArrayList<>();
+
+  private final List<String> mHeaderKeysView = Collections.unmodifiableList(mHeaderKeys);
+
+  private final List<String> mHeaderValuesView = Collections.unmodifiableList(mHeaderValues);
+
+  private final StringBuilder mLine = new StringBuilder();
+
+  private final NioReactor mReactor;
+
+  private final List<InetSocketAddress> mAddresses;
+
+  private final boolean mHeadRequest;
+
+  private final long mConnectTimeoutNanos;
+
+  private final long mReadTimeoutNanos;
+
+  private int mAddressIndex;
+
+  private boolean mConnecting;
+
+  private ConnectionPool mPool;
+
+  private String mPoolAddress;
+
+  private NioConnection mConnection;
+
+  private boolean mReusable = true;
+
+  private SocketChannel mChannel;
+
+  private SelectionKey mKey;
+
+  private ByteBuffer mReadBuffer;
+
+  private long mDeadline;
+
+  private long mConnectStart;
+
+  private volatile long mConnectNanos = -1;
+
+  private int mState = STATE_HEAD;
+
+  private int mHeadSize;
+
+  private long mBodyRemaining;
+
+  private int mWriteQueued;
+
+  private int mReadQueued;
+
+  private int mReadOffset;
+
+  private boolean mRequestFinished;
+
+  private boolean mReadPaused;
+
+  private int mStatusCode = -1;
+
+  private String mStatusLine;
+
+  private IOException mError;
+
+  /**
+   * @param addresses resolved addresses of the host, tried in order until one accepts the connection
+   */
+  NioExchange(@NonNull NioReactor reactor, @NonNull List<InetSocketAddress> addresses, boolean headRequest,
+              int connectTimeoutMs, int readTimeoutMs) {
+    mReactor = reactor;
+    mAddresses = addresses;
+    mHeadRequest = headRequest;
+    mConnectTimeoutNanos = timeoutNanos(connectTimeoutMs);
+    mReadTimeoutNanos = timeoutNanos(readTimeoutMs);
+  }
+
+  private static long timeoutNanos(int timeoutMs) {
+    if (timeoutMs > 0) {
+      return TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+    return Long.MAX_VALUE;
+  }
+
+  private static long deadline(long now, long timeoutNanos) {
+    if (timeoutNanos == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return now + timeoutNanos;
+  }
+
+  void setPool(@NonNull ConnectionPool pool, @NonNull String address, @Nullable NioConnection connection) {
+    mPool = pool;
+    mPoolAddress = address;
+    mConnection = connection;
+  }
+
+  /**
+   * @return nanoseconds spent connecting a new socket, -1 for a pooled one
+   */
+  long getConnectNanos() {
+    return mConnectNanos;
+  }
+
+  synchronized void disableReuse() {
+    mReusable = false;
+  }
+
+  void start() {
+    mReactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        onStart();
+      }
+    });
+  }
+
+  void write(@NonNull byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      // an empty buffer is never drained by onWritable and would spin the reactor
+      return;
+    }
+    synchronized (this) {
+      while (mError == null && mWriteQueued >= MAX_QUEUED_BYTES) {
+        awaitInterruptibly();
+      }
+      throwIfFailed();
+      final byte[] chunk = new byte[len];
+      System.arraycopy(b, off, chunk, 0, len);
+      mWriteQueue.offer(ByteBuffer.wrap(chunk));
+      mWriteQueued += len;
+    }
+    mReactor.execute(mUpdateInterest);
+  }
+
+  void finishRequest() throws IOException {
+    synchronized (this) {
+      throwIfFailed();
+      mRequestFinished = true;
+    }
+    mReactor.execute(mUpdateInterest);
+  }
+
+  synchronized void awaitResponse() throws IOException {
+    while (mError == null && mStatusCode == -1) {
+      awaitInterruptibly();
+    }
+    throwIfFailed();
+  }
+
+  synchronized int getStatusCode() {
+    return mStatusCode;
+  }
+
+  synchronized String getStatusLine() {
+    return mStatusLine;
+  }
+
+  /**
+   * Header lists are not modified once the status code is published, callers must {@link #awaitResponse()} first.
+   */
+  @NonNull
+  synchronized List<String> getHeaderKeys() {
+    return mHeaderKeysView;
+  }
+
+  @NonNull
+  synchronized List<String> getHeaderValues() {
+    return mHeaderValuesView;
+  }
+
+  int read(@NonNull byte[] b, int off, int len) throws IOException {
+    boolean resume = false;
+    int count = 0;
+    synchronized (this) {
+      while (mError == null && mReadQueue.isEmpty() && mState != STATE_DONE) {
+        awaitInterruptibly();
+      }
+      if (mReadQueue.isEmpty()) {
+        throwIfFailed();
+        return -1;
+      }
+      while (count < len && !mReadQueue.isEmpty()) {
+        final byte[] chunk = mReadQueue.peek();
+        final int n = Math.min(len - count, chunk.length - mReadOffset);
+        System.arraycopy(chunk, mReadOffset, b, off + count, n);
+        count += n;
+        mReadOffset += n;
+        if (mReadOffset == chunk.length) {
+          mReadQueue.poll();
+          mReadOffset = 0;
+        }
+      }
+      mReadQueued -= count;
+      if (mReadPaused && mReadQueued < MAX_QUEUED_BYTES / 2) {
+        mReadPaused = false;
+        resume = true;
+      }
+    }
+    if (resume) {
+      mReactor.execute(mUpdateInterest);
+    }
+    return count;
+  }
+
+  synchronized int available() {
+    return mReadQueued;
+  }
+
+  synchronized boolean isResponseFinished() {
+    return mState == STATE_DONE && mReadQueue.isEmpty();
+  }
+
+  void abort() {
+    final boolean aborted;
+    synchronized (this) {
+      aborted = mError == null && mState != STATE_DONE;
+      if (aborted) {
+        mError = new IOException("Exchange aborted");
+        notifyAll();
+      }
+    }
+    if (aborted) {
+      mReactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          close();
+        }
+      });
+    }
+  }
+
+  private void awaitInterruptibly() throws IOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    }
+  }
+
+  private void throwIfFailed() throws IOException {
+    if (mError != null) {
+      throw mError;
+    }
+  }
+
+  void onReady(@NonNull SelectionKey key) {
+    try {
+      if (key.isConnectable()) {
+        mChannel.finishConnect();
+        mConnecting = false;
+        final long now = System.nanoTime();
+        mConnectNanos = now - mConnectStart;
+        mDeadline = deadline(now, mReadTimeoutNanos);
+        updateInterest();
+      }
+      if (key.isValid() && key.isWritable()) {
+        onWritable();
+      }
+      if (key.isValid() && key.isReadable()) {
+        onReadable();
+      }
+    } catch (IOException e) {
+      if (isConnecting()) {
+        connectNext(e);
+      } else {
+        fail(e);
+      }
+    }
+  }
+
+  void checkTimeout(long now) {
+    if (now - mDeadline > 0) {
+      if (isConnecting()) {
+        connectNext(new SocketTimeoutException("connect to " + mAddresses.get(mAddressIndex) + " timed out"));
+      } else {
+        fail(new SocketTimeoutException("timeout"));
+      }
+    }
+  }
+
+  private boolean isConnecting() {
+    return mConnecting && mAddressIndex < mAddresses.size();
+  }
+
+  private void onStart() {
+    synchronized (this) {
+      if (mError != null) {
+        return;
+      }
+    }
+    if (mConnection != null) {
+      mChannel = mConnection.mChannel;
+      mKey = mConnection.mKey;
+      mKey.attach(this);
+      mDeadline = deadline(System.nanoTime(), mReadTimeoutNanos);
+      updateInterest();
+      return;
+    }
+    mConnectStart = System.nanoTime();
+    connect();
+  }
+
+  /**
+   * Falls through to the next resolved address after a failed connect attempt, like the platform connection does.
+   */
+  private void connectNext(@NonNull IOException e) {
+    close();
+    if (++mAddressIndex < mAddresses.size()) {
+      Logger.debug("%s, trying %s", e, mAddresses.get(mAddressIndex));
+      connect();
+    } else {
+      fail(e);
+    }
+  }
+
+  private void connect() {
+    mConnecting = true;
+    try {
+      mChannel = SocketChannel.open();
+      mChannel.configureBlocking(false);
+      mChannel.socket().setTcpNoDelay(true);
+      mDeadline = deadline(System.nanoTime(), mConnectTimeoutNanos);
+      if (mChannel.connect(mAddresses.get(mAddressIndex))) {
+        mConnecting = false;
+        mKey = mChannel.register(mReactor.getSelector(), 0, this);
+        final long now = System.nanoTime();
+        mConnectNanos = now - mConnectStart;
+        mDeadline = deadline(now, mReadTimeoutNanos);
+        updateInterest();
+      } else {
+        mKey = mChannel.register(mReactor.getSelector(), SelectionKey.OP_CONNECT, this);
+      }
+    } catch (IOException e) {
+      connectNext(e);
+    }
+  }
+
+  private void updateInterest() {
+    if (mKey == null || !mKey.isValid() || !mChannel.isConnected()) {
+      return;
+    }
+    int ops = 0;
+    synchronized (this) {
+      if (!mWriteQueue.isEmpty()) {
+        ops = SelectionKey.OP_WRITE;
+      } else if (mRequestFinished && mState != STATE_DONE && !mReadPaused) {
+        ops = SelectionKey.OP_READ;
+      }
+    }
+    if (ops == 0) {
+      // waiting for the caller to write more of the body or to drain the paused reads, not for the server
+      mDeadline = Long.MAX_VALUE;
+    } else if (mDeadline == Long.MAX_VALUE) {
+      mDeadline = deadline(System.nanoTime(), mReadTimeoutNanos);
+    }
+    mKey.interestOps(ops);
+  }
+
+  private void onWritable() throws IOException {
+    while (true) {
+      final ByteBuffer buffer;
+      synchronized (this) {
+        buffer = mWriteQueue.peek();
+      }
+      if (buffer == null) {
+        break;
+      }
+      final int written = mChannel.write(buffer);
+      if (written > 0) {
+        mDeadline = deadline(System.nanoTime(), mReadTimeoutNanos);
+        synchronized (this) {
+          mWriteQueued -= written;
+          if (!buffer.hasRemaining()) {
+            mWriteQueue.poll();
+          }
+          notifyAll();
+        }
+      }
+      if (buffer.hasRemaining()) {
+        return;
+      }
+    }
+    updateInterest();
+  }
+
+  private void onReadable() throws IOException {
+    if (mReadBuffer == null) {
+      mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+    mReadBuffer.clear();
+    final int read = mChannel.read(mReadBuffer);
+    if (read < 0) {
+      onEndOfStream();
+      return;
+    }
+    mDeadline = deadline(System.nanoTime(), mReadTimeoutNanos);
+    mReadBuffer.flip();
+    while (mReadBuffer.hasRemaining() && mState != STATE_DONE) {
+      parse(mReadBuffer);
+    }
+    if (mState != STATE_DONE) {
+      updateInterest();
+    }
+  }
+
+  private void onEndOfStream() throws IOException {
+    if (mState == STATE_UNTIL_CLOSE) {
+      finish();
+    } else {
+      throw new EOFException("unexpected end of stream");
+    }
+  }
+
+  private void parse(ByteBuffer buffer) throws IOException {
+    switch (mState) {
+      case STATE_HEAD:
+        if (readLine(buffer, MAX_HEAD_SIZE)) {
+          onHeadLine(takeLine());
+        }
+        break;
+      case STATE_FIXED:
+      case STATE_CHUNK_DATA:
+      case STATE_UNTIL_CLOSE:
+        final int length = (int) Math.min(buffer.remaining(), mBodyRemaining);
+        deliver(buffer, length);
+        if (mState != STATE_UNTIL_CLOSE) {
+          mBodyRemaining -= length;
+          if (mBodyRemaining == 0) {
+            if (mState == STATE_FIXED) {
+              finish();
+            } else {
+              mState = STATE_CHUNK_CRLF;
+            }
+          }
+        }
+        break;
+      case STATE_CHUNK_SIZE:
+        if (readLine(buffer, MAX_HEAD_SIZE)) {
+          onChunkSize(takeLine());
+        }
+        break;
+      case STATE_CHUNK_CRLF:
+        if (readLine(buffer, MAX_HEAD_SIZE)) {
+          takeLine();
+          mState = STATE_CHUNK_SIZE;
+        }
+        break;
+      case STATE_TRAILER:
+        if (readLine(buffer, MAX_HEAD_SIZE) && takeLine().isEmpty()) {
+          finish();
+        }
+        break;
+      default:
+        buffer.position(buffer.limit());
+        break;
+    }
+  }
+
+  private boolean readLine(ByteBuffer buffer, int limit) throws IOException {
+    while (buffer.hasRemaining()) {
+      final char c = (char) (buffer.get() & 0xff);
+      if (mState == STATE_HEAD && ++mHeadSize > MAX_HEAD_SIZE) {
+        throw new ProtocolException("response head is too large");
+      }
+      if (c == '\n') {
+        final int length = mLine.length();
+        if (length > 0 && mLine.charAt(length - 1) == '\r') {
+          mLine.setLength(length - 1);
+        }
+        return true;
+      }
+      if (mLine.length() >= limit) {
+        throw new ProtocolException("line is too long");
+      }
+      mLine.append(c);
+    }
+    return false;
+  }
+
+  private String takeLine() {
+    final String line = mLine.toString();
+    mLine.setLength(0);
+    return line;
+  }
+
+  private void onHeadLine(String line) throws IOException {
+    if (mStatusLine == null) {
+      if (!line.startsWith("HTTP/1.") || line.length() < 12) {
+        throw new ProtocolException("unexpected status line: " + line);
+      }
+      try {
+        Integer.parseInt(line.substring(9, 12));
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("unexpected status line: " + line);
+      }
+      mStatusLine = line;
+    } else if (!line.isEmpty()) {
+      final int colon = line.indexOf(':');
+      if (colon > 0) {
+        mHeaderKeys.add(line.substring(0, colon).trim());
+        mHeaderValues.add(line.substring(colon + 1).trim());
+      }
+    } else {
+      onHeadComplete();
+    }
+  }
+
+  private void onHeadComplete() throws IOException {
+    final int statusCode = Integer.parseInt(mStatusLine.substring(9, 12));
+    if (statusCode / 100 == 1) {
+      mStatusLine = null;
+      mHeaderKeys.clear();
+      mHeaderValues.clear();
+      mHeadSize = 0;
+      return;
+    }
+    final String transferEncoding = getHeader("Transfer-Encoding");
+    final String contentLength = getHeader("Content-Length");
+    if (mHeadRequest || statusCode == 204 || statusCode == 304) {
+      finish();
+    } else if (transferEncoding != null && "chunked".equalsIgnoreCase(transferEncoding)) {
+      mState = STATE_CHUNK_SIZE;
+    } else if (contentLength != null) {
+      try {
+        mBodyRemaining = Long.parseLong(contentLength);
+      } catch (NumberFormatException e) {
+        throw new ProtocolException("invalid Content-Length: " + contentLength);
+      }
+      mState = STATE_FIXED;
+    } else {
+      mBodyRemaining = Long.MAX_VALUE;
+      mState = STATE_UNTIL_CLOSE;
+    }
+    if (mState == STATE_FIXED && mBodyRemaining == 0) {
+      finish();
+    }
+    synchronized (this) {
+      mStatusCode = statusCode;
+      notifyAll();
+    }
+  }
+
+  private void onChunkSize(String line) throws IOException {
+    final int extension = line.indexOf(';');
+    final String size = (extension >= 0 ? line.substring(0, extension) : line).trim();
+    try {
+      mBodyRemaining = Long.parseLong(size, 16);
+    } catch (NumberFormatException e) {
+      throw new ProtocolException("invalid chunk size: " + line);
+    }
+    mState = mBodyRemaining > 0 ? STATE_CHUNK_DATA : STATE_TRAILER;
+  }
+
+  private String getHeader(String name) {
+    for (int i = mHeaderKeys.size() - 1; i >= 0; --i) {
+      if (name.equalsIgnoreCase(mHeaderKeys.get(i))) {
+        return mHeaderValues.get(i);
+      }
+    }
+    return null;
+  }
+
+  private void deliver(ByteBuffer buffer, int length) {
+    final byte[] chunk = new byte[length];
+    buffer.get(chunk);
+    synchronized (this) {
+      mReadQueue.offer(chunk);
+      mReadQueued += length;
+      if (mReadQueued >= MAX_QUEUED_BYTES) {
+        mReadPaused = true;
+      }
+      notifyAll();
+    }
+  }
+
+  private void finish() {
+    final boolean reusable;
+    synchronized (this) {
+      reusable = mReusable && mError == null && mPool != null && mState != STATE_UNTIL_CLOSE && mRequestFinished
+          && mWriteQueue.isEmpty() && mStatusLine.startsWith("HTTP/1.1")
+          && !"close".equalsIgnoreCase(getHeader("Connection"))
+          && (mReadBuffer == null || !mReadBuffer.hasRemaining());
+    }
+    if (reusable && mKey.isValid()) {
+      mDeadline = Long.MAX_VALUE;
+      mKey.interestOps(0);
+      mKey.attach(null);
+      mPool.release(mPoolAddress, new NioConnection(mChannel, mKey, mReactor));
+      mKey = null;
+      mChannel = null;
+    } else {
+      close();
+    }
+    synchronized (this) {
+      mState = STATE_DONE;
+      notifyAll();
+    }
+  }
+
+  private void fail(IOException e) {
+    synchronized (this) {
+      if (mError == null && mState != STATE_DONE) {
+        mError = e;
+      }
+      notifyAll();
+    }
+    close();
+  }
+
+  private void close() {
+    mDeadline = Long.MAX_VALUE;
+    if (mKey != null) {
+      mKey.cancel();
+    }
+    IOUtils.closeQuietly(mChannel);
+  }
+
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.http.HttpHeaders;
+import com.exzogeni.dk.http.dns.Dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link HttpURLConnection} facade over a {@link NioExchange}, so tasks keep using the familiar connection API.
+ * Redirects are followed like the platform does: within the same protocol, up to {@link #MAX_FOLLOW_UPS} hops,
+ * 307 and 308 only for GET and HEAD. Cookie and Authorization headers are dropped when the host changes, they
+ * were computed for the original one.
+ * <p/>
+ * Socket I/O is multiplexed on the reactor threads, but the facade is blocking: the calling thread still waits in
+ * {@link #getResponseCode()} and in body reads, so every request in progress keeps one worker thread parked
+ * until its body is consumed.
+ *
+ * @author Daniel Serdyukov
+ */
+final class NioHttpConnection extends HttpURLConnection implements ConnectionTimings {
+
+  private static final int MAX_FOLLOW_UPS = 20;
+
+  private static final int HTTP_TEMP_REDIRECT = 307;
+
+  private static final int HTTP_PERM_REDIRECT = 308;
+
+  private static final int MAX_DISCARD_BYTES = 64 * 1024;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
+  private static final byte[] LAST_CHUNK = new byte[]{'0', '\r', '\n', '\r', '\n'};
+
+  private final NioReactor mReactor;
+
+  private final ConnectionPool mPool;
+
+  private final Dns mDns;
+
+  private final HttpHeaders.Builder mRequestProperties = new HttpHeaders.Builder();
+
+  private HttpHeaders mRequestHeaders;
+
+  private NioExchange mExchange;
+
+  private OutputStream mOutputStream;
+
+  private ByteArrayOutputStream mBufferedOutput;
+
+  private InputStream mInputStream;
+
+  private boolean mRequestSent;
+
+  private boolean mResponseResolved;
+
+  private int mFollowUps;
+
+  NioHttpConnection(@NonNull URL url, @NonNull NioReactor reactor, @NonNull ConnectionPool pool, @NonNull Dns dns) {
+    super(url);
+    mReactor = reactor;
+    mPool = pool;
+    mDns = dns;
+  }
+
+  @Override
+  public void connect() throws IOException {
+    if (!connected) {
+      mRequestHeaders = mRequestProperties.build();
+      final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+      final String address = url.getHost() + ':' + port;
+      final NioConnection connection = mPool.acquire(address);
+      final List<InetSocketAddress> socketAddresses;
+      if (connection != null) {
+        socketAddresses = Collections.singletonList(
+            (InetSocketAddress) connection.mChannel.socket().getRemoteSocketAddress());
+      } else {
+        final List<InetAddress> resolved = mDns.lookup(url.getHost());
+        socketAddresses = new ArrayList<>(resolved.size());
+        for (final InetAddress inetAddress : resolved) {
+          socketAddresses.add(new InetSocketAddress(inetAddress, port));
+        }
+      }
+      mExchange = new NioExchange(connection != null ? connection.mReactor : mReactor, socketAddresses,
+          "HEAD".equals(method), getConnectTimeout(), getReadTimeout());
+      mExchange.setPool(mPool, address, connection);
+      mExchange.start();
+      connected = true;
+    }
+  }
+
+  @Override
+  public void disconnect() {
+    if (mExchange != null) {
+      mExchange.abort();
+    }
+  }
+
+  @Override
+  public long getConnectNanos() {
+    if (mExchange != null) {
+      return mExchange.getConnectNanos();
+    }
+    return -1;
+  }
+
+  /**
+   * The platform {@link java.net.URLConnection} does not keep request properties on Android, so they are stored here.
+   */
+  @Override
+  public void setRequestProperty(String key, String value) {
+    checkRequestProperty(key);
+    mRequestProperties.removeAll(key);
+    if (value != null) {
+      mRequestProperties.add(key, value);
+    }
+  }
+
+  @Override
+  public void addRequestProperty(String key, String value) {
+    checkRequestProperty(key);
+    if (value != null) {
+      mRequestProperties.add(key, value);
+    }
+  }
+
+  @Override
+  public String getRequestProperty(String key) {
+    if (key == null) {
+      return null;
+    }
+    return mRequestProperties.get(key);
+  }
+
+  @Override
+  public Map<String, List<String>> getRequestProperties() {
+    if (connected) {
+      throw new IllegalStateException("Already connected");
+    }
+    return mRequestProperties.build();
+  }
+
+  @Override
+  public boolean usingProxy() {
+    return false;
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    if (!doOutput) {
+      throw new ProtocolException("cannot write request body, call setDoOutput(true)");
+    }
+    if (mRequestSent) {
+      throw new ProtocolException("cannot write request body after response has been read");
+    }
+    if (mOutputStream == null) {
+      connect();
+      if (fixedContentLength != -1) {
+        sendHead(fixedContentLength);
+        mOutputStream = new FixedLengthOutputStream(fixedContentLength);
+      } else if (chunkLength != -1) {
+        sendHead(-1);
+        mOutputStream = new ChunkedOutputStream();
+      } else {
+        mBufferedOutput = new ByteArrayOutputStream();
+        mOutputStream = mBufferedOutput;
+      }
+    }
+    return mOutputStream;
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    final int statusCode = getResponseCode();
+    if (statusCode >= HTTP_BAD_REQUEST) {
+      if (statusCode == HTTP_NOT_FOUND || statusCode == HTTP_GONE) {
+        throw new FileNotFoundException(url.toString());
+      }
+      throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + url);
+    }
+    return getBodyStream();
+  }
+
+  @Override
+  public InputStream getErrorStream() {
+    if (mExchange != null && mExchange.getStatusCode() >= HTTP_BAD_REQUEST) {
+      return getBodyStream();
+    }
+    return null;
+  }
+
+  @Override
+  public int getResponseCode() throws IOException {
+    sendRequest();
+    mExchange.awaitResponse();
+    if (!mResponseResolved) {
+      URL location;
+      while ((location = getRedirectLocation()) != null) {
+        followRedirect(location);
+        sendRequest();
+        mExchange.awaitResponse();
+      }
+      mResponseResolved = true;
+    }
+    responseCode = mExchange.getStatusCode();
+    final String statusLine = mExchange.getStatusLine();
+    responseMessage = statusLine.length() > 13 ? statusLine.substring(13) : "";
+    return responseCode;
+  }
+
+  @Override
+  public String getResponseMessage() throws IOException {
+    getResponseCode();
+    return responseMessage;
+  }
+
+  @Override
+  public Map<String, List<String>> getHeaderFields() {
+    if (!awaitResponseQuietly()) {
+      return Collections.emptyMap();
+    }
+    final List<String> keys = mExchange.getHeaderKeys();
+    final List<String> values = mExchange.getHeaderValues();
+    final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (int i = 0; i < keys.size(); ++i) {
+      List<String> fieldValues = headers.get(keys.get(i));
+      if (fieldValues == null) {
+        fieldValues = new ArrayList<>(1);
+        headers.put(keys.get(i), fieldValues);
+      }
+      fieldValues.add(values.get(i));
+    }
+    return Collections.unmodifiableMap(headers);
+  }
+
+  @Override
+  public String getHeaderField(String name) {
+    if (name == null) {
+      return getHeaderField(0);
+    }
+    if (!awaitResponseQuietly()) {
+      return null;
+    }
+    return findHeader(name);
+  }
+
+  @Override
+  public String getHeaderField(int n) {
+    if (!awaitResponseQuietly()) {
+      return null;
+    }
+    if (n == 0) {
+      return mExchange.getStatusLine();
+    }
+    final List<String> values = mExchange.getHeaderValues();
+    return n <= values.size() ? values.get(n - 1) : null;
+  }
+
+  @Override
+  public String getHeaderFieldKey(int n) {
+    if (n == 0 || !awaitResponseQuietly()) {
+      return null;
+    }
+    final List<String> keys = mExchange.getHeaderKeys();
+    return n <= keys.size() ? keys.get(n - 1) : null;
+  }
+
+  private void checkRequestProperty(String key) {
+    if (connected) {
+      throw new IllegalStateException("Already connected");
+    }
+    if (key == null) {
+      throw new NullPointerException("key is null");
+    }
+  }
+
+  private String findHeader(String name) {
+    final List<String> keys = mExchange.getHeaderKeys();
+    for (int i = keys.size() - 1; i >= 0; --i) {
+      if (name.equalsIgnoreCase(keys.get(i))) {
+        return mExchange.getHeaderValues().get(i);
+      }
+    }
+    return null;
+  }
+
+  private URL getRedirectLocation() {
+    if (!getInstanceFollowRedirects()) {
+      return null;
+    }
+    switch (mExchange.getStatusCode()) {
+      case HTTP_MULT_CHOICE:
+      case HTTP_MOVED_PERM:
+      case HTTP_MOVED_TEMP:
+      case HTTP_SEE_OTHER:
+        break;
+      case HTTP_TEMP_REDIRECT:
+      case HTTP_PERM_REDIRECT:
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+          return null;
+        }
+        break;
+      default:
+        return null;
+    }
+    final String location = findHeader("Location");
+    if (location == null) {
+      return null;
+    }
+    try {
+      final URL redirect = new URL(url, location);
+      return url.getProtocol().equals(redirect.getProtocol()) ? redirect : null;
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+
+  private void followRedirect(URL location) throws IOException {
+    if (++mFollowUps > MAX_FOLLOW_UPS) {
+      throw new ProtocolException("Too many follow-up requests: " + mFollowUps);
+    }
+    discardResponse();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      method = "GET";
+      doOutput = false;
+      fixedContentLength = -1;
+      chunkLength = -1;
+      mRequestProperties.removeAll("Content-Type");
+    }
+    if (!url.getHost().equalsIgnoreCase(location.getHost())) {
+      mRequestProperties.removeAll("Cookie");
+      mRequestProperties.removeAll("Authorization");
+    }
+    url = location;
+    mExchange = null;
+    mOutputStream = null;
+    mBufferedOutput = null;
+    mInputStream = null;
+    mRequestSent = false;
+    connected = false;
+  }
+
+  /**
+   * Reads a short redirect body to the end, so the connection goes back to the pool, aborts a long one.
+   */
+  private void discardResponse() {
+    final byte[] buffer = new byte[4096];
+    long discarded = 0;
+    try {
+      int read;
+      while (discarded < MAX_DISCARD_BYTES && (read = mExchange.read(buffer, 0, buffer.length)) != -1) {
+        discarded += read;
+      }
+    } catch (IOException e) {
+      // aborted below
+    }
+    if (!mExchange.isResponseFinished()) {
+      mExchange.abort();
+    }
+  }
+
+  private boolean awaitResponseQuietly() {
+    try {
+      getResponseCode();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private InputStream getBodyStream() {
+    if (mInputStream == null) {
+      mInputStream = new ExchangeInputStream();
+    }
+    return mInputStream;
+  }
+
+  private void sendRequest() throws IOException {
+    if (mRequestSent) {
+      return;
+    }
+    connect();
+    if (mOutputStream == null) {
+      sendHead(doOutput ? 0 : -2);
+    } else if (mBufferedOutput != null) {
+      sendHead(mBufferedOutput.size());
+      mExchange.write(mBufferedOutput.toByteArray(), 0, mBufferedOutput.size());
+    } else {
+      mOutputStream.close();
+    }
+    mRequestSent = true;
+    mExchange.finishRequest();
+  }
+
+  /**
+   * @param contentLength body length, -1 for chunked body, -2 for no body at all
+   */
+  private void sendHead(long contentLength) throws IOException {
+    final StringBuilder head = new StringBuilder(256);
+    final String file = url.getFile();
+    head.append(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+    boolean hasUserAgent = false;
+    for (int i = 0; i < mRequestHeaders.fieldCount(); ++i) {
+      final String name = mRequestHeaders.nameAt(i);
+      final String value = mRequestHeaders.valueAt(i);
+      if ("Host".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name)
+          || "Transfer-Encoding".equalsIgnoreCase(name)) {
+        continue;
+      }
+      hasUserAgent |= "User-Agent".equalsIgnoreCase(name);
+      if ("Connection".equalsIgnoreCase(name) && "close".equalsIgnoreCase(value)) {
+        mExchange.disableReuse();
+      }
+      head.append(name).append(": ").append(value).append("\r\n");
+    }
+    head.append("Host: ").append(url.getHost());
+    if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+      head.append(':').append(url.getPort());
+    }
+    head.append("\r\n");
+    final String agent = System.getProperty("http.agent");
+    if (!hasUserAgent && agent != null) {
+      head.append("User-Agent: ").append(agent).append("\r\n");
+    }
+    if (contentLength >= 0) {
+      head.append("Content-Length: ").append(contentLength).append("\r\n");
+    } else if (contentLength == -1) {
+      head.append("Transfer-Encoding: chunked\r\n");
+    }
+    head.append("\r\n");
+    final byte[] bytes = head.toString().getBytes(ASCII);
+    mExchange.write(bytes, 0, bytes.length);
+  }
+
+  private final class FixedLengthOutputStream extends OutputStream {
+
+    private long mRemaining;
+
+    private boolean mClosed;
+
+    FixedLengthOutputStream(long contentLength) {
+      mRemaining = contentLength;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      if (mClosed) {
+        throw new IOException("stream closed");
+      }
+      if (len > mRemaining) {
+        throw new ProtocolException("expected " + mRemaining + " bytes but received " + len);
+      }
+      mExchange.write(b, off, len);
+      mRemaining -= len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!mClosed) {
+        mClosed = true;
+        if (mRemaining > 0) {
+          throw new ProtocolException("unexpected end of stream, " + mRemaining + " bytes missing");
+        }
+      }
+    }
+
+  }
+
+  private final class ChunkedOutputStream extends OutputStream {
+
+    private boolean mClosed;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      if (mClosed) {
+        throw new IOException("stream closed");
+      }
+      if (len > 0) {
+        final byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(ASCII);
+        mExchange.write(size, 0, size.length);
+        mExchange.write(b, off, len);
+        mExchange.write(CRLF, 0, CRLF.length);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!mClosed) {
+        mClosed = true;
+        mExchange.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+      }
+    }
+
+  }
+
+  private final class ExchangeInputStream extends InputStream {
+
+    private boolean mClosed;
+
+    @Override
+    public int read() throws IOException {
+      final byte[] b = new byte[1];
+      if (read(b, 0, 1) == -1) {
+        return -1;
+      }
+      return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+      if (mClosed) {
+        throw new IOException("stream closed");
+      }
+      if (len == 0) {
+        return 0;
+      }
+      return mExchange.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return mExchange.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!mClosed) {
+        mClosed = true;
+        if (!mExchange.isResponseFinished()) {
+          mExchange.abort();
+        }
+      }
+    }
+
+  }
+
+}
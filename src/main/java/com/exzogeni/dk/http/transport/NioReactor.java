@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.concurrent.NamedThreadFactory;
+import com.exzogeni.dk.log.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector loop serving any number of {@link NioExchange}s on a single thread.
+ *
+ * @author Daniel Serdyukov
+ */
+final class NioReactor implements Runnable {
+
+  private static final long SELECT_TIMEOUT_MS = 250;
+
+  private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+  private final Selector mSelector;
+
+  NioReactor(@NonNull NamedThreadFactory threadFactory) throws IOException {
+    mSelector = Selector.open();
+    final Thread thread = threadFactory.newThread(this);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void execute(@NonNull Runnable task) {
+    mTasks.offer(task);
+    mSelector.wakeup();
+  }
+
+  @NonNull
+  Selector getSelector() {
+    return mSelector;
+  }
+
+  @Override
+  @SuppressWarnings("InfiniteLoopStatement")
+  public void run() {
+    while (true) {
+      try {
+        mSelector.select(SELECT_TIMEOUT_MS);
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+          task.run();
+        }
+        final Iterator<SelectionKey> selectedKeys = mSelector.selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+          final SelectionKey key = selectedKeys.next();
+          selectedKeys.remove();
+          final Object exchange = key.attachment();
+          if (exchange instanceof NioExchange) {
+            ((NioExchange) exchange).onReady(key);
+          }
+        }
+        final long now = System.nanoTime();
+        for (final SelectionKey key : mSelector.keys()) {
+          final Object exchange = key.attachment();
+          if (key.isValid() && exchange instanceof NioExchange) {
+            ((NioExchange) exchange).checkTimeout(now);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        Logger.error(e);
+      }
+    }
+  }
+
+}
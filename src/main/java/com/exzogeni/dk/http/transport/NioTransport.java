@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.concurrent.NamedThreadFactory;
+import com.exzogeni.dk.http.dns.Dns;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/1.1 transport multiplexing all plain-text connections over a few selector threads. Other schemes, https
+ * included, are delegated to the fallback transport.
+ * <p/>
+ * Only socket I/O runs on the selector threads; the task waiting for a response still occupies its worker thread
+ * until the body is read, so the number of requests in progress is bounded by the task executor as before. What the
+ * transport adds over the platform connection is the shared {@link ConnectionPool} with its reuse counters, the
+ * {@link Dns} resolver and the connect timings of {@link ConnectionTimings}.
+ *
+ * @author Daniel Serdyukov
+ */
+public class NioTransport implements HttpTransport {
+
+  private static final String HTTP = "http";
+
+  private final AtomicInteger mNextReactor = new AtomicInteger();
+
+  private final NioReactor[] mReactors;
+
+  private final HttpTransport mFallback;
+
+  public NioTransport() throws IOException {
+    this(1);
+  }
+
+  public NioTransport(int threads) throws IOException {
+    this(threads, HttpTransport.DEFAULT);
+  }
+
+  public NioTransport(int threads, @NonNull HttpTransport fallback) throws IOException {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("threads must be positive int");
+    }
+    final NamedThreadFactory threadFactory = new NamedThreadFactory("nio");
+    mReactors = new NioReactor[threads];
+    for (int i = 0; i < threads; ++i) {
+      mReactors[i] = new NioReactor(threadFactory);
+    }
+    mFallback = fallback;
+  }
+
+  @NonNull
+  @Override
+  public HttpURLConnection openConnection(@NonNull URI uri, @NonNull ConnectionPool pool, @NonNull Dns dns) throws IOException {
+    if (HTTP.equalsIgnoreCase(uri.getScheme())) {
+      final int index = (mNextReactor.getAndIncrement() & Integer.MAX_VALUE) % mReactors.length;
+      return new NioHttpConnection(uri.toURL(), mReactors[index], pool, dns);
+    }
+    return mFallback.openConnection(uri, pool, dns);
+  }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.http.transport;
+
+import android.support.annotation.NonNull;
+
+import com.exzogeni.dk.http.dns.Dns;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+
+/**
+ * Platform {@link HttpURLConnection}, it keeps connections alive in its own pool and resolves hosts on its own.
+ *
+ * @author Daniel Serdyukov
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+  @NonNull
+  @Override
+  public HttpURLConnection openConnection(@NonNull URI uri, @NonNull ConnectionPool pool, @NonNull Dns dns) throws IOException {
+    return (HttpURLConnection) uri.toURL().openConnection();
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.io;
+
+import android.support.annotation.NonNull;
+
+import java.util.zip.Deflater;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class DeflaterPool extends BufferPool<Deflater> {
+
+  private final boolean mNowrap;
+
+  DeflaterPool(boolean nowrap) {
+    mNowrap = nowrap;
+  }
+
+  public static DeflaterPool getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  public static DeflaterPool getNowrapInstance() {
+    return Holder.NOWRAP_INSTANCE;
+  }
+
+  @Override
+  public void free(@NonNull Deflater entry) {
+    entry.reset();
+    super.free(entry);
+  }
+
+  @NonNull
+  @Override
+  protected Deflater allocateBuffer() {
+    return new Deflater(Deflater.DEFAULT_COMPRESSION, mNowrap);
+  }
+
+  private static final class Holder {
+    public static final DeflaterPool INSTANCE = new DeflaterPool(false);
+    public static final DeflaterPool NOWRAP_INSTANCE = new DeflaterPool(true);
+  }
+
+}
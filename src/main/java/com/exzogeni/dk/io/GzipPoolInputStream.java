@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Same as {@link java.util.zip.GZIPInputStream} (single member only), but with pooled inflater and buffer.
+ * An empty source (e.g. the body of a HEAD, 204 or 304 response labelled as gzip) reads as an empty stream.
+ *
+ * @author Daniel Serdyukov
+ */
+public class GzipPoolInputStream extends InflaterPoolInputStream {
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  private static final int FHCRC = 2;
+
+  private static final int FEXTRA = 4;
+
+  private static final int FNAME = 8;
+
+  private static final int FCOMMENT = 16;
+
+  private static final int TRAILER_SIZE = 8;
+
+  private final CRC32 mCrc = new CRC32();
+
+  private boolean mHeaderRead;
+
+  private boolean mEof;
+
+  public GzipPoolInputStream(InputStream in) {
+    super(in, true);
+  }
+
+  private static long readUInt(byte[] b, int offset) {
+    return ((b[offset] & 0xffL)
+        | ((b[offset + 1] & 0xffL) << 8)
+        | ((b[offset + 2] & 0xffL) << 16)
+        | ((b[offset + 3] & 0xffL) << 24));
+  }
+
+  @Override
+  public int read(byte[] b, int off, int length) throws IOException {
+    if (!mHeaderRead) {
+      mEof = !readHeader();
+      mHeaderRead = true;
+    }
+    if (mEof) {
+      return -1;
+    }
+    final int n = super.read(b, off, length);
+    if (n == -1) {
+      readTrailer();
+      mEof = true;
+    } else {
+      mCrc.update(b, off, n);
+    }
+    return n;
+  }
+
+  /**
+   * @return false if the source ended before the first header byte
+   */
+  private boolean readHeader() throws IOException {
+    final int first = in.read();
+    if (first == -1) {
+      return false;
+    }
+    if ((first | (readUByte() << 8)) != GZIP_MAGIC) {
+      throw new ZipException("Not in GZIP format");
+    }
+    if (readUByte() != 8) {
+      throw new ZipException("Unsupported compression method");
+    }
+    final int flags = readUByte();
+    skipBytes(6);
+    if ((flags & FEXTRA) == FEXTRA) {
+      skipBytes(readUShort());
+    }
+    if ((flags & FNAME) == FNAME) {
+      while (readUByte() != 0) {
+        continue;
+      }
+    }
+    if ((flags & FCOMMENT) == FCOMMENT) {
+      while (readUByte() != 0) {
+        continue;
+      }
+    }
+    if ((flags & FHCRC) == FHCRC) {
+      skipBytes(2);
+    }
+    return true;
+  }
+
+  private void readTrailer() throws IOException {
+    final byte[] trailer = new byte[TRAILER_SIZE];
+    final int remaining = inf.getRemaining();
+    int n = Math.min(remaining, TRAILER_SIZE);
+    System.arraycopy(buf, len - remaining, trailer, 0, n);
+    while (n < TRAILER_SIZE) {
+      final int count = in.read(trailer, n, TRAILER_SIZE - n);
+      if (count < 0) {
+        throw new EOFException("Unexpected end of GZIP trailer");
+      }
+      n += count;
+    }
+    if (readUInt(trailer, 0) != mCrc.getValue() || readUInt(trailer, 4) != (inf.getBytesWritten() & 0xffffffffL)) {
+      throw new ZipException("Corrupt GZIP trailer");
+    }
+  }
+
+  private int readUShort() throws IOException {
+    return readUByte() | (readUByte() << 8);
+  }
+
+  private int readUByte() throws IOException {
+    final int b = in.read();
+    if (b == -1) {
+      throw new EOFException("Unexpected end of GZIP header");
+    }
+    return b;
+  }
+
+  private void skipBytes(int count) throws IOException {
+    while (count-- > 0) {
+      readUByte();
+    }
+  }
+
+}
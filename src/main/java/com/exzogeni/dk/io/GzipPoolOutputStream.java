@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Same as {@link java.util.zip.GZIPOutputStream}, but with pooled deflater and buffer.
+ *
+ * @author Daniel Serdyukov
+ */
+public class GzipPoolOutputStream extends DeflaterOutputStream {
+
+  private static final byte[] HEADER = new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private final CRC32 mCrc = new CRC32();
+
+  private boolean mFinished;
+
+  private boolean mClosed;
+
+  public GzipPoolOutputStream(OutputStream out) throws IOException {
+    super(out, DeflaterPool.getNowrapInstance().obtain(), 1);
+    buf = ByteBufferPool.getInstance().obtain();
+    out.write(HEADER);
+  }
+
+  private static void writeUInt(OutputStream out, long value) throws IOException {
+    out.write((int) (value & 0xff));
+    out.write((int) ((value >> 8) & 0xff));
+    out.write((int) ((value >> 16) & 0xff));
+    out.write((int) ((value >> 24) & 0xff));
+  }
+
+  @Override
+  public void write(byte[] b, int off, int length) throws IOException {
+    super.write(b, off, length);
+    mCrc.update(b, off, length);
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (!mFinished) {
+      mFinished = true;
+      super.finish();
+      writeUInt(out, mCrc.getValue());
+      writeUInt(out, def.getBytesRead());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!mClosed) {
+      mClosed = true;
+      final Deflater deflater = def;
+      final byte[] buffer = buf;
+      try {
+        super.close();
+      } finally {
+        DeflaterPool.getNowrapInstance().free(deflater);
+        ByteBufferPool.getInstance().free(buffer);
+      }
+    }
+  }
+
+}
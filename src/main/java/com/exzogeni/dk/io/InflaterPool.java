@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.io;
+
+import android.support.annotation.NonNull;
+
+import java.util.zip.Inflater;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class InflaterPool extends BufferPool<Inflater> {
+
+  private final boolean mNowrap;
+
+  InflaterPool(boolean nowrap) {
+    mNowrap = nowrap;
+  }
+
+  public static InflaterPool getInstance() {
+    return Holder.INSTANCE;
+  }
+
+  public static InflaterPool getNowrapInstance() {
+    return Holder.NOWRAP_INSTANCE;
+  }
+
+  @Override
+  public void free(@NonNull Inflater entry) {
+    entry.reset();
+    super.free(entry);
+  }
+
+  @NonNull
+  @Override
+  protected Inflater allocateBuffer() {
+    return new Inflater(mNowrap);
+  }
+
+  private static final class Holder {
+    public static final InflaterPool INSTANCE = new InflaterPool(false);
+    public static final InflaterPool NOWRAP_INSTANCE = new InflaterPool(true);
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012-2014 Daniel Serdyukov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.exzogeni.dk.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * @author Daniel Serdyukov
+ */
+public class InflaterPoolInputStream extends InflaterInputStream {
+
+  private final InflaterPool mPool;
+
+  private boolean mClosed;
+
+  public InflaterPoolInputStream(InputStream in) {
+    this(in, false);
+  }
+
+  public InflaterPoolInputStream(InputStream in, boolean nowrap) {
+    this(in, nowrap ? InflaterPool.getNowrapInstance() : InflaterPool.getInstance());
+  }
+
+  private InflaterPoolInputStream(InputStream in, InflaterPool pool) {
+    super(in, pool.obtain(), 1);
+    mPool = pool;
+    buf = ByteBufferPool.getInstance().obtain();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!mClosed) {
+      mClosed = true;
+      final Inflater inflater = inf;
+      final byte[] buffer = buf;
+      try {
+        super.close();
+      } finally {
+        mPool.free(inflater);
+        ByteBufferPool.getInstance().free(buffer);
+      }
+    }
+  }
+
+}